@@ -19,6 +19,7 @@ package com.zegoggles.smssync;
 import android.app.Application;
 import com.fsck.k9.K9;
 import com.squareup.otto.Bus;
+import com.zegoggles.smssync.service.ProviderObserver;
 import org.acra.ACRA;
 import org.acra.annotation.ReportsCrashes;
 
@@ -38,5 +39,6 @@ public class App extends Application {
         K9.app = this;
         K9.DEBUG = DEBUG;
         K9.DEBUG_PROTOCOL_IMAP = DEBUG;
+        ProviderObserver.register(this);
     }
 }
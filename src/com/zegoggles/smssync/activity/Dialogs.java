@@ -18,5 +18,7 @@ enum Dialogs {
     BROKEN_DROIDX,
     VIEW_LOG,
     CONFIRM_ACTION,
-    ACTIVATE_WHATSAPP
+    DEDUP,
+    ACTIVATE_WHATSAPP,
+    RUN_HISTORY
 }
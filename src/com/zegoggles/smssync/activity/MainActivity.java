@@ -28,6 +28,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -39,6 +40,8 @@ import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -54,15 +57,19 @@ import com.zegoggles.smssync.activity.auth.AccountManagerAuthActivity;
 import com.zegoggles.smssync.activity.donation.DonationActivity;
 import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.contacts.ContactAccessor;
+import com.zegoggles.smssync.mail.AttachmentStore;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.preferences.AuthMode;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.BackupManagerWrapper;
+import com.zegoggles.smssync.preferences.LocalExportFormat;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.receiver.SmsBroadcastReceiver;
 import com.zegoggles.smssync.service.Alarms;
 import com.zegoggles.smssync.service.BackupType;
+import com.zegoggles.smssync.service.RunHistory;
 import com.zegoggles.smssync.service.SmsBackupService;
+import com.zegoggles.smssync.service.SmsDedupService;
 import com.zegoggles.smssync.service.SmsRestoreService;
 import com.zegoggles.smssync.tasks.OAuthCallbackTask;
 import com.zegoggles.smssync.tasks.RequestTokenTask;
@@ -193,6 +200,15 @@ public class MainActivity extends PreferenceActivity {
             case R.id.menu_reset:
                 show(Dialogs.RESET);
                 return true;
+            case R.id.menu_dedup:
+                show(Dialogs.DEDUP);
+                return true;
+            case R.id.menu_verify:
+                startVerify();
+                return true;
+            case R.id.menu_run_history:
+                show(Dialogs.RUN_HISTORY);
+                return true;
             case R.id.menu_view_log:
                 show(Dialogs.VIEW_LOG);
 
@@ -206,6 +222,7 @@ public class MainActivity extends PreferenceActivity {
         String account = data.getStringExtra(AccountManagerAuthActivity.EXTRA_ACCOUNT);
         if (!TextUtils.isEmpty(token) && !TextUtils.isEmpty(account)) {
             AuthPreferences.setOauth2Token(this, account, token);
+            AttachmentStore.clear(this);
             onAuthenticated();
         } else {
             String error = data.getStringExtra(AccountManagerAuthActivity.EXTRA_ERROR);
@@ -410,7 +427,8 @@ public class MainActivity extends PreferenceActivity {
     }
 
     private void initiateBackup() {
-        if (checkLoginInformation()) {
+        // the local copy also gets written without login
+        if (LocalExportFormat.isEnabled(this) || checkLoginInformation()) {
             if (Preferences.isFirstBackup(this)) {
                 show(Dialogs.FIRST_SYNC);
             } else {
@@ -458,12 +476,32 @@ public class MainActivity extends PreferenceActivity {
         startService(new Intent(this, SmsRestoreService.class));
     }
 
+    private void startVerify() {
+        if (checkLoginInformation() && !SmsRestoreService.isServiceWorking()) {
+            final Intent intent = new Intent(this, SmsBackupService.class);
+            intent.putExtra(BackupType.EXTRA, BackupType.RECONCILE.name());
+            startService(intent);
+        }
+    }
+
+    private void startDedup() {
+        if (checkLoginInformation() &&
+            !SmsBackupService.isServiceWorking() &&
+            !SmsRestoreService.isServiceWorking()) {
+            startService(new Intent(this, SmsDedupService.class));
+        }
+    }
+
     @Override
     protected void onPrepareDialog(int id, Dialog dialog) {
         super.onPrepareDialog(id, dialog);
         switch (Dialogs.values()[id]) {
             case VIEW_LOG:
                 AppLog.readLog(App.LOG, dialog.findViewById(AppLog.ID));
+                break;
+            case RUN_HISTORY:
+                loadRunHistory((AlertDialog) dialog);
+                break;
         }
     }
 
@@ -523,6 +561,13 @@ public class MainActivity extends PreferenceActivity {
             case VIEW_LOG:
                 return AppLog.displayAsDialog(App.LOG, this);
 
+            case RUN_HISTORY:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.menu_run_history)
+                        .setMessage(getString(R.string.loading))
+                        .setPositiveButton(android.R.string.ok, null)
+                        .create();
+
             case RESET:
                 return new AlertDialog.Builder(this)
                         .setTitle(R.string.ui_dialog_reset_title)
@@ -602,6 +647,7 @@ public class MainActivity extends PreferenceActivity {
                             public void onClick(DialogInterface dialog, int which) {
                                 AuthPreferences.clearOauthData(MainActivity.this);
                                 DataType.clearLastSyncData(MainActivity.this);
+                                AttachmentStore.clear(MainActivity.this);
                                 updateConnected();
                             }
                         }).create();
@@ -642,6 +688,17 @@ public class MainActivity extends PreferenceActivity {
                         .setMessage(R.string.ui_dialog_confirm_action_msg)
                         .setNegativeButton(android.R.string.cancel, null)
                         .create();
+            case DEDUP:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.ui_dialog_dedup_title)
+                        .setMessage(R.string.ui_dialog_dedup_message)
+                        .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                startDedup();
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .create();
 
             default:
                 return null;
@@ -649,6 +706,72 @@ public class MainActivity extends PreferenceActivity {
         return createMessageDialog(id, title, msg);
     }
 
+    /**
+     * Reads the run history in the background and shows it in <code>dialog</code>.
+     */
+    private void loadRunHistory(final AlertDialog dialog) {
+        dialog.setMessage(getString(R.string.loading));
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return getRunHistoryText();
+            }
+
+            @Override
+            protected void onPostExecute(String text) {
+                dialog.setMessage(text);
+            }
+        }.execute();
+    }
+
+    private String getRunHistoryText() {
+        final RunHistory history = new RunHistory(this);
+        final RunHistory.Trend trend = history.getBackupTrend();
+        if (trend == null) return getString(R.string.ui_dialog_run_history_empty);
+
+        final StringBuilder sb = new StringBuilder();
+        if (trend.slowdown > 0) {
+            sb.append(getString(trend.sinceUpdate ? R.string.run_history_slower_since_update :
+                    R.string.run_history_slower, trend.slowdown)).append("\n\n");
+        }
+        sb.append(getString(R.string.run_history_averages, trend.runs,
+                DateUtils.formatElapsedTime(trend.averageDuration / 1000), trend.averageItems));
+        if (trend.msPerItem >= 0) {
+            sb.append('\n').append(getString(R.string.run_history_per_item, trend.msPerItem));
+        }
+        if (trend.averageSent >= 0) {
+            sb.append('\n').append(getString(R.string.run_history_sent,
+                    Formatter.formatFileSize(this, trend.averageSent)));
+        }
+        if (trend.peakHeap >= 0) {
+            sb.append('\n').append(getString(R.string.run_history_heap,
+                    Formatter.formatFileSize(this, trend.peakHeap)));
+        }
+        sb.append('\n').append(getString(R.string.run_history_failures, trend.failures, trend.retries));
+        sb.append('\n');
+
+        final DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        final List<RunHistory.Run> runs = history.getRuns();
+        int shown = 0;
+        for (int i = runs.size() - 1; i >= 0 && shown < trend.runs; i--) {
+            final RunHistory.Run run = runs.get(i);
+            if (!run.isBackup()) continue;
+
+            final String date = format.format(new Date(run.started));
+            final String type = getString(run.backupType.resId);
+            sb.append('\n');
+            if (run.isSuccessful()) {
+                sb.append(getString(R.string.run_history_entry, date, type, run.getItemCount(),
+                        DateUtils.formatElapsedTime(run.getDuration() / 1000)));
+            } else {
+                sb.append(getString(R.string.run_history_entry_failed, date, type, run.getItemCount(),
+                        run.error != null ? run.error : getString(R.string.status_canceled)));
+            }
+            shown++;
+        }
+        return sb.toString();
+    }
+
     private Dialog createMessageDialog(final int id, String title, String msg) {
         return new AlertDialog.Builder(this)
                 .setTitle(title)
@@ -771,6 +894,7 @@ public class MainActivity extends PreferenceActivity {
                 .setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
                     public boolean onPreferenceChange(Preference preference, Object newValue) {
                         updateUsernameLabel(newValue.toString());
+                        AttachmentStore.clear(MainActivity.this);
                         return true;
                     }
                 });
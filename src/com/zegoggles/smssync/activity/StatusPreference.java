@@ -1,6 +1,9 @@
 package com.zegoggles.smssync.activity;
 
+import android.os.AsyncTask;
 import android.preference.Preference;
+import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,17 +18,25 @@ import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.SmsBackupService;
+import com.zegoggles.smssync.service.SmsDedupService;
 import com.zegoggles.smssync.service.SmsRestoreService;
+import com.zegoggles.smssync.service.RunHistory;
 import com.zegoggles.smssync.service.UserCanceled;
 import com.zegoggles.smssync.service.state.BackupState;
+import com.zegoggles.smssync.service.state.DedupState;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 import com.zegoggles.smssync.service.state.State;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
 class StatusPreference extends Preference implements View.OnClickListener {
+    private static final long TRAFFIC_PERIOD = 30 * 24 * 60 * 60 * 1000L;
+
     private View mView;
 
     private Button mBackupButton;
@@ -49,7 +60,12 @@ class StatusPreference extends Preference implements View.OnClickListener {
     @Override
     public void onClick(View v) {
         if (v == mBackupButton) {
-            if (!SmsBackupService.isServiceWorking()) {
+            if (SmsDedupService.isServiceWorking()) {
+                if (LOCAL_LOGV) Log.v(TAG, "user requested cancel of dedup");
+                mBackupButton.setText(R.string.ui_sync_button_label_canceling);
+                mBackupButton.setEnabled(false);
+                App.bus.post(new UserCanceled());
+            } else if (!SmsBackupService.isServiceWorking()) {
                 if (LOCAL_LOGV) Log.v(TAG, "user requested sync");
                 mainActivity.performAction(MainActivity.Actions.Backup);
             } else {
@@ -154,6 +170,48 @@ class StatusPreference extends Preference implements View.OnClickListener {
         }
     }
 
+    @Subscribe public void dedupStateChanged(final DedupState newState) {
+        if (App.LOCAL_LOGV) Log.v(TAG, "dedupStateChanged:" + newState);
+        if (mView == null) return;
+
+        stateChanged(newState);
+        switch (newState.state) {
+            case LOGIN:
+            case CALC:
+            case DEDUP:
+                // the backup button stops the dedup
+                mBackupButton.setText(R.string.ui_sync_button_label_syncing);
+                mRestoreButton.setEnabled(false);
+                if (newState.state != SmsSyncState.DEDUP) break;
+
+                mStatusLabel.setText(R.string.status_dedup);
+                mSyncDetailsLabel.setText(newState.getNotificationLabel(getContext().getResources()));
+                mProgressBar.setIndeterminate(false);
+                mProgressBar.setProgress(newState.currentCount);
+                mProgressBar.setMax(newState.totalCount);
+                break;
+            case FINISHED_DEDUP:
+                mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_done));
+                mStatusLabel.setText(R.string.status_done);
+                mSyncDetailsLabel.setText(getDedupDetails(newState));
+                break;
+            case CANCELED_DEDUP:
+                mStatusLabel.setText(R.string.status_canceled);
+                mSyncDetailsLabel.setText(getDedupDetails(newState));
+                break;
+        }
+    }
+
+    private String getDedupDetails(DedupState state) {
+        final String details = getContext().getResources().getQuantityString(
+                R.plurals.status_dedup_done_details,
+                state.duplicateCount,
+                state.duplicateCount,
+                state.currentCount);
+        if (state.flaggedCount == 0) return details;
+        return details + '\n' + getContext().getString(R.string.status_dedup_flagged_details, state.flaggedCount);
+    }
+
     private void authFailed() {
         mStatusLabel.setText(R.string.status_auth_failure);
 
@@ -181,7 +239,7 @@ class StatusPreference extends Preference implements View.OnClickListener {
         } else if (backedUpCount == 0) {
             text = getContext().getString(R.string.status_backup_done_details_noitems);
         }
-        mSyncDetailsLabel.setText(text);
+        showDetails(text, true);
         mStatusLabel.setText(R.string.status_done);
         mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_done));
     }
@@ -189,11 +247,60 @@ class StatusPreference extends Preference implements View.OnClickListener {
     private void finishedRestore(RestoreState newState) {
         mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_done));
         mStatusLabel.setText(R.string.status_done);
-        mSyncDetailsLabel.setText(getContext().getResources().getQuantityString(
+        showDetails(getContext().getResources().getQuantityString(
                 R.plurals.status_restore_done_details,
                 newState.actualRestoredCount,
                 newState.actualRestoredCount,
-                newState.duplicateCount));
+                newState.duplicateCount), false);
+    }
+
+    /**
+     * Shows the details of a finished run, the traffic gets added once the history has been read
+     * in the background.
+     */
+    private void showDetails(@Nullable String text, final boolean backup) {
+        final String details = text == null ? "" : text;
+        mSyncDetailsLabel.setText(details);
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return appendTraffic(details, backup);
+            }
+
+            @Override
+            protected void onPostExecute(String withTraffic) {
+                // unless the state changed in the meantime
+                if (TextUtils.equals(details, mSyncDetailsLabel.getText())) {
+                    mSyncDetailsLabel.setText(withTraffic);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Appends the traffic of the run which just finished, if it was measured, and of the last 30 days.
+     */
+    private String appendTraffic(String text, boolean backup) {
+        final RunHistory history = new RunHistory(getContext());
+        final List<RunHistory.Run> runs = history.getRuns();
+        if (runs.isEmpty()) return text;
+
+        final RunHistory.Run last = runs.get(runs.size() - 1);
+        final long[] total = history.getTraffic(System.currentTimeMillis() - TRAFFIC_PERIOD);
+        if (total[0] == 0 && total[1] == 0) return text;
+
+        final StringBuilder sb = new StringBuilder(text);
+        if (last.isBackup() == backup && last.sent >= 0) {
+            sb.append('\n').append(getContext().getString(R.string.status_traffic,
+                    formatSize(last.sent), formatSize(last.received)));
+        }
+        sb.append('\n').append(getContext().getString(R.string.status_traffic_total,
+                formatSize(total[0]), formatSize(total[1])));
+        return sb.toString();
+    }
+
+    private String formatSize(long bytes) {
+        return Formatter.formatFileSize(getContext(), bytes);
     }
 
     private void idle() {
@@ -234,6 +341,7 @@ class StatusPreference extends Preference implements View.OnClickListener {
             case CALC:
             case BACKUP:
             case RESTORE:
+            case DEDUP:
                 mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_sync));
                 mStatusIcon.setImageResource(R.drawable.ic_syncing);
                 break;
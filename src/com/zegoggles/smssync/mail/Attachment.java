@@ -2,15 +2,19 @@ package com.zegoggles.smssync.mail;
 
 import android.content.ContentResolver;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.BodyPart;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.filter.Base64OutputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.TextBody;
 import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -20,10 +24,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.zegoggles.smssync.App.TAG;
 
 class Attachment {
+    /** access-type of message/external-body parts referencing an attachment stored earlier */
+    static final String ACCESS_TYPE = "x-smssync-attachment";
+
     public static MimeBodyPart createTextPart(String text) throws MessagingException {
         return new MimeBodyPart(new TextBody(text));
     }
@@ -53,18 +65,202 @@ class Attachment {
         return part;
     }
 
+    /**
+     * Replaces the content of an attachment with a reference to an identical copy stored
+     * earlier, using message/external-body (RFC 2046) with the original headers as inner headers.
+     * @param messageId the message carrying the copy, null for copies outside of messages
+     */
+    static MimeBodyPart createReferencePart(BodyPart part, Digest digest, @Nullable String messageId)
+            throws MessagingException {
+        final MimeBodyPart reference = new MimeBodyPart(new ReferenceBody(part, digest));
+        reference.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "message/external-body; access-type=\"" +
+                ACCESS_TYPE + "\"; sha1=\"" + digest.sha1 + "\"; size=" + digest.size +
+                (messageId == null ? "" : "; message-id=\"" + messageId + "\""));
+        reference.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "7bit");
+        return reference;
+    }
+
+    /**
+     * @return the digest of an attachment created by this class, or null for other parts or if
+     * the content cannot be read
+     */
+    static @Nullable Digest getDigest(BodyPart part) {
+        final Body body = part.getBody();
+        if (body instanceof ReferenceBody) {
+            return ((ReferenceBody) body).digest;
+        } else if (body instanceof Base64Body) {
+            try {
+                return ((Base64Body) body).getDigest();
+            } catch (IOException e) {
+                Log.w(TAG, "error hashing attachment", e);
+            } catch (MessagingException e) {
+                Log.w(TAG, "error hashing attachment", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the size of an attachment created by this class, without reading it, or -1 if
+     * unknown
+     */
+    static long getSize(BodyPart part) {
+        final Body body = part.getBody();
+        if (body instanceof ReferenceBody) {
+            return ((ReferenceBody) body).digest.size;
+        } else if (body instanceof Base64Body) {
+            return ((Base64Body) body).getSize();
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the digests of the attachments in the body which were taken while writing it,
+     * does not read anything
+     */
+    static List<Digest> getWrittenDigests(Body body) {
+        final List<Digest> digests = new ArrayList<Digest>();
+        if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                final Body partBody = multipart.getBodyPart(i).getBody();
+                if (partBody instanceof Base64Body) {
+                    final Digest digest = ((Base64Body) partBody).digest;
+                    if (digest != null) digests.add(digest);
+                } else {
+                    digests.addAll(getWrittenDigests(partBody));
+                }
+            }
+        }
+        return digests;
+    }
+
+    static boolean isReference(BodyPart part) {
+        return part.getBody() instanceof ReferenceBody;
+    }
+
+    /**
+     * @return the decoded content of an attachment created by this class, also for references
+     */
+    static @Nullable InputStream getContent(BodyPart part) throws MessagingException {
+        final Body body = part.getBody();
+        if (body instanceof ReferenceBody) {
+            return ((ReferenceBody) body).part.getBody().getInputStream();
+        } else if (body instanceof Base64Body) {
+            return body.getInputStream();
+        } else {
+            return null;
+        }
+    }
+
+    static class Digest {
+        final String sha1;
+        final long size;
+
+        Digest(String sha1, long size) {
+            this.sha1 = sha1;
+            this.size = size;
+        }
+    }
+
     private static abstract class Base64Body implements Body {
+        private Digest digest;
+
+        /**
+         * @return the size of the content, or -1 if unknown
+         */
+        abstract long getSize();
+
         @Override
         public void writeTo(OutputStream outputStream) throws IOException, MessagingException {
             InputStream in = getInputStream();
             if (in != null)  {
+                // hash the content while it gets streamed out
+                final MessageDigest sha1 = digest == null ? newDigest() : null;
+                if (sha1 != null) in = new DigestInputStream(in, sha1);
                 Base64OutputStream base64Out = new Base64OutputStream(outputStream);
-                IOUtils.copy(in, base64Out);
+                final long size = IOUtils.copyLarge(in, base64Out);
                 base64Out.close();
+                in.close();
+                if (sha1 != null) digest = new Digest(toHex(sha1.digest()), size);
             } else {
                 Log.w(TAG, "input stream is null");
             }
         }
+
+        /**
+         * @return the digest of the content, streaming it once if it has not been written yet
+         */
+        Digest getDigest() throws IOException, MessagingException {
+            if (digest == null) {
+                final MessageDigest sha1 = newDigest();
+                final InputStream in = getInputStream();
+                try {
+                    final byte[] buffer = new byte[8192];
+                    long size = 0;
+                    for (int n; (n = in.read(buffer)) != -1; size += n) {
+                        sha1.update(buffer, 0, n);
+                    }
+                    digest = new Digest(toHex(sha1.digest()), size);
+                } finally {
+                    in.close();
+                }
+            }
+            return digest;
+        }
+    }
+
+    /**
+     * Body of a message/external-body part, only contains the headers of the referenced part.
+     */
+    private static class ReferenceBody implements Body {
+        private final BodyPart part;
+        private final Digest digest;
+
+        ReferenceBody(BodyPart part, Digest digest) {
+            this.part = part;
+            this.digest = digest;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException {
+            return new ByteArrayInputStream(getInnerHeaders().getBytes());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException, MessagingException {
+            out.write(getInnerHeaders().getBytes());
+        }
+
+        private String getInnerHeaders() throws MessagingException {
+            final StringBuilder headers = new StringBuilder();
+            for (String name : new String[] {
+                    MimeHeader.HEADER_CONTENT_TYPE,
+                    MimeHeader.HEADER_CONTENT_DISPOSITION }) {
+                final String[] values = part.getHeader(name);
+                if (values != null && values.length > 0) {
+                    headers.append(name).append(": ").append(values[0]).append("\r\n");
+                }
+            }
+            return headers.append("\r\n").toString();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(HEX_DIGITS_LOWER[(b >> 4) & 0xf]).append(HEX_DIGITS_LOWER[b & 0xf]);
+        }
+        return hex.toString();
     }
 
     private static class ResolverBody extends Base64Body {
@@ -76,6 +272,20 @@ class Attachment {
             mUri = uri;
         }
 
+        @Override
+        long getSize() {
+            try {
+                final ParcelFileDescriptor fd = mResolver.openFileDescriptor(mUri, "r");
+                try {
+                    return fd.getStatSize();
+                } finally {
+                    fd.close();
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
         public InputStream getInputStream() throws MessagingException {
             try {
                 return mResolver.openInputStream(mUri);
@@ -96,6 +306,11 @@ class Attachment {
             this.file = file;
         }
 
+        @Override
+        long getSize() {
+            return file.exists() ? file.length() : -1;
+        }
+
         @Override
         public InputStream getInputStream() throws MessagingException {
             try {
@@ -110,6 +325,7 @@ class Attachment {
     private static final String MIME_SPECIALS = "()<>@,;:\\\"/[]?=" + "\t ";
     private static final String RFC2231_SPECIALS = "*'%" + MIME_SPECIALS;
     private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_DIGITS_LOWER = "0123456789abcdef".toCharArray();
 
     private static String encodeRFC2231(String key, String value) {
         StringBuilder buf = new StringBuilder();
@@ -0,0 +1,194 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.preferences.ServerPreferences;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Content-addressed index of attachments which have been uploaded in full, kept per account and
+ * folder. Later messages with identical content reference the uploaded copy by its SHA-1
+ * instead of including it again, the index also has the Message-ID of the message carrying the
+ * copy so it can be found on the server.
+ * <p/>
+ * The digests get taken while the messages are uploaded. Only attachments with the size of an
+ * indexed one get hashed beforehand, to check whether they can be referenced.
+ * <p/>
+ * Index format, one line per attachment: sha1, size, Message-ID, separated by tabs.
+ */
+public class AttachmentStore {
+    /** smaller attachments are always included, a reference would not save much */
+    static final int MIN_REFERENCE_SIZE = 16 * 1024;
+
+    private static final String DIR_NAME = "attachment_index";
+    /** index of earlier versions, shared by all accounts and folders */
+    private static final String LEGACY_INDEX = "attachments";
+
+    private final File dir;
+    private final Map<String, Index> indexes = new HashMap<String, Index>();
+
+    AttachmentStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the store of the current account, or null if attachments should always be
+     * uploaded in full
+     */
+    public static @Nullable AttachmentStore get(Context context) {
+        if (!Preferences.isAttachmentReferences(context)) return null;
+
+        final String user = AuthPreferences.getUserEmail(context);
+        // references are resolved on the server, there is nothing to reference without account
+        if (TextUtils.isEmpty(user)) return null;
+        final String account = user + "@" + ServerPreferences.getServerAddress(context);
+        return new AttachmentStore(new File(new File(context.getFilesDir(), DIR_NAME), toFileName(account)));
+    }
+
+    /**
+     * Drops the indexes of all accounts, called when the account changes. The attachments of
+     * the new account get uploaded in full again.
+     */
+    public static void clear(Context context) {
+        final File dir = new File(context.getFilesDir(), DIR_NAME);
+        final File[] accounts = dir.listFiles();
+        if (accounts != null) {
+            for (File account : accounts) {
+                final File[] folders = account.listFiles();
+                if (folders != null) {
+                    for (File folder : folders) {
+                        if (!folder.delete()) Log.w(TAG, "could not delete " + folder);
+                    }
+                }
+                if (!account.delete()) Log.w(TAG, "could not delete " + account);
+            }
+        }
+        final File legacy = new File(context.getFilesDir(), LEGACY_INDEX);
+        if (legacy.exists() && !legacy.delete()) Log.w(TAG, "could not delete " + legacy);
+    }
+
+    /**
+     * @return whether an attachment of this size has been uploaded to the folder, only then
+     * hashing an attachment before the upload can pay off
+     */
+    public synchronized boolean containsSize(String folder, long size) {
+        return getIndex(folder).sizes.contains(size);
+    }
+
+    /**
+     * @return the Message-ID of the message carrying the attachment in full, or null if it has
+     * not been uploaded to the folder
+     */
+    public synchronized @Nullable String getMessageId(String folder, String sha1) {
+        return getIndex(folder).messageIds.get(sha1);
+    }
+
+    /**
+     * Records the attachments contained in full in messages which have been uploaded
+     * successfully. Only digests taken during the upload are used, nothing gets read again.
+     */
+    public synchronized void add(String folder, Collection<Message> uploaded) {
+        final Index index = getIndex(folder);
+        final StringBuilder added = new StringBuilder();
+        for (Message message : uploaded) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId == null) continue;
+
+            for (Attachment.Digest digest : Attachment.getWrittenDigests(message.getBody())) {
+                if (digest.size >= MIN_REFERENCE_SIZE && !index.messageIds.containsKey(digest.sha1)) {
+                    index.add(digest.sha1, digest.size, messageId);
+                    added.append(digest.sha1).append('\t')
+                         .append(digest.size).append('\t')
+                         .append(messageId).append('\n');
+                }
+            }
+        }
+        if (added.length() == 0) return;
+
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+            final FileOutputStream out = new FileOutputStream(index.file, true);
+            try {
+                out.write(added.toString().getBytes());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // not fatal, the attachments just get uploaded again
+            Log.w(TAG, "error writing attachment index", e);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "attachment index " + folder + ": " + index.messageIds.size() + " entries");
+    }
+
+    private Index getIndex(String folder) {
+        Index index = indexes.get(folder);
+        if (index == null) {
+            index = new Index(new File(dir, toFileName(folder)));
+            index.read();
+            indexes.put(folder, index);
+        }
+        return index;
+    }
+
+    private static String toFileName(String name) {
+        return name.replaceAll("[^\\w.@-]", "_");
+    }
+
+    private static class Index {
+        final File file;
+        final Map<String, String> messageIds = new HashMap<String, String>();
+        final Set<Long> sizes = new HashSet<Long>();
+
+        Index(File file) {
+            this.file = file;
+        }
+
+        void add(String sha1, long size, String messageId) {
+            messageIds.put(sha1, messageId);
+            sizes.add(size);
+        }
+
+        void read() {
+            if (!file.exists()) return;
+            try {
+                final BufferedReader reader = new BufferedReader(new FileReader(file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        final String[] fields = line.split("\t");
+                        // a partially written last line is missing the end of the Message-ID
+                        if (fields.length != 3 || fields[0].length() != 40 || !fields[2].endsWith(">")) continue;
+                        try {
+                            add(fields[0], Long.parseLong(fields[1]), fields[2]);
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "error reading attachment index", e);
+            }
+        }
+    }
+}
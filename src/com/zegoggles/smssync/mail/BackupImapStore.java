@@ -25,6 +25,8 @@ import com.fsck.k9.mail.Folder.FolderType;
 import com.fsck.k9.mail.Folder.OpenMode;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
 import com.fsck.k9.mail.store.ImapStore;
 import com.zegoggles.smssync.MmsConsts;
@@ -33,16 +35,26 @@ import com.zegoggles.smssync.SmsConsts;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
 public class BackupImapStore extends ImapStore {
+    /** maximum number of Message-IDs looked up with a single search */
+    static final int MAX_SEARCH_KEYS = 50;
+    private static final String UIDPLUS = "UIDPLUS";
+
     private Context context;
 
     static {
@@ -110,6 +122,11 @@ public class BackupImapStore extends ImapStore {
 
     public class BackupFolder extends ImapFolder {
         private final DataType type;
+        private Set<String> capabilities;
+        /** commands issued by this folder, the fetches run on a different thread */
+        private final AtomicInteger commands = new AtomicInteger();
+        /** from the response to SELECT/EXAMINE, -1 if the server didn't send it */
+        private volatile long uidValidity = -1;
 
         public BackupFolder(ImapStore store, String name, DataType type) {
             super(store, name);
@@ -132,7 +149,7 @@ public class BackupImapStore extends ImapStore {
                     if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
                     if (flagged) sb.append(" FLAGGED");
 
-                    return executeSimpleCommand(sb.toString().trim());
+                    return runCommand(sb.toString().trim());
                 }
             };
 
@@ -144,7 +161,7 @@ public class BackupImapStore extends ImapStore {
 
                 FetchProfile fp = new FetchProfile();
                 fp.add(FetchProfile.Item.DATE);
-                fetch(msgs, fp, null);
+                fetch(msgs, fp);
 
                 if (LOCAL_LOGV) Log.v(TAG, "Sorting");
                 //Debug.startMethodTracing("sorting");
@@ -164,6 +181,223 @@ public class BackupImapStore extends ImapStore {
             return messages;
         }
 
+        /**
+         * Looks up several Message-IDs at once, with one search per {@link #MAX_SEARCH_KEYS}
+         * ids and a header fetch of the matches.
+         *
+         * @return the given Message-IDs which exist in this folder
+         */
+        public Set<String> findMessageIds(Collection<String> messageIds) throws MessagingException {
+            final Set<String> found = new HashSet<String>();
+            final List<String> ids = new ArrayList<String>(messageIds);
+            for (int start = 0; start < ids.size(); start += MAX_SEARCH_KEYS) {
+                final List<String> chunk = ids.subList(start, Math.min(start + MAX_SEARCH_KEYS, ids.size()));
+                final StringBuilder sb = new StringBuilder("UID SEARCH ");
+                // OR takes two search keys, nest it for more
+                for (int i = 1; i < chunk.size(); i++) sb.append("OR ");
+                for (String id : chunk) {
+                    sb.append("HEADER ").append(Headers.MESSAGE_ID.toUpperCase(Locale.ENGLISH))
+                      .append(' ').append(quote(id)).append(' ');
+                }
+                final List<Long> uids = searchUids(sb.toString().trim());
+                for (Map<String, String> headers : fetchHeaders(uids, Headers.MESSAGE_ID).values()) {
+                    final String messageId = headers.get(Headers.MESSAGE_ID.toLowerCase(Locale.ENGLISH));
+                    if (messageId != null && chunk.contains(messageId)) found.add(messageId);
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return the UIDVALIDITY value of this folder, or -1 if the server did not report it.
+         * Taken from the response to SELECT, only servers which leave it out get asked with STATUS.
+         */
+        public long getUidValidity() throws MessagingException {
+            if (uidValidity >= 0) return uidValidity;
+            try {
+                final List<ImapResponse> responses = runCommand(
+                        String.format(Locale.ENGLISH, "STATUS %s (UIDVALIDITY)", quote(getName())));
+
+                for (ImapResponse response : responses) {
+                    if (response.size() >= 3 && ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS")) {
+                        final ImapList status = response.getList(2);
+                        final String value = status.getKeyedString("UIDVALIDITY");
+                        if (value != null) return Long.parseLong(value);
+                    }
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error getting uidvalidity", e);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "invalid uidvalidity", e);
+            }
+            return -1;
+        }
+
+        @Override
+        protected void handleUntaggedResponse(ImapResponse response) {
+            super.handleUntaggedResponse(response);
+            // * OK [UIDVALIDITY 3857529045] UIDs valid
+            if (response.size() >= 2 && ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") &&
+                response.get(1) instanceof ImapList) {
+                final ImapList code = (ImapList) response.get(1);
+                if (code.size() >= 2 && ImapResponseParser.equalsIgnoreCase(code.get(0), "UIDVALIDITY")) {
+                    try {
+                        uidValidity = Long.parseLong(code.getString(1));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "invalid uidvalidity", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the uids of all (undeleted) messages in this folder, in ascending order
+         */
+        public List<Long> getUids() throws MessagingException {
+            return searchUids("UID SEARCH 1:* UNDELETED");
+        }
+
+        /**
+         * Looks up the Message-IDs of messages sent in the given range, fetching headers only.
+         * SENTSINCE/SENTBEFORE only compare dates, so the range should be padded by a day.
+         *
+         * @return the Message-IDs of this folder's data type sent on or after <code>since</code>
+         *         and before <code>before</code>
+         */
+        public Set<String> getMessageIds(Date since, Date before) throws MessagingException {
+            final List<Long> uids = searchUids(String.format(Locale.ENGLISH,
+                    "UID SEARCH 1:* %s UNDELETED SENTSINCE %s SENTBEFORE %s",
+                    getQuery(), RFC3501_DATE.format(since), RFC3501_DATE.format(before)));
+
+            final Set<String> messageIds = new HashSet<String>(uids.size());
+            for (Map<String, String> headers : fetchHeaders(uids, Headers.MESSAGE_ID).values()) {
+                final String messageId = headers.get(Headers.MESSAGE_ID.toLowerCase(Locale.ENGLISH));
+                if (messageId != null) messageIds.add(messageId);
+            }
+            return messageIds;
+        }
+
+        private List<Long> searchUids(String command) throws MessagingException {
+            final List<Long> uids = new ArrayList<Long>();
+            try {
+                for (ImapResponse response : runCommand(command)) {
+                    if (response.size() == 0 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                        continue;
+                    }
+                    for (int i = 1; i < response.size(); i++) {
+                        uids.add(Long.parseLong(response.getString(i)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error searching uids", e);
+            } catch (NumberFormatException e) {
+                throw new MessagingException("invalid uid", e);
+            }
+            Collections.sort(uids);
+            return uids;
+        }
+
+        /**
+         * Fetches selected header fields only, without downloading the message bodies.
+         *
+         * @return the requested headers (lower case names) keyed by uid
+         */
+        public Map<Long, Map<String, String>> fetchHeaders(List<Long> uids, String... fields)
+                throws MessagingException {
+            final Map<Long, Map<String, String>> headers = new HashMap<Long, Map<String, String>>(uids.size());
+            if (uids.isEmpty()) return headers;
+
+            final String command = String.format(Locale.ENGLISH,
+                    "UID FETCH %s (UID BODY.PEEK[HEADER.FIELDS (%s)])",
+                    toSequenceSet(uids),
+                    TextUtils.join(" ", fields).toUpperCase(Locale.ENGLISH));
+            try {
+                for (ImapResponse response : runCommand(command)) {
+                    if (response.size() < 3 || !ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        continue;
+                    }
+                    final ImapList fetchList = response.getList(2);
+                    final String uid = fetchList.getKeyedString("UID");
+                    final int literal = fetchList.getKeyIndex("BODY") + 2;
+                    if (uid == null || literal < 2 || literal >= fetchList.size()) continue;
+
+                    headers.put(Long.parseLong(uid), parseHeaders(String.valueOf(fetchList.get(literal))));
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error fetching headers", e);
+            } catch (NumberFormatException e) {
+                throw new MessagingException("invalid uid", e);
+            }
+            return headers;
+        }
+
+        /**
+         * Flags the given messages as deleted and expunges them with UID EXPUNGE (RFC4315).
+         * A plain EXPUNGE would also remove any other message the user flagged as deleted, so
+         * on servers without UIDPLUS the messages are only flagged.
+         *
+         * @return true if the messages were expunged, false if they were only flagged
+         */
+        public boolean deleteMessages(List<Long> uids) throws MessagingException {
+            if (uids.isEmpty()) return true;
+
+            final String set = toSequenceSet(uids);
+            try {
+                runCommand(String.format(Locale.ENGLISH, "UID STORE %s +FLAGS.SILENT (\\Deleted)", set));
+                if (!hasCapability(UIDPLUS)) {
+                    Log.w(TAG, "no UIDPLUS support, not expunging " + uids.size() + " message(s)");
+                    return false;
+                }
+                runCommand("UID EXPUNGE " + set);
+                return true;
+            } catch (IOException e) {
+                throw new MessagingException("error deleting messages", e);
+            }
+        }
+
+        /**
+         * Fetches the given messages, with a single UID FETCH.
+         */
+        public void fetch(Message[] messages, FetchProfile fp) throws MessagingException {
+            if (messages.length == 0) return;
+            commands.incrementAndGet();
+            fetch(messages, fp, null);
+        }
+
+        /**
+         * @return the number of commands (round trips) issued by this folder so far, not counting
+         * the login and the SELECT when it was opened
+         */
+        public int getCommandCount() {
+            return commands.get();
+        }
+
+        private List<ImapResponse> runCommand(String command) throws IOException, MessagingException {
+            commands.incrementAndGet();
+            return executeSimpleCommand(command);
+        }
+
+        private boolean hasCapability(String capability) throws MessagingException {
+            if (capabilities == null) {
+                final Set<String> advertised = new HashSet<String>();
+                try {
+                    for (ImapResponse response : runCommand("CAPABILITY")) {
+                        if (response.size() == 0 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "CAPABILITY")) {
+                            continue;
+                        }
+                        for (int i = 1; i < response.size(); i++) {
+                            advertised.add(response.getString(i).toUpperCase(Locale.ENGLISH));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new MessagingException("error getting capabilities", e);
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "capabilities: " + advertised);
+                capabilities = advertised;
+            }
+            return capabilities.contains(capability);
+        }
+
         private String getQuery() {
             switch (this.type) {
             /* MMS/SMS are special cases since we need to support legacy backup headers */
@@ -187,6 +421,55 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
+    static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * @param uids sorted uids
+     * @return a compact IMAP sequence set, e.g. 1:3,7,9:10
+     */
+    static String toSequenceSet(List<Long> uids) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < uids.size(); i++) {
+            final long start = uids.get(i);
+            long end = start;
+            while (i + 1 < uids.size() && uids.get(i + 1) == end + 1) {
+                end = uids.get(++i);
+            }
+            if (sb.length() > 0) sb.append(',');
+            sb.append(start);
+            if (end != start) sb.append(':').append(end);
+        }
+        return sb.toString();
+    }
+
+    static Map<String, String> parseHeaders(String raw) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        String name = null;
+        StringBuilder value = null;
+        for (String line : raw.split("\r?\n")) {
+            if (line.length() == 0) continue;
+
+            if (Character.isWhitespace(line.charAt(0)) && value != null) {
+                // folded header
+                value.append(' ').append(line.trim());
+            } else {
+                if (name != null) headers.put(name, value.toString());
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                    value = new StringBuilder(line.substring(colon + 1).trim());
+                } else {
+                    name = null;
+                    value = null;
+                }
+            }
+        }
+        if (name != null) headers.put(name, value.toString());
+        return headers;
+    }
+
     static class MessageComparator implements Comparator<Message> {
         static final MessageComparator INSTANCE = new MessageComparator();
         static final Date EARLY = new Date(0);
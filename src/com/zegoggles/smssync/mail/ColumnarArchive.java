@@ -0,0 +1,317 @@
+package com.zegoggles.smssync.mail;
+
+import android.os.Environment;
+import android.util.Log;
+import com.fsck.k9.mail.BodyPart;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Multipart;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A compact local archive of the raw provider rows, one segment file and one index file per
+ * data type. Each flush appends a {@link ColumnarSegment} and an index entry with the
+ * segment's offset and date range, so readers can skip segments outside a requested range.
+ * MMS and WhatsApp messages are stored out of line, as RFC822 files in media/. Their
+ * attachments are stored once in blobs/, named by SHA-1, and referenced from the messages
+ * with message/external-body parts.
+ * <pre>
+ *   sms.seg     [segment][segment]...
+ *   sms.idx     [offset:8 length:4 rows:4 minDate:8 maxDate:8]...
+ *   media/      &lt;message-id&gt;.eml
+ *   blobs/      &lt;sha1&gt;
+ * </pre>
+ */
+public class ColumnarArchive extends LocalArchive {
+    public static final String DIR_NAME = "archive";
+
+    /** column referencing the out of line message in media/ */
+    public static final String MEDIA = "media";
+
+    private static final String DATE = "date";
+    private static final int ENTRY_SIZE = 32;
+
+    private final Map<DataType, List<Map<String, String>>> pending =
+            new EnumMap<DataType, List<Map<String, String>>>(DataType.class);
+    private final List<FileChannel> pendingMedia = new ArrayList<FileChannel>();
+    private final List<File> pendingMediaFiles = new ArrayList<File>();
+
+    ColumnarArchive(File dir) {
+        super(dir);
+    }
+
+    public static File getDefaultDir() {
+        return new File(new File(Environment.getExternalStorageDirectory(), LocalArchive.DIR_NAME), DIR_NAME);
+    }
+
+    @Override
+    public void append(String folder, ConversionResult result) throws IOException, MessagingException {
+        List<Map<String, String>> rows = pending.get(result.type);
+        if (rows == null) {
+            rows = new ArrayList<Map<String, String>>();
+            pending.put(result.type, rows);
+        }
+        for (int i = 0; i < result.mapList.size(); i++) {
+            final Map<String, String> row = new HashMap<String, String>(result.mapList.get(i));
+            switch (result.type) {
+                case MMS:
+                case WHATSAPP:
+                    row.put(MEDIA, writeMedia(result.messageList.get(i)));
+                    break;
+            }
+            rows.add(row);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            for (FileChannel channel : pendingMedia) {
+                channel.force(false);
+                channel.close();
+            }
+            pendingMedia.clear();
+            pendingMediaFiles.clear();
+
+            for (Map.Entry<DataType, List<Map<String, String>>> entry : pending.entrySet()) {
+                if (!entry.getValue().isEmpty()) writeSegment(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Discards rows which have not been flushed, they get exported again by the next backup.
+     */
+    @Override
+    public void close() {
+        pending.clear();
+        for (FileChannel channel : pendingMedia) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing media", e);
+            }
+        }
+        for (File file : pendingMediaFiles) {
+            if (!file.delete()) Log.w(TAG, "could not delete " + file);
+        }
+        pendingMedia.clear();
+        pendingMediaFiles.clear();
+    }
+
+    private String writeMedia(Message message) throws IOException, MessagingException {
+        final File mediaDir = new File(getDir(), "media");
+        if (!mediaDir.isDirectory() && !mediaDir.mkdirs()) throw new IOException("could not create " + mediaDir);
+
+        final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+        final String name = getFileName(messageId != null ? messageId : String.valueOf(System.nanoTime())) + ".eml";
+        final File file = new File(mediaDir, name);
+        final FileChannel channel = new FileOutputStream(file).getChannel();
+        pendingMedia.add(channel);
+        pendingMediaFiles.add(file);
+
+        final Map<Integer, BodyPart> replaced = storeAttachments(message);
+        try {
+            final byte[] data = toBytes(message);
+            write(channel, data, data.length);
+        } finally {
+            restoreAttachments(message, replaced);
+        }
+        return name;
+    }
+
+    /**
+     * Stores the attachments of a message in blobs/ and temporarily replaces them with references.
+     * @return the replaced parts by position, to be put back with {@link #restoreAttachments}
+     */
+    private Map<Integer, BodyPart> storeAttachments(Message message) throws IOException, MessagingException {
+        final Map<Integer, BodyPart> replaced = new HashMap<Integer, BodyPart>();
+        if (!(message.getBody() instanceof Multipart)) return replaced;
+
+        final Multipart multipart = (Multipart) message.getBody();
+        for (int i = 0; i < multipart.getCount(); i++) {
+            final BodyPart part = multipart.getBodyPart(i);
+            final Attachment.Digest digest = Attachment.getDigest(part);
+            if (digest == null || digest.size < AttachmentStore.MIN_REFERENCE_SIZE) continue;
+
+            writeBlob(digest, part);
+            if (!Attachment.isReference(part)) {
+                multipart.removeBodyPart(part);
+                multipart.addBodyPart(Attachment.createReferencePart(part, digest, null), i);
+                replaced.put(i, part);
+            }
+        }
+        return replaced;
+    }
+
+    private static void restoreAttachments(Message message, Map<Integer, BodyPart> replaced)
+            throws MessagingException {
+        if (replaced.isEmpty()) return;
+
+        final Multipart multipart = (Multipart) message.getBody();
+        for (Map.Entry<Integer, BodyPart> entry : replaced.entrySet()) {
+            multipart.removeBodyPart(multipart.getBodyPart(entry.getKey()));
+            multipart.addBodyPart(entry.getValue(), entry.getKey());
+        }
+    }
+
+    private void writeBlob(Attachment.Digest digest, BodyPart part) throws IOException, MessagingException {
+        final File blobDir = new File(getDir(), "blobs");
+        if (!blobDir.isDirectory() && !blobDir.mkdirs()) throw new IOException("could not create " + blobDir);
+
+        final File blob = new File(blobDir, digest.sha1);
+        // a blob cut short by an interrupted run gets written again
+        if (blob.length() == digest.size) return;
+
+        final InputStream in = Attachment.getContent(part);
+        if (in == null) return;
+        final FileChannel channel = new FileOutputStream(blob).getChannel();
+        pendingMedia.add(channel);
+        pendingMediaFiles.add(blob);
+        try {
+            IOUtils.copyLarge(in, Channels.newOutputStream(channel));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeSegment(DataType type, List<Map<String, String>> rows) throws IOException {
+        final byte[] segment = ColumnarSegment.encode(rows);
+        long minDate = Long.MAX_VALUE, maxDate = Long.MIN_VALUE;
+        for (Map<String, String> row : rows) {
+            final long date = getDate(row);
+            if (date < minDate) minDate = date;
+            if (date > maxDate) maxDate = date;
+        }
+
+        final RandomAccessFile data = new RandomAccessFile(new File(getDir(), getName(type) + ".seg"), "rw");
+        final RandomAccessFile index = new RandomAccessFile(new File(getDir(), getName(type) + ".idx"), "rw");
+        try {
+            // drop anything left behind by an interrupted flush
+            final long entries = index.length() / ENTRY_SIZE;
+            final long offset = entries > 0 ? end(index, entries - 1) : 0;
+            index.setLength(entries * ENTRY_SIZE);
+            data.setLength(offset);
+
+            final FileChannel dataChannel = data.getChannel();
+            dataChannel.position(offset);
+            write(dataChannel, segment, segment.length);
+            dataChannel.force(false);
+
+            final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(offset).putInt(segment.length).putInt(rows.size()).putLong(minDate).putLong(maxDate);
+            entry.flip();
+            final FileChannel indexChannel = index.getChannel();
+            indexChannel.position(entries * ENTRY_SIZE);
+            while (entry.hasRemaining()) indexChannel.write(entry);
+            indexChannel.force(false);
+
+            if (LOCAL_LOGV) Log.v(TAG, "wrote " + type + " segment (" + rows.size() + " rows, " + segment.length + " bytes)");
+        } finally {
+            data.close();
+            index.close();
+        }
+    }
+
+    private static long end(RandomAccessFile index, long entry) throws IOException {
+        index.seek(entry * ENTRY_SIZE);
+        return index.readLong() + index.readInt();
+    }
+
+    private static long getDate(Map<String, String> row) {
+        try {
+            final String date = row.get(DATE);
+            return date == null ? 0 : Long.parseLong(date);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String getName(DataType type) {
+        return type.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public static class Segment {
+        public final long offset;
+        public final int length;
+        public final int rows;
+        public final long minDate, maxDate;
+
+        Segment(long offset, int length, int rows, long minDate, long maxDate) {
+            this.offset = offset;
+            this.length = length;
+            this.rows = rows;
+            this.minDate = minDate;
+            this.maxDate = maxDate;
+        }
+    }
+
+    /**
+     * Reads rows back from an archive, segment by segment.
+     */
+    public static class Reader {
+        private final File dir;
+
+        public Reader(File dir) {
+            this.dir = dir;
+        }
+
+        public boolean exists() {
+            return dir.isDirectory();
+        }
+
+        /**
+         * @param since only return segments containing rows with a date &gt;= since
+         */
+        public List<Segment> getSegments(DataType type, long since) throws IOException {
+            final List<Segment> segments = new ArrayList<Segment>();
+            final File file = new File(dir, getName(type) + ".idx");
+            if (!file.exists()) return segments;
+
+            final RandomAccessFile index = new RandomAccessFile(file, "r");
+            try {
+                final long entries = index.length() / ENTRY_SIZE;
+                for (long i = 0; i < entries; i++) {
+                    final Segment segment = new Segment(index.readLong(), index.readInt(), index.readInt(),
+                            index.readLong(), index.readLong());
+                    if (segment.maxDate >= since) segments.add(segment);
+                }
+            } finally {
+                index.close();
+            }
+            return segments;
+        }
+
+        public List<Map<String, String>> read(DataType type, Segment segment) throws IOException {
+            final RandomAccessFile data = new RandomAccessFile(new File(dir, getName(type) + ".seg"), "r");
+            try {
+                final byte[] bytes = new byte[segment.length];
+                data.seek(segment.offset);
+                data.readFully(bytes);
+                return ColumnarSegment.decode(bytes);
+            } finally {
+                data.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.zegoggles.smssync.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes a group of rows column by column. Numeric columns where all rows are set get
+ * delta encoded, columns with many repeated values (addresses, types, flags) are
+ * dictionary encoded and everything else is stored as plain strings. The encoded segment
+ * is deflated as a whole, so the values of each column (e.g. message bodies) get compressed
+ * as one block.
+ */
+class ColumnarSegment {
+    private static final int VERSION = 1;
+
+    private static final int DELTA = 1;
+    private static final int DICTIONARY = 2;
+    private static final int PLAIN = 3;
+
+    private ColumnarSegment() {
+    }
+
+    static byte[] encode(List<Map<String, String>> rows) throws IOException {
+        final Set<String> columns = new LinkedHashSet<String>();
+        for (Map<String, String> row : rows) {
+            columns.addAll(row.keySet());
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        writeVarInt(out, VERSION);
+        writeVarInt(out, rows.size());
+        writeVarInt(out, columns.size());
+        for (String column : columns) {
+            final List<String> values = new ArrayList<String>(rows.size());
+            for (Map<String, String> row : rows) {
+                values.add(row.get(column));
+            }
+            writeString(out, column);
+
+            final long[] numbers = toNumbers(values);
+            if (numbers != null) {
+                out.write(DELTA);
+                long previous = 0;
+                for (long n : numbers) {
+                    writeVarLong(out, zigZag(n - previous));
+                    previous = n;
+                }
+            } else {
+                final Map<String, Integer> dictionary = getDictionary(values);
+                if (dictionary != null) {
+                    out.write(DICTIONARY);
+                    writeVarInt(out, dictionary.size());
+                    for (String value : dictionary.keySet()) {
+                        writeString(out, value);
+                    }
+                    for (String value : values) {
+                        writeVarInt(out, value == null ? 0 : dictionary.get(value) + 1);
+                    }
+                } else {
+                    out.write(PLAIN);
+                    for (String value : values) {
+                        writeString(out, value);
+                    }
+                }
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static List<Map<String, String>> decode(byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+        try {
+            final int version = readVarInt(in);
+            if (version != VERSION) throw new IOException("unsupported version " + version);
+
+            final int rowCount = readVarInt(in);
+            final int columnCount = readVarInt(in);
+            final List<Map<String, String>> rows = new ArrayList<Map<String, String>>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                rows.add(new HashMap<String, String>(columnCount));
+            }
+            for (int c = 0; c < columnCount; c++) {
+                final String column = readString(in);
+                final int encoding = in.read();
+                switch (encoding) {
+                    case DELTA:
+                        long previous = 0;
+                        for (Map<String, String> row : rows) {
+                            previous += unZigZag(readVarLong(in));
+                            row.put(column, String.valueOf(previous));
+                        }
+                        break;
+                    case DICTIONARY:
+                        final String[] dictionary = new String[readVarInt(in)];
+                        for (int i = 0; i < dictionary.length; i++) {
+                            dictionary[i] = readString(in);
+                        }
+                        for (Map<String, String> row : rows) {
+                            final int index = readVarInt(in);
+                            if (index > 0) row.put(column, dictionary[index - 1]);
+                        }
+                        break;
+                    case PLAIN:
+                        for (Map<String, String> row : rows) {
+                            final String value = readString(in);
+                            if (value != null) row.put(column, value);
+                        }
+                        break;
+                    default:
+                        throw new IOException("unknown encoding " + encoding);
+                }
+            }
+            return rows;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long[] toNumbers(List<String> values) {
+        final long[] numbers = new long[values.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            final String value = values.get(i);
+            // don't change the representation of values like "007"
+            if (value == null || value.length() == 0 || value.length() > 18 ||
+                (value.length() > 1 && value.charAt(0) == '0')) {
+                return null;
+            }
+            try {
+                numbers[i] = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (!String.valueOf(numbers[i]).equals(value)) return null;
+        }
+        return numbers;
+    }
+
+    /**
+     * @return the distinct values with their indices, or null if a dictionary would not pay off
+     */
+    private static Map<String, Integer> getDictionary(List<String> values) {
+        final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        for (String value : values) {
+            if (value != null && !dictionary.containsKey(value)) {
+                dictionary.put(value, dictionary.size());
+                if (dictionary.size() > values.size() / 2) return null;
+            }
+        }
+        return dictionary;
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, 0);
+        } else {
+            final byte[] bytes = s.getBytes("UTF-8");
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = readVarInt(in);
+        if (length == 0) return null;
+        final byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long zigZag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unZigZag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarInt(OutputStream out, int n) throws IOException {
+        writeVarLong(out, n);
+    }
+
+    private static void writeVarLong(OutputStream out, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            out.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) throw new IOException("unexpected end of segment");
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("malformed varint");
+    }
+}
@@ -6,11 +6,13 @@ import android.os.Build;
 import android.preference.PreferenceManager;
 import com.zegoggles.smssync.R;
 
+import java.util.EnumSet;
+
 public enum DataType {
-    SMS     (R.string.sms,      R.string.sms_with_field,     PreferenceKeys.IMAP_FOLDER,          Defaults.SMS_FOLDER,     PreferenceKeys.BACKUP_SMS,      Defaults.SMS_BACKUP_ENABLED,     PreferenceKeys.RESTORE_SMS,     Defaults.SMS_RESTORE_ENABLED,     PreferenceKeys.MAX_SYNCED_DATE_SMS,      -1),
-    MMS     (R.string.mms,      R.string.mms_with_field,     PreferenceKeys.IMAP_FOLDER,          Defaults.SMS_FOLDER,     PreferenceKeys.BACKUP_MMS,      Defaults.MMS_BACKUP_ENABLED,     null,                           Defaults.MMS_RESTORE_ENABLED,     PreferenceKeys.MAX_SYNCED_DATE_MMS,      Build.VERSION_CODES.ECLAIR),
-    CALLLOG (R.string.calllog,  R.string.call_with_field,    PreferenceKeys.IMAP_FOLDER_CALLLOG,  Defaults.CALLLOG_FOLDER, PreferenceKeys.BACKUP_CALLLOG,  Defaults.CALLLOG_BACKUP_ENABLED, PreferenceKeys.RESTORE_CALLLOG, Defaults.CALLLOG_RESTORE_ENABLED, PreferenceKeys.MAX_SYNCED_DATE_CALLLOG,  -1),
-    WHATSAPP(R.string.whatsapp, R.string.whatsapp_with_field,PreferenceKeys.IMAP_FOLDER_WHATSAPP, Defaults.WHATAPP_FOLDER, PreferenceKeys.BACKUP_WHATSAPP, Defaults.WHATSAPP_BACKUP_ENABLED, null,                          Defaults.WHATSAPP_RESTORE_ENABLED,PreferenceKeys.MAX_SYNCED_DATE_WHATSAPP, -1);
+    SMS     (R.string.sms,      R.string.sms_with_field,     PreferenceKeys.IMAP_FOLDER,          Defaults.SMS_FOLDER,     PreferenceKeys.BACKUP_SMS,      Defaults.SMS_BACKUP_ENABLED,     PreferenceKeys.RESTORE_SMS,     Defaults.SMS_RESTORE_ENABLED,     PreferenceKeys.MAX_SYNCED_DATE_SMS,      PreferenceKeys.MAX_RESTORED_DATE_SMS,     -1),
+    MMS     (R.string.mms,      R.string.mms_with_field,     PreferenceKeys.IMAP_FOLDER,          Defaults.SMS_FOLDER,     PreferenceKeys.BACKUP_MMS,      Defaults.MMS_BACKUP_ENABLED,     null,                           Defaults.MMS_RESTORE_ENABLED,     PreferenceKeys.MAX_SYNCED_DATE_MMS,      null,                                     Build.VERSION_CODES.ECLAIR),
+    CALLLOG (R.string.calllog,  R.string.call_with_field,    PreferenceKeys.IMAP_FOLDER_CALLLOG,  Defaults.CALLLOG_FOLDER, PreferenceKeys.BACKUP_CALLLOG,  Defaults.CALLLOG_BACKUP_ENABLED, PreferenceKeys.RESTORE_CALLLOG, Defaults.CALLLOG_RESTORE_ENABLED, PreferenceKeys.MAX_SYNCED_DATE_CALLLOG,  PreferenceKeys.MAX_RESTORED_DATE_CALLLOG, -1),
+    WHATSAPP(R.string.whatsapp, R.string.whatsapp_with_field,PreferenceKeys.IMAP_FOLDER_WHATSAPP, Defaults.WHATAPP_FOLDER, PreferenceKeys.BACKUP_WHATSAPP, Defaults.WHATSAPP_BACKUP_ENABLED, null,                          Defaults.WHATSAPP_RESTORE_ENABLED,PreferenceKeys.MAX_SYNCED_DATE_WHATSAPP, null,                                     -1);
 
     public final int resId;
     public final int withField;
@@ -22,6 +24,7 @@ public enum DataType {
     public final boolean backupEnabledByDefault;
     public final boolean restoreEnabledByDefault;
     private final String maxSyncedPreference;
+    private final String maxRestoredPreference;
 
     private DataType(int resId,
                      int withField,
@@ -32,6 +35,7 @@ public enum DataType {
                      String restoreEnabledPreference,
                      boolean restoreEnabledByDefault,
                      String maxSyncedPreference,
+                     String maxRestoredPreference,
                      int minSdkVersion) {
         this.resId = resId;
         this.withField = withField;
@@ -42,6 +46,7 @@ public enum DataType {
         this.restoreEnabledPreference = restoreEnabledPreference;
         this.restoreEnabledByDefault = restoreEnabledByDefault;
         this.maxSyncedPreference = maxSyncedPreference;
+        this.maxRestoredPreference = maxRestoredPreference;
         this.minSdkVersion = minSdkVersion;
     }
 
@@ -79,6 +84,47 @@ public enum DataType {
         return prefs(context).edit().putLong(maxSyncedPreference, max).commit();
     }
 
+    /**
+     * @return the date of the most recent message restored by an incremental restore
+     */
+    public long getMaxRestoredDate(Context context) {
+        if (maxRestoredPreference == null) return Defaults.MAX_SYNCED_DATE;
+        return prefs(context).getLong(maxRestoredPreference, Defaults.MAX_SYNCED_DATE);
+    }
+
+    public boolean setMaxRestoredDate(Context context, long max) {
+        return maxRestoredPreference != null &&
+                prefs(context).edit().putLong(maxRestoredPreference, max).commit();
+    }
+
+    /**
+     * Records that items of this type changed since the last backup.
+     */
+    public void setDirty(Context context) {
+        synchronized (DataType.class) {
+            prefs(context).edit().putBoolean(PreferenceKeys.DIRTY + name(), true).commit();
+        }
+    }
+
+    /**
+     * @return the types which changed since the last call
+     */
+    public static EnumSet<DataType> clearDirty(Context ctx) {
+        final EnumSet<DataType> dirty = EnumSet.noneOf(DataType.class);
+        synchronized (DataType.class) {
+            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+            final SharedPreferences.Editor editor = prefs.edit();
+            for (DataType type : values()) {
+                if (prefs.getBoolean(PreferenceKeys.DIRTY + type.name(), false)) {
+                    dirty.add(type);
+                    editor.remove(PreferenceKeys.DIRTY + type.name());
+                }
+            }
+            editor.commit();
+        }
+        return dirty;
+    }
+
     private SharedPreferences prefs(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context);
     }
@@ -94,6 +140,9 @@ public enum DataType {
         SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(ctx).edit();
         for (DataType type : values()) {
             editor.remove(type.maxSyncedPreference);
+            if (type.maxRestoredPreference != null) {
+                editor.remove(type.maxRestoredPreference);
+            }
         }
         editor.commit();
     }
@@ -115,6 +164,12 @@ public enum DataType {
         public static final String MAX_SYNCED_DATE_MMS = "max_synced_date_mms";
         public static final String MAX_SYNCED_DATE_CALLLOG = "max_synced_date_calllog";
         public static final String MAX_SYNCED_DATE_WHATSAPP = "max_synced_date_whatsapp";
+
+        public static final String MAX_RESTORED_DATE_SMS = "max_restored_date";
+        public static final String MAX_RESTORED_DATE_CALLLOG = "max_restored_date_calllog";
+
+        /** prefix, followed by the name of the type */
+        public static final String DIRTY = "dirty_";
     }
 
     /**
@@ -106,7 +106,7 @@ class HeaderGenerator {
      * @param type    the type
      * @return the message-id
      */
-    private static String createMessageId(Date sent, String address, int type) {
+    static String createMessageId(Date sent, String address, int type) {
         try {
             final MessageDigest digest = MessageDigest.getInstance("MD5");
 
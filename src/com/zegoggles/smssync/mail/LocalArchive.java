@@ -0,0 +1,95 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.preferences.LocalExportFormat;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A backup target on local storage. Messages are buffered and only guaranteed to be
+ * on disk after {@link #flush()}.
+ */
+public abstract class LocalArchive {
+    public static final String DIR_NAME = "SMSBackupPlus";
+
+    protected final File dir;
+
+    protected LocalArchive(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the archive configured in the preferences, or null if local export is disabled
+     * or the external storage is not available.
+     */
+    public static @Nullable LocalArchive get(Context context) {
+        final LocalExportFormat format = LocalExportFormat.getLocalExportFormat(context);
+        if (format == LocalExportFormat.NONE) return null;
+
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            Log.w(TAG, "external storage not mounted, skipping local export");
+            return null;
+        }
+        final File dir = new File(Environment.getExternalStorageDirectory(), DIR_NAME);
+        switch (format) {
+            case MBOX:    return new MboxArchive(dir);
+            case MAILDIR: return new MaildirArchive(dir);
+            case COMPACT: return new ColumnarArchive(new File(dir, ColumnarArchive.DIR_NAME));
+            default:      return null;
+        }
+    }
+
+    public abstract void append(String folder, ConversionResult result) throws IOException, MessagingException;
+
+    /**
+     * Writes all buffered messages and syncs them to disk.
+     */
+    public abstract void flush() throws IOException;
+
+    public abstract void close();
+
+    protected static String getFileName(String folder) {
+        return folder.replaceAll("[^\\w. -]", "_");
+    }
+
+    protected File getDir() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+        return dir;
+    }
+
+    /**
+     * @return the message in RFC822 format, with LF line endings
+     */
+    protected static byte[] toBytes(Message message) throws IOException, MessagingException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        final byte[] crlf = out.toByteArray();
+        final byte[] lf = new byte[crlf.length];
+        int n = 0;
+        for (int i = 0; i < crlf.length; i++) {
+            if (crlf[i] == '\r' && i + 1 < crlf.length && crlf[i + 1] == '\n') continue;
+            lf[n++] = crlf[i];
+        }
+        final byte[] result = new byte[n];
+        System.arraycopy(lf, 0, result, 0, n);
+        return result;
+    }
+
+    protected static void write(FileChannel channel, byte[] data, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.zegoggles.smssync.mail;
+
+import android.os.Process;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Stores messages in one Maildir per folder. Messages are buffered until the archive gets
+ * flushed, then appended to a journal in the Maildir, which is synced once, and delivered to
+ * new/ without syncing each file.
+ * <p/>
+ * The journal is kept until the next backup, which delivers any message missing or incomplete
+ * after a crash and then empties it.
+ * <p/>
+ * Journal format: file name (UTF), length (int), message.
+ */
+class MaildirArchive extends LocalArchive {
+    private static final String JOURNAL = ".smsbackup-journal";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static int sequence;
+
+    private final Map<String, Maildir> maildirs = new HashMap<String, Maildir>();
+
+    MaildirArchive(File dir) {
+        super(dir);
+    }
+
+    @Override
+    public void append(String folder, ConversionResult result) throws IOException, MessagingException {
+        final Maildir maildir = getMaildir(folder);
+        for (Message message : result.messageList) {
+            maildir.pending.add(new Pending(getUniqueName(), toBytes(message)));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        int flushed = 0;
+        for (Maildir maildir : maildirs.values()) {
+            if (maildir.pending.isEmpty()) continue;
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(maildir.journal), BUFFER_SIZE));
+            for (Pending p : maildir.pending) {
+                out.writeUTF(p.name);
+                out.writeInt(p.data.length);
+                out.write(p.data);
+            }
+            out.flush();
+            maildir.journal.force(false);
+
+            for (Pending p : maildir.pending) {
+                maildir.deliver(p.name, p.data);
+            }
+            flushed += maildir.pending.size();
+            maildir.pending.clear();
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "flushed " + flushed + " message(s)");
+    }
+
+    /**
+     * Discards messages which have not been flushed, they get exported again by the next backup.
+     */
+    @Override
+    public void close() {
+        for (Maildir maildir : maildirs.values()) {
+            try {
+                maildir.journal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing " + maildir.dir, e);
+            }
+        }
+        maildirs.clear();
+    }
+
+    private Maildir getMaildir(String folder) throws IOException {
+        Maildir maildir = maildirs.get(folder);
+        if (maildir == null) {
+            final File dir = new File(getDir(), getFileName(folder));
+            for (String sub : new String[] { "tmp", "new", "cur" }) {
+                final File subDir = new File(dir, sub);
+                if (!subDir.isDirectory() && !subDir.mkdirs()) throw new IOException("could not create " + subDir);
+            }
+            maildir = new Maildir(dir);
+            maildir.recover();
+            maildirs.put(folder, maildir);
+        }
+        return maildir;
+    }
+
+    /**
+     * @return a unique file name, see http://cr.yp.to/proto/maildir.html
+     */
+    private static synchronized String getUniqueName() {
+        final long now = System.currentTimeMillis();
+        return (now / 1000) + ".M" + (now % 1000) + "P" + Process.myPid() + "Q" + (++sequence) + ".smsbackup";
+    }
+
+    private static class Maildir {
+        final File dir;
+        final FileChannel journal;
+        final List<Pending> pending = new ArrayList<Pending>();
+
+        Maildir(File dir) throws IOException {
+            this.dir = dir;
+            this.journal = new RandomAccessFile(new File(dir, JOURNAL), "rw").getChannel();
+        }
+
+        /**
+         * Delivers the messages of the journal which did not make it to disk completely before
+         * the last backup ended, then empties the journal.
+         */
+        void recover() throws IOException {
+            if (journal.size() == 0) return;
+
+            final Set<String> read = new HashSet<String>();
+            final String[] cur = new File(dir, "cur").list();
+            if (cur != null) {
+                for (String name : cur) {
+                    // the flags get appended once a client has seen the message
+                    final int info = name.indexOf(':');
+                    read.add(info < 0 ? name : name.substring(0, info));
+                }
+            }
+
+            int recovered = 0;
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, JOURNAL))));
+            try {
+                while (true) {
+                    final String name;
+                    final byte[] data;
+                    try {
+                        name = in.readUTF();
+                        data = new byte[in.readInt()];
+                        in.readFully(data);
+                    } catch (EOFException e) {
+                        break; // the end, or a batch which was never synced
+                    }
+                    if (!read.contains(name) && new File(dir, "new/" + name).length() != data.length) {
+                        deliver(name, data);
+                        recovered++;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (recovered > 0) Log.i(TAG, "recovered " + recovered + " message(s) in " + dir);
+            journal.truncate(0);
+        }
+
+        void deliver(String name, byte[] data) throws IOException {
+            final File tmp = new File(dir, "tmp/" + name);
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(dir, "new/" + name))) throw new IOException("could not rename " + tmp);
+        }
+    }
+
+    private static class Pending {
+        final String name;
+        final byte[] data;
+
+        Pending(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
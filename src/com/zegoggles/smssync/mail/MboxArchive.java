@@ -0,0 +1,134 @@
+package com.zegoggles.smssync.mail;
+
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Appends messages to one mbox file (mboxrd) per folder.
+ */
+class MboxArchive extends LocalArchive {
+    /** buffered bytes per folder before they get written to the channel */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] FROM = "From ".getBytes();
+
+    private final Map<String, Mbox> files = new HashMap<String, Mbox>();
+    private final SimpleDateFormat asctime = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.ENGLISH);
+
+    MboxArchive(File dir) {
+        super(dir);
+        asctime.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public void append(String folder, ConversionResult result) throws IOException, MessagingException {
+        final Mbox mbox = getMbox(folder);
+        for (Message message : result.messageList) {
+            final Date date = message.getSentDate();
+            mbox.buffer.write(("From MAILER-DAEMON " + asctime.format(date == null ? new Date() : date) + "\n").getBytes());
+            escape(toBytes(message), mbox.buffer);
+            mbox.buffer.write('\n');
+        }
+        if (mbox.buffer.size() >= BUFFER_SIZE) mbox.writeBuffer();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Mbox mbox : files.values()) {
+            mbox.writeBuffer();
+            mbox.channel.force(false);
+            mbox.committed = mbox.channel.size();
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "flushed " + files.keySet());
+    }
+
+    /**
+     * Discards everything written since the last {@link #flush()}, those messages get exported
+     * again by the next backup.
+     */
+    @Override
+    public void close() {
+        for (Mbox mbox : files.values()) {
+            try {
+                mbox.channel.truncate(mbox.committed);
+                mbox.channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing mbox", e);
+            }
+        }
+        files.clear();
+    }
+
+    private Mbox getMbox(String folder) throws IOException {
+        Mbox mbox = files.get(folder);
+        if (mbox == null) {
+            final File file = new File(getDir(), getFileName(folder) + ".mbox");
+            final FileChannel channel = new FileOutputStream(file, true).getChannel();
+            mbox = new Mbox(channel, channel.size());
+            files.put(folder, mbox);
+        }
+        return mbox;
+    }
+
+    /**
+     * Quotes lines matching ^>*From with an additional &gt; (mboxrd), and makes sure the
+     * message ends with a newline.
+     */
+    static void escape(byte[] message, ByteArrayOutputStream out) {
+        int lineStart = 0;
+        for (int i = 0; i <= message.length; i++) {
+            if (i == message.length || message[i] == '\n') {
+                if (lineStart < message.length) {
+                    if (isFromLine(message, lineStart)) out.write('>');
+                    out.write(message, lineStart, i - lineStart);
+                    out.write('\n');
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private static boolean isFromLine(byte[] message, int start) {
+        int i = start;
+        while (i < message.length && message[i] == '>') i++;
+        if (message.length - i < FROM.length) return false;
+        for (int j = 0; j < FROM.length; j++) {
+            if (message[i + j] != FROM[j]) return false;
+        }
+        return true;
+    }
+
+    private static class Mbox {
+        final FileChannel channel;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        /** size of the file after the last flush */
+        long committed;
+
+        Mbox(FileChannel channel, long committed) {
+            this.channel = channel;
+            this.committed = committed;
+        }
+
+        void writeBuffer() throws IOException {
+            if (buffer.size() == 0) return;
+            final byte[] data = buffer.toByteArray();
+            write(channel, data, data.length);
+            buffer.reset();
+        }
+    }
+}
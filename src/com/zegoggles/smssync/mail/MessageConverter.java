@@ -34,11 +34,14 @@ import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.contacts.GroupContactIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.utils.PipelineMetrics;
 import com.zegoggles.smssync.utils.ThreadHelper;
 import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -58,6 +61,8 @@ public class MessageConverter {
     private final boolean mMarkAsRead;
     private final PersonLookup mPersonLookup;
     private final MessageGenerator mMessageGenerator;
+    private final @Nullable AttachmentStore mAttachmentStore;
+    private @Nullable PipelineMetrics mMetrics;
 
     public MessageConverter(Context ctx, String userEmail) {
         mContext = ctx;
@@ -79,12 +84,14 @@ public class MessageConverter {
                 if (LOCAL_LOGV) Log.v(TAG, "whitelisted ids for backup: " + allowedIds);
         }
 
+        mAttachmentStore = AttachmentStore.get(ctx);
         mMessageGenerator = new MessageGenerator(mContext,
                 new Address(userEmail),
                 new HeaderGenerator(referenceUid, Preferences.getVersion(mContext, true)),
                 mPersonLookup,
                 Preferences.getMailSubjectPrefix(mContext),
-                allowedIds);
+                allowedIds,
+                mAttachmentStore);
     }
 
     public ConversionResult cursorToMessages(final Cursor cursor,
@@ -93,6 +100,7 @@ public class MessageConverter {
         final String[] columns = cursor.getColumnNames();
         final ConversionResult result = new ConversionResult(dataType);
         do {
+            long started = PipelineMetrics.start();
             final Map<String, String> msgMap = new HashMap<String, String>(columns.length);
             for (int i = 0; i < columns.length; i++) {
                 String value;
@@ -105,6 +113,10 @@ public class MessageConverter {
                 }
                 msgMap.put(columns[i], value);
             }
+            if (mMetrics != null) {
+                mMetrics.stop(PipelineMetrics.Stage.ROW_READ, started);
+                started = PipelineMetrics.start();
+            }
             final Message m;
             switch (dataType) {
                 case WHATSAPP:
@@ -112,6 +124,7 @@ public class MessageConverter {
                 default:
                     m = mMessageGenerator.messageForDataType(msgMap, dataType); break;
             }
+            if (mMetrics != null) mMetrics.stop(PipelineMetrics.Stage.CONVERSION, started);
             if (m != null) {
                 m.setFlag(Flag.SEEN, mMarkAsRead);
 
@@ -143,32 +156,28 @@ public class MessageConverter {
                 if (is == null) {
                     throw new MessagingException("body.getInputStream() is null for " + message.getBody());
                 }
-                final String body = IOUtils.toString(is);
-                final String address = Headers.get(message, Headers.ADDRESS);
-                values.put(SmsConsts.BODY, body);
-                values.put(SmsConsts.ADDRESS, address);
-                values.put(SmsConsts.TYPE, Headers.get(message, Headers.TYPE));
-                values.put(SmsConsts.PROTOCOL, Headers.get(message, Headers.PROTOCOL));
-                values.put(SmsConsts.SERVICE_CENTER, Headers.get(message, Headers.SERVICE_CENTER));
-                values.put(SmsConsts.DATE, Headers.get(message, Headers.DATE));
-                values.put(SmsConsts.STATUS, Headers.get(message, Headers.STATUS));
-                values.put(SmsConsts.THREAD_ID, threadHelper.getThreadId(mContext, address));
-                values.put(SmsConsts.READ,
-                        Preferences.getMarkAsReadOnRestore(mContext) ? "1" : Headers.get(message, Headers.READ));
+                final String body;
+                try {
+                    body = IOUtils.toString(is);
+                } finally {
+                    // releases the temporary file backing the body
+                    IOUtils.closeQuietly(is);
+                }
+                putSms(values, body,
+                        Headers.get(message, Headers.ADDRESS),
+                        Headers.get(message, Headers.TYPE),
+                        Headers.get(message, Headers.PROTOCOL),
+                        Headers.get(message, Headers.SERVICE_CENTER),
+                        Headers.get(message, Headers.DATE),
+                        Headers.get(message, Headers.STATUS),
+                        Headers.get(message, Headers.READ));
                 break;
             case CALLLOG:
-                values.put(CallLog.Calls.NUMBER, Headers.get(message, Headers.ADDRESS));
-                values.put(CallLog.Calls.TYPE, Integer.valueOf(Headers.get(message, Headers.TYPE)));
-                values.put(CallLog.Calls.DATE, Headers.get(message, Headers.DATE));
-                values.put(CallLog.Calls.DURATION, Long.valueOf(Headers.get(message, Headers.DURATION)));
-                values.put(CallLog.Calls.NEW, 0);
-
-                PersonRecord record = mPersonLookup.lookupPerson(Headers.get(message, Headers.ADDRESS));
-                if (!record.unknown) {
-                    values.put(CallLog.Calls.CACHED_NAME, record.name);
-                    values.put(CallLog.Calls.CACHED_NUMBER_TYPE, -2);
-                }
-
+                putCallLog(values,
+                        Headers.get(message, Headers.ADDRESS),
+                        Headers.get(message, Headers.TYPE),
+                        Headers.get(message, Headers.DATE),
+                        Headers.get(message, Headers.DURATION));
                 break;
             default:
                 throw new MessagingException("don't know how to restore " + getDataType(message));
@@ -177,6 +186,70 @@ public class MessageConverter {
         return values;
     }
 
+    /**
+     * Creates restorable values from a raw provider row, as stored by {@link ColumnarArchive}.
+     */
+    public ContentValues rowToContentValues(DataType dataType, Map<String, String> row) throws MessagingException {
+        final ContentValues values = new ContentValues();
+        switch (dataType) {
+            case SMS:
+                if (row.get(SmsConsts.BODY) == null) throw new MessagingException("body is null");
+
+                putSms(values,
+                        row.get(SmsConsts.BODY),
+                        row.get(SmsConsts.ADDRESS),
+                        row.get(SmsConsts.TYPE),
+                        row.get(SmsConsts.PROTOCOL),
+                        row.get(SmsConsts.SERVICE_CENTER),
+                        row.get(SmsConsts.DATE),
+                        row.get(SmsConsts.STATUS),
+                        row.get(SmsConsts.READ));
+                break;
+            case CALLLOG:
+                putCallLog(values,
+                        row.get(CallLog.Calls.NUMBER),
+                        row.get(CallLog.Calls.TYPE),
+                        row.get(CallLog.Calls.DATE),
+                        row.get(CallLog.Calls.DURATION));
+                break;
+            default:
+                throw new MessagingException("don't know how to restore " + dataType);
+        }
+        return values;
+    }
+
+    private void putSms(ContentValues values, String body, String address, String type, String protocol,
+                        String serviceCenter, String date, String status, String read) {
+        values.put(SmsConsts.BODY, body);
+        values.put(SmsConsts.ADDRESS, address);
+        values.put(SmsConsts.TYPE, type);
+        values.put(SmsConsts.PROTOCOL, protocol);
+        values.put(SmsConsts.SERVICE_CENTER, serviceCenter);
+        values.put(SmsConsts.DATE, date);
+        values.put(SmsConsts.STATUS, status);
+        values.put(SmsConsts.THREAD_ID, threadHelper.getThreadId(mContext, address));
+        values.put(SmsConsts.READ, Preferences.getMarkAsReadOnRestore(mContext) ? "1" : read);
+    }
+
+    private void putCallLog(ContentValues values, String number, String type, String date, String duration)
+            throws MessagingException {
+        try {
+            values.put(CallLog.Calls.NUMBER, number);
+            values.put(CallLog.Calls.TYPE, Integer.valueOf(type));
+            values.put(CallLog.Calls.DATE, date);
+            values.put(CallLog.Calls.DURATION, Long.valueOf(duration));
+            values.put(CallLog.Calls.NEW, 0);
+        } catch (NumberFormatException e) {
+            throw new MessagingException("invalid call log entry", e);
+        }
+
+        PersonRecord record = mPersonLookup.lookupPerson(number);
+        if (!record.unknown) {
+            values.put(CallLog.Calls.CACHED_NAME, record.name);
+            values.put(CallLog.Calls.CACHED_NUMBER_TYPE, -2);
+        }
+    }
+
     public DataType getDataType(Message message) {
         final String dataTypeHeader = Headers.get(message, Headers.DATATYPE);
         final String typeHeader = Headers.get(message, Headers.TYPE);
@@ -206,7 +279,26 @@ public class MessageConverter {
         return sb.toString();
     }
 
+    /**
+     * @param metrics receives the timings of row reads, contact lookups and conversions
+     */
+    public void setMetrics(@Nullable PipelineMetrics metrics) {
+        mMetrics = metrics;
+        mPersonLookup.setMetrics(metrics);
+    }
+
     public PersonLookup getPersonLookup() {
         return mPersonLookup;
     }
+
+    /**
+     * @return the Message-ID the backup of an sms or call log entry gets
+     */
+    public static String getMessageId(long date, String address, int type) {
+        return HeaderGenerator.createMessageId(new Date(date), address, type);
+    }
+
+    public @Nullable AttachmentStore getAttachmentStore() {
+        return mAttachmentStore;
+    }
 }
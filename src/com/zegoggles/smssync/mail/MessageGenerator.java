@@ -43,19 +43,22 @@ class MessageGenerator {
     private final boolean mPrefix;
     private final GroupContactIds mAllowedIds;
     private final CallFormatter mCallFormatter;
+    private final @Nullable AttachmentStore mAttachmentStore;
 
     public MessageGenerator(Context context,
                             Address userAddress,
                             HeaderGenerator headerGenerator,
                             PersonLookup personLookup,
                             boolean mailSubjectPrefix,
-                            GroupContactIds allowedIds) {
+                            GroupContactIds allowedIds,
+                            @Nullable AttachmentStore attachmentStore) {
         mHeaderGenerator = headerGenerator;
         mUserAddress = userAddress;
         mContext = context;
         mPersonLookup = personLookup;
         mPrefix = mailSubjectPrefix;
         mAllowedIds = allowedIds;
+        mAttachmentStore = attachmentStore;
         mCallFormatter = new CallFormatter(mContext.getResources());
     }
 
@@ -167,7 +170,7 @@ class MessageGenerator {
         // deal with attachments
         MimeMultipart body = new MimeMultipart();
         for (BodyPart p : getBodyParts(Uri.withAppendedPath(msgRef, "part"))) {
-            body.addBodyPart(p);
+            body.addBodyPart(referenceIfStored(DataType.MMS, p));
         }
         msg.setBody(body);
         return msg;
@@ -248,7 +251,8 @@ class MessageGenerator {
             if (whatsapp.hasText()) {
                 body.addBodyPart(createTextPart(whatsapp.getFilteredText()));
             }
-            body.addBodyPart(createPartFromFile(whatsapp.getMedia().getFile(), whatsapp.getMedia().getMimeType()));
+            body.addBodyPart(referenceIfStored(DataType.WHATSAPP,
+                    createPartFromFile(whatsapp.getMedia().getFile(), whatsapp.getMedia().getMimeType())));
             msg.setBody(body);
         } else if (whatsapp.hasText()) {
             msg.setBody(new TextBody(whatsapp.getFilteredText()));
@@ -304,6 +308,29 @@ class MessageGenerator {
         return parts;
     }
 
+    /**
+     * @return a reference to an identical attachment uploaded before, or the part itself.
+     * Only parts with the size of a stored attachment get hashed here, the others are hashed
+     * while the message gets uploaded and added to the store afterwards.
+     */
+    private BodyPart referenceIfStored(DataType type, BodyPart part) throws MessagingException {
+        if (mAttachmentStore == null) return part;
+
+        final String folder = type.getFolder(mContext);
+        final long size = Attachment.getSize(part);
+        if (size < AttachmentStore.MIN_REFERENCE_SIZE || !mAttachmentStore.containsSize(folder, size)) {
+            return part;
+        }
+        final Attachment.Digest digest = Attachment.getDigest(part);
+        final String messageId = digest == null ? null : mAttachmentStore.getMessageId(folder, digest.sha1);
+        if (messageId != null) {
+            if (LOCAL_LOGV) Log.v(TAG, "referencing stored attachment " + digest.sha1 + " in " + messageId);
+            return Attachment.createReferencePart(part, digest, messageId);
+        } else {
+            return part;
+        }
+    }
+
     private String getSubject(DataType type, PersonRecord record) {
         return mPrefix ?
                 String.format(Locale.ENGLISH, "[%s] %s", type.getFolder(mContext), record.getName()) :
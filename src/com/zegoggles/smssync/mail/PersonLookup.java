@@ -9,6 +9,8 @@ import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
 import com.zegoggles.smssync.preferences.AddressStyle;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.LinkedHashMap;
 import java.util.Locale;
@@ -45,6 +47,7 @@ public class PersonLookup {
 
     private final AddressStyle mStyle;
     private final ContentResolver mResolver;
+    private @Nullable PipelineMetrics mMetrics;
 
     public PersonLookup(ContentResolver resolver, AddressStyle style) {
         mStyle = style;
@@ -52,6 +55,10 @@ public class PersonLookup {
         Log.d(TAG, String.format(Locale.ENGLISH, "using %s contacts API", NEW_CONTACT_API ? "new" : "old"));
     }
 
+    void setMetrics(@Nullable PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /* Look up a person */
     @SuppressWarnings("deprecation")
     public PersonRecord lookupPerson(final String address) {
@@ -62,6 +69,7 @@ public class PersonLookup {
             record.unknown = true;
             return record;
         } else if (!mPeopleCache.containsKey(address)) {
+            final long started = PipelineMetrics.start();
             Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
                     android.provider.Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
 
@@ -83,6 +91,7 @@ public class PersonLookup {
             mPeopleCache.put(address, record);
 
             if (c != null) c.close();
+            if (mMetrics != null) mMetrics.stop(PipelineMetrics.Stage.CONTACT_LOOKUP, started);
         }
         return mPeopleCache.get(address);
     }
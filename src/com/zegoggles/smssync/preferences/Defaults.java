@@ -27,4 +27,8 @@ class Defaults {
      */
     public static final boolean MARK_AS_READ = true;
     public static final boolean MARK_AS_READ_ON_RESTORE = true;
+    /**
+     * Default value for {@link Preferences#RESTORE_INCREMENTAL}.
+     */
+    public static final boolean RESTORE_INCREMENTAL = false;
 }
@@ -0,0 +1,23 @@
+package com.zegoggles.smssync.preferences;
+
+import android.content.Context;
+
+public enum LocalExportFormat {
+    NONE,
+    MBOX,
+    MAILDIR,
+    COMPACT;
+
+    private static final String LOCAL_EXPORT = "local_export";
+
+    public static LocalExportFormat getLocalExportFormat(Context ctx) {
+        return Preferences.getDefaultType(ctx, LOCAL_EXPORT, LocalExportFormat.class, LocalExportFormat.NONE);
+    }
+
+    /**
+     * @return true if backups also store a local copy, which works without IMAP account
+     */
+    public static boolean isEnabled(Context ctx) {
+        return getLocalExportFormat(ctx) != NONE;
+    }
+}
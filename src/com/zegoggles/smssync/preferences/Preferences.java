@@ -51,6 +51,9 @@ public class Preferences {
     private static final String REFERENCE_UID = "reference_uid";
     private static final String MAIL_SUBJECT_PREFIX = "mail_subject_prefix";
     private static final String RESTORE_STARRED_ONLY = "restore_starred_only";
+    private static final String RESTORE_INCREMENTAL = "restore_incremental";
+    private static final String RESTORE_FROM_LOCAL_ARCHIVE = "restore_from_local_archive";
+    private static final String ATTACHMENT_REFERENCES = "attachment_references";
     private static final String MARK_AS_READ = "mark_as_read";
     private static final String MARK_AS_READ_ON_RESTORE = "mark_as_read_on_restore";
     private static final String THIRD_PARTY_INTEGRATION = "third_party_integration";
@@ -87,6 +90,18 @@ public class Preferences {
         return prefs(ctx).getBoolean(RESTORE_STARRED_ONLY, false);
     }
 
+    public static boolean isRestoreIncremental(Context ctx) {
+        return prefs(ctx).getBoolean(RESTORE_INCREMENTAL, Defaults.RESTORE_INCREMENTAL);
+    }
+
+    public static boolean isRestoreFromLocalArchive(Context ctx) {
+        return prefs(ctx).getBoolean(RESTORE_FROM_LOCAL_ARCHIVE, false);
+    }
+
+    public static boolean isAttachmentReferences(Context ctx) {
+        return prefs(ctx).getBoolean(ATTACHMENT_REFERENCES, false);
+    }
+
     public static String getReferenceUid(Context ctx) {
         return prefs(ctx).getString(REFERENCE_UID, null);
     }
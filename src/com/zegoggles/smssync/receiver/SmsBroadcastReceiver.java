@@ -19,9 +19,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.LocalExportFormat;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.Alarms;
+import com.zegoggles.smssync.service.ProviderObserver;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -42,7 +45,7 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
 
     private void bootup(Context ctx) {
         if (Preferences.isEnableAutoSync(ctx) &&
-                AuthPreferences.isLoginInformationSet(ctx) &&
+                (AuthPreferences.isLoginInformationSet(ctx) || LocalExportFormat.isEnabled(ctx)) &&
                 !Preferences.isFirstBackup(ctx)) {
 
             Alarms.scheduleRegularBackup(ctx);
@@ -53,10 +56,11 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
 
     private void incomingSMS(Context ctx) {
         if (Preferences.isEnableAutoSync(ctx) &&
-                AuthPreferences.isLoginInformationSet(ctx) &&
+                (AuthPreferences.isLoginInformationSet(ctx) || LocalExportFormat.isEnabled(ctx)) &&
                 !Preferences.isFirstBackup(ctx)) {
 
-            Alarms.scheduleIncomingBackup(ctx);
+            // coalesced with the provider change caused by the message
+            ProviderObserver.trigger(ctx, DataType.SMS);
         } else {
             Log.i(TAG, "Received SMS but not set up to sync.");
         }
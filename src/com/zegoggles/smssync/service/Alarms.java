@@ -20,6 +20,8 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import com.zegoggles.smssync.preferences.Preferences;
 
@@ -27,41 +29,164 @@ import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.service.BackupType.*;
 
-
+/**
+ * All backups share a single alarm, armed for whichever of the next regular and the next
+ * incoming backup is due first. Incoming backups are debounced: each change postpones the
+ * backup by {@link #QUIET_PERIOD}, up to the incoming timeout after the first pending change.
+ */
 public class Alarms {
+    /** an incoming backup starts once no changes have been seen for this long */
+    static final long QUIET_PERIOD = 30 * 1000L;
 
-    public static long scheduleIncomingBackup(Context ctx) {
-        return scheduleBackup(ctx, Preferences.getIncomingTimeoutSecs(ctx), INCOMING, false);
+    private static final String REGULAR_DUE = "alarms_regular_due";
+    private static final String INCOMING_FIRST = "alarms_incoming_first";
+    private static final String INCOMING_DUE = "alarms_incoming_due";
+    private static final String INCOMING_EVENTS = "alarms_incoming_events";
+    private static final String TOTAL_TRIGGERS = "alarms_total_triggers";
+    private static final String TOTAL_COALESCED = "alarms_total_coalesced";
+
+    /**
+     * Records a change and schedules an incoming backup covering it.
+     * @return the time the backup is due, or -1 if none got scheduled
+     */
+    public static synchronized long scheduleIncomingBackup(Context ctx) {
+        final int timeout = Preferences.getIncomingTimeoutSecs(ctx);
+        if (!Preferences.isEnableAutoSync(ctx) || timeout <= 0) {
+            if (LOCAL_LOGV) Log.v(TAG, "Not scheduling incoming backup");
+            return -1;
+        }
+        final TriggerCoalescer coalescer = getCoalescer(ctx);
+        coalescer.onEvent(System.currentTimeMillis(), QUIET_PERIOD, timeout * 1000L);
+        prefs(ctx).edit()
+                .putLong(INCOMING_FIRST, coalescer.getFirst())
+                .putLong(INCOMING_DUE, coalescer.getDue())
+                .putInt(INCOMING_EVENTS, coalescer.getEvents())
+                .putInt(TOTAL_TRIGGERS, prefs(ctx).getInt(TOTAL_TRIGGERS, 0) + 1)
+                .commit();
+
+        if (LOCAL_LOGV) Log.v(TAG, coalescer.getEvents() + " change(s) pending");
+        return arm(ctx);
     }
 
-    public static long scheduleRegularBackup(Context ctx) {
-        return scheduleBackup(ctx, Preferences.getRegularTimeoutSecs(ctx), REGULAR, false);
+    public static synchronized long scheduleRegularBackup(Context ctx) {
+        final int inSeconds = Preferences.getRegularTimeoutSecs(ctx);
+        if (!Preferences.isEnableAutoSync(ctx) || inSeconds <= 0) {
+            if (LOCAL_LOGV) Log.v(TAG, "Not scheduling sync because auto sync is disabled.");
+            prefs(ctx).edit().remove(REGULAR_DUE).commit();
+            return -1;
+        }
+        final long atTime = System.currentTimeMillis() + (inSeconds * 1000l);
+        prefs(ctx).edit().putLong(REGULAR_DUE, atTime).commit();
+        arm(ctx);
+        return atTime;
     }
 
     public static long scheduleImmediateBackup(Context ctx) {
-        return scheduleBackup(ctx, -1, BROADCAST_INTENT, true);
+        return scheduleBackup(ctx, System.currentTimeMillis(), BROADCAST_INTENT);
+    }
+
+    /**
+     * Called when a backup starts. Pending changes are covered by it, whatever its type, so
+     * an incoming backup which is due later than a regular one merges into the regular backup.
+     * @return the number of changes covered by the backup
+     */
+    static synchronized int backupStarted(Context ctx) {
+        final TriggerCoalescer coalescer = getCoalescer(ctx);
+        final int covered = coalescer.reset();
+        if (covered > 0) {
+            prefs(ctx).edit()
+                    .remove(INCOMING_FIRST)
+                    .remove(INCOMING_DUE)
+                    .remove(INCOMING_EVENTS)
+                    .putInt(TOTAL_COALESCED, prefs(ctx).getInt(TOTAL_COALESCED, 0) + covered - 1)
+                    .commit();
+        }
+        return covered;
+    }
+
+    /**
+     * Called when a backup has finished, re-arms the alarm for the next pending backup, which
+     * might have been replaced by the one which just ran.
+     */
+    static synchronized long backupFinished(Context ctx) {
+        return Preferences.isEnableAutoSync(ctx) ? arm(ctx) : -1;
     }
 
-    public static void cancel(Context ctx) {
+    /**
+     * @return the number of changes which got scheduled as incoming backups
+     */
+    public static int getTotalTriggers(Context ctx) {
+        return prefs(ctx).getInt(TOTAL_TRIGGERS, 0);
+    }
+
+    /**
+     * @return the number of changes which did not need a backup of their own
+     */
+    public static int getTotalCoalesced(Context ctx) {
+        return prefs(ctx).getInt(TOTAL_COALESCED, 0);
+    }
+
+    public static synchronized void cancel(Context ctx) {
         getAlarmManager(ctx).cancel(createPendingIntent(ctx, UNKNOWN));
+        prefs(ctx).edit()
+                .remove(REGULAR_DUE)
+                .remove(INCOMING_FIRST)
+                .remove(INCOMING_DUE)
+                .remove(INCOMING_EVENTS)
+                .commit();
     }
 
-    private static long scheduleBackup(Context ctx, int inSeconds, BackupType backupType, boolean force) {
-        if (LOCAL_LOGV)
-            Log.v(TAG, "scheduleBackup(" + ctx + ", " + inSeconds + ", " + backupType + ", " + force + ")");
+    /**
+     * Arms the alarm for the backup which is due first.
+     * @return the time the backup is due, or -1 if no backup is pending
+     */
+    private static long arm(Context ctx) {
+        final long now = System.currentTimeMillis();
+        final TriggerCoalescer coalescer = getCoalescer(ctx);
+        long regular = prefs(ctx).getLong(REGULAR_DUE, -1);
+        if (regular >= 0 && regular < now) {
+            // skipped because another backup was running, or replaced by a backup which ran
+            // after it was due, either way the items have been backed up since
+            regular = now + Preferences.getRegularTimeoutSecs(ctx) * 1000L;
+            prefs(ctx).edit().putLong(REGULAR_DUE, regular).commit();
+        }
 
-        if (force || (Preferences.isEnableAutoSync(ctx) && inSeconds > 0)) {
-            final long atTime = System.currentTimeMillis() + (inSeconds * 1000l);
-            getAlarmManager(ctx).set(AlarmManager.RTC_WAKEUP, atTime, createPendingIntent(ctx, backupType));
-            if (LOCAL_LOGV)
-                Log.v(TAG, "Scheduled backup due " + (inSeconds > 0 ? "in " + inSeconds + " seconds" : "now"));
-            return atTime;
+        if (coalescer.isPending() && (regular < 0 || coalescer.getDue() < regular)) {
+            return scheduleBackup(ctx, Math.max(now, coalescer.getDue()), INCOMING);
+        } else if (regular >= 0) {
+            if (coalescer.isPending() && LOCAL_LOGV) {
+                Log.v(TAG, "merging " + coalescer.getEvents() + " pending change(s) with regular backup");
+            }
+            return scheduleBackup(ctx, regular, REGULAR);
         } else {
-            if (LOCAL_LOGV) Log.v(TAG, "Not scheduling sync because auto sync is disabled.");
             return -1;
         }
     }
 
+    private static long scheduleBackup(Context ctx, long atTime, BackupType backupType) {
+        if (LOCAL_LOGV) Log.v(TAG, "scheduleBackup(" + ctx + ", " + atTime + ", " + backupType + ")");
+
+        // all backup types share one PendingIntent, this replaces any other scheduled backup
+        getAlarmManager(ctx).set(AlarmManager.RTC_WAKEUP, atTime, createPendingIntent(ctx, backupType));
+        if (LOCAL_LOGV) {
+            final long inSeconds = (atTime - System.currentTimeMillis()) / 1000;
+            Log.v(TAG, "Scheduled " + backupType + " backup due " + (inSeconds > 0 ? "in " + inSeconds + " seconds" : "now"));
+        }
+        return atTime;
+    }
+
+    private static TriggerCoalescer getCoalescer(Context ctx) {
+        final SharedPreferences prefs = prefs(ctx);
+        return new TriggerCoalescer(
+                prefs.getLong(INCOMING_FIRST, -1),
+                prefs.getLong(INCOMING_DUE, -1),
+                prefs.getInt(INCOMING_EVENTS, 0));
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return PreferenceManager.getDefaultSharedPreferences(ctx);
+    }
+
     private static AlarmManager getAlarmManager(Context ctx) {
         return (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
     }
@@ -2,9 +2,11 @@ package com.zegoggles.smssync.service;
 
 import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import org.jetbrains.annotations.Nullable;
 
 public class BackupConfig {
-    public final BackupImapStore imap;
+    /** null if only the local copy gets written */
+    public final @Nullable BackupImapStore imap;
     public final boolean skip;
     public final int tries;
 
@@ -13,7 +15,7 @@ public class BackupConfig {
     public final int maxMessagePerRequest;
     public final BackupType backupType;
 
-    public BackupConfig(BackupImapStore imap,
+    public BackupConfig(@Nullable BackupImapStore imap,
                         int tries,
                         boolean skip,
                         int maxItemsPerSync,
@@ -36,6 +36,26 @@ public class BackupItemsFetcher {
         }
     }
 
+    /**
+     * @return the rows to fingerprint for {@link ChangeDetector}, or null if not supported
+     */
+    public @Nullable Cursor getFingerprintItems(DataType dataType, ContactGroup group, long upTo) {
+        if (!dataType.isBackupEnabled(context)) return null;
+        return performQuery(queryBuilder.buildFingerprintQueryForDataType(dataType, upTo, group));
+    }
+
+    /**
+     * @return (date, address, type) of all items up to the given date, see
+     * {@link com.zegoggles.smssync.mail.MessageConverter#getMessageId}
+     */
+    public @Nullable Cursor getMessageIdItems(DataType dataType, ContactGroup group, long upTo) {
+        return performQuery(queryBuilder.buildMessageIdQueryForDataType(dataType, upTo, group));
+    }
+
+    public @Nullable Cursor getItemsForDateRange(DataType dataType, ContactGroup group, long from, long to) {
+        return performQuery(queryBuilder.buildRangeQueryForDataType(dataType, from, to, group));
+    }
+
     public long getMaxData(DataType dataType) {
         Cursor cursor = performQuery(queryBuilder.buildMaxQueryForDataType(dataType));
         try {
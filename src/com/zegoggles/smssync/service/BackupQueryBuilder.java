@@ -34,6 +34,25 @@ class BackupQueryBuilder {
         CallLog.Calls.TYPE
     };
 
+    // columns hashed by ChangeDetector: _id, date, type, read
+    private static final String[] SMS_FINGERPRINT_PROJECTION = {
+        SmsConsts.ID, SmsConsts.DATE, SmsConsts.TYPE, SmsConsts.READ
+    };
+    private static final String[] MMS_FINGERPRINT_PROJECTION = {
+        MmsConsts.ID, MmsConsts.DATE, "msg_box", MmsConsts.READ
+    };
+    private static final String[] CALLLOG_FINGERPRINT_PROJECTION = {
+        CallLog.Calls._ID, CallLog.Calls.DATE, CallLog.Calls.TYPE, CallLog.Calls.NEW
+    };
+
+    // columns a Message-ID gets generated from: date, address, type
+    private static final String[] SMS_MESSAGE_ID_PROJECTION = {
+        SmsConsts.DATE, SmsConsts.ADDRESS, SmsConsts.TYPE
+    };
+    private static final String[] CALLLOG_MESSAGE_ID_PROJECTION = {
+        CallLog.Calls.DATE, CallLog.Calls.NUMBER, CallLog.Calls.TYPE
+    };
+
     public BackupQueryBuilder(Context context, ContactAccessor contacts) {
         this.context = context;
         this.contacts = contacts;
@@ -97,6 +116,108 @@ class BackupQueryBuilder {
         }
     }
 
+    /**
+     * @return a query over the ids, dates and states of all items up to the given date
+     */
+    public @Nullable Query buildFingerprintQueryForDataType(DataType type, long upTo, ContactGroup group) {
+        final String[] args = { String.valueOf(upTo) };
+        switch (type) {
+            case SMS:
+                return new Query(Consts.SMS_PROVIDER,
+                    SMS_FINGERPRINT_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <= ? AND %s <> %d %s",
+                            SmsConsts.DATE,
+                            SmsConsts.TYPE,
+                            SmsConsts.MESSAGE_TYPE_DRAFT,
+                            groupSelection(SMS, group)),
+                    args,
+                    null);
+            case MMS:
+                return new Query(Consts.MMS_PROVIDER,
+                    MMS_FINGERPRINT_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <= ? AND %s <> %s",
+                            MmsConsts.DATE,
+                            MmsConsts.TYPE,
+                            MmsConsts.DELIVERY_REPORT),
+                    args,
+                    null);
+            case CALLLOG:
+                return new Query(Consts.CALLLOG_PROVIDER,
+                    CALLLOG_FINGERPRINT_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <= ?", CallLog.Calls.DATE),
+                    args,
+                    null);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a query over the columns needed to generate the Message-IDs of all items up to
+     * the given date, or null if not supported for this data type
+     */
+    public @Nullable Query buildMessageIdQueryForDataType(DataType type, long upTo, ContactGroup group) {
+        final String[] args = { String.valueOf(upTo) };
+        switch (type) {
+            case SMS:
+                return new Query(Consts.SMS_PROVIDER,
+                    SMS_MESSAGE_ID_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <= ? AND %s <> %d %s",
+                            SmsConsts.DATE,
+                            SmsConsts.TYPE,
+                            SmsConsts.MESSAGE_TYPE_DRAFT,
+                            groupSelection(SMS, group)),
+                    args,
+                    null);
+            case CALLLOG:
+                return new Query(Consts.CALLLOG_PROVIDER,
+                    CALLLOG_MESSAGE_ID_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <= ?", CallLog.Calls.DATE),
+                    args,
+                    null);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a query for all items in the range [from, to)
+     */
+    public @Nullable Query buildRangeQueryForDataType(DataType type, long from, long to, ContactGroup group) {
+        final String[] args = { String.valueOf(from), String.valueOf(to) };
+        switch (type) {
+            case SMS:
+                return new Query(Consts.SMS_PROVIDER,
+                    null,
+                    String.format(Locale.ENGLISH, "%s >= ? AND %s < ? AND %s <> %d %s",
+                            SmsConsts.DATE,
+                            SmsConsts.DATE,
+                            SmsConsts.TYPE,
+                            SmsConsts.MESSAGE_TYPE_DRAFT,
+                            groupSelection(SMS, group)),
+                    args,
+                    -1);
+            case MMS:
+                return new Query(Consts.MMS_PROVIDER,
+                    null,
+                    String.format(Locale.ENGLISH, "%s >= ? AND %s < ? AND %s <> %s",
+                            MmsConsts.DATE,
+                            MmsConsts.DATE,
+                            MmsConsts.TYPE,
+                            MmsConsts.DELIVERY_REPORT),
+                    args,
+                    -1);
+            case CALLLOG:
+                return new Query(Consts.CALLLOG_PROVIDER,
+                    CALLLOG_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s >= ? AND %s < ?", CallLog.Calls.DATE, CallLog.Calls.DATE),
+                    args,
+                    -1);
+            default:
+                return null;
+        }
+    }
+
     private Query getQueryForSMS(int max, ContactGroup group) {
         return new Query(Consts.SMS_PROVIDER,
             null,
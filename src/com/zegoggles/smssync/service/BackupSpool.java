@@ -0,0 +1,277 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Converted messages which could not be uploaded because there was no connection. Messages
+ * get appended to segment files, a segment is only deleted once all its messages have been
+ * uploaded.
+ * <p/>
+ * Each write appends a batch: data type (UTF), length of the rest of the batch (int), then
+ * length (int) and RFC822 message for each message. The sync watermark of a batch only gets
+ * committed after the write returned, so a batch cut short by an interrupted write can be
+ * dropped. Any other damage makes reading fail and keeps the segment.
+ */
+class BackupSpool {
+    private static final String DIR_NAME = "spool";
+    private static final String PREFIX = "segment-";
+
+    /** start a new segment once the current one is larger than this */
+    static final long SEGMENT_SIZE = 512 * 1024;
+
+    private final File dir;
+    private File current;
+
+    BackupSpool(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME));
+    }
+
+    BackupSpool(File dir) {
+        this.dir = dir;
+    }
+
+    static class Batch {
+        final DataType dataType;
+        final List<Message> messages;
+
+        Batch(DataType dataType, List<Message> messages) {
+            this.dataType = dataType;
+            this.messages = messages;
+        }
+    }
+
+    public boolean isEmpty() {
+        return getSegments().length == 0;
+    }
+
+    /**
+     * Appends messages to the current segment and syncs it to disk.
+     */
+    public void write(DataType dataType, List<Message> messages) throws IOException, MessagingException {
+        if (messages.isEmpty()) return;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(batch);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            body.reset();
+            message.writeTo(body);
+            out.writeInt(body.size());
+            body.writeTo(out);
+        }
+        out.flush();
+
+        final File segment = getCurrentSegment();
+        DataOutputStream file = null;
+        try {
+            final FileOutputStream fos = new FileOutputStream(segment, true);
+            file = new DataOutputStream(new BufferedOutputStream(fos));
+            file.writeUTF(dataType.name());
+            file.writeInt(batch.size());
+            batch.writeTo(file);
+            file.flush();
+            fos.getFD().sync();
+            if (LOCAL_LOGV) Log.v(TAG, "spooled " + messages.size() + " " + dataType + " message(s) to " + segment);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return all segments, oldest first
+     */
+    public File[] getSegments() {
+        final File[] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX);
+            }
+        });
+        if (segments == null) return new File[0];
+
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = getSequence(lhs), r = getSequence(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * @return the data types of all spooled messages, read without parsing the messages
+     */
+    public Set<DataType> getDataTypes() throws IOException {
+        final Set<DataType> dataTypes = EnumSet.noneOf(DataType.class);
+        for (File segment : getSegments()) {
+            final Reader reader = open(segment);
+            try {
+                DataType dataType;
+                while ((dataType = reader.skip()) != null) {
+                    dataTypes.add(dataType);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return dataTypes;
+    }
+
+    /**
+     * @return a reader for the batches of <code>segment</code>, which has to be closed
+     */
+    public Reader open(File segment) throws IOException {
+        return new Reader(segment);
+    }
+
+    /**
+     * Reads the batches of a segment one at a time.
+     */
+    static class Reader implements Closeable {
+        private final File segment;
+        private final DataInputStream in;
+
+        private Reader(File segment) throws IOException {
+            this.segment = segment;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        }
+
+        /**
+         * @return the next batch, or null at the end of the segment
+         * @throws IOException if the segment is damaged
+         */
+        public @Nullable Batch next() throws IOException {
+            final DataType dataType = readDataType();
+            if (dataType == null) return null;
+
+            final byte[] data = readBatch();
+            if (data == null) return null;
+
+            final DataInputStream batch = new DataInputStream(new ByteArrayInputStream(data));
+            final List<Message> messages = new ArrayList<Message>();
+            try {
+                while (batch.available() > 0) {
+                    final int length = batch.readInt();
+                    if (length < 0 || length > batch.available()) throw corrupt("invalid message length " + length);
+
+                    final byte[] message = new byte[length];
+                    batch.readFully(message);
+                    messages.add(new MimeMessage(new ByteArrayInputStream(message)));
+                }
+            } catch (EOFException e) {
+                throw corrupt("truncated message");
+            } catch (MessagingException e) {
+                throw corrupt(e.getMessage());
+            }
+            return new Batch(dataType, messages);
+        }
+
+        /**
+         * Skips the next batch without parsing it.
+         * @return its data type, or null at the end of the segment
+         */
+        @Nullable DataType skip() throws IOException {
+            final DataType dataType = readDataType();
+            return dataType != null && readBatch() != null ? dataType : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private @Nullable DataType readDataType() throws IOException {
+            final String type;
+            try {
+                type = in.readUTF();
+            } catch (EOFException e) {
+                return null;
+            }
+            try {
+                return DataType.valueOf(type);
+            } catch (IllegalArgumentException e) {
+                throw corrupt("invalid data type " + type);
+            }
+        }
+
+        /**
+         * @return the bytes of the batch, or null if it was cut short by an interrupted write
+         */
+        private @Nullable byte[] readBatch() throws IOException {
+            try {
+                final int length = in.readInt();
+                if (length < 0 || length > segment.length()) throw corrupt("invalid batch length " + length);
+
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                return data;
+            } catch (EOFException e) {
+                // never committed, the messages get converted again
+                Log.w(TAG, "dropping incomplete batch at the end of " + segment);
+                return null;
+            }
+        }
+
+        private IOException corrupt(String reason) {
+            return new IOException("damaged spool segment " + segment + ": " + reason);
+        }
+    }
+
+    public void delete(File segment) {
+        if (!segment.delete()) Log.w(TAG, "could not delete " + segment);
+    }
+
+    private File getCurrentSegment() {
+        // never append to segments of earlier runs, they might end with a partially written record
+        if (current == null || current.length() >= SEGMENT_SIZE) {
+            final File[] segments = getSegments();
+            final long next = segments.length > 0 ? getSequence(segments[segments.length - 1]) + 1 : 0;
+            current = new File(dir, PREFIX + next);
+        }
+        return current;
+    }
+
+    private static long getSequence(File segment) {
+        try {
+            return Long.parseLong(segment.getName().substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.zegoggles.smssync.service;
 
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Folder;
@@ -11,21 +13,44 @@ import com.fsck.k9.mail.XOAuth2AuthenticationFailedException;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.mail.AttachmentStore;
+import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+import com.zegoggles.smssync.mail.LocalArchive;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.CallLogTypes;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.exception.ConnectivityException;
 import com.zegoggles.smssync.service.exception.RequiresLoginException;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import com.zegoggles.smssync.utils.ThroughputMeter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -37,16 +62,41 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.*;
  * BackupTask does all the work
  */
 class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
+    /** number of messages written to the local archive between two syncs to disk */
+    private static final int LOCAL_ARCHIVE_BATCH_SIZE = 100;
+
     private final SmsBackupService service;
     private final BackupItemsFetcher fetcher;
     private final MessageConverter converter;
     private final CalendarSyncer calendarSyncer;
+    private final UploadJournal journal;
+    /** false while spooling, the journal entries are then needed once the spool gets uploaded */
+    private boolean journalReconciled;
+    private final BackupSpool spool;
+    private final ChangeDetector changeDetector;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final TrafficMeter traffic = new TrafficMeter();
+    private final ProgressThrottle throttle = new ProgressThrottle();
+    private final HeapMeter heap = new HeapMeter();
+    private final Map<DataType, Integer> itemCounts = new EnumMap<DataType, Integer>(DataType.class);
+    private long started;
+    private int retries;
+    /** released when the user cancels, cuts short the wait before retrying an upload */
+    private final CountDownLatch canceled = new CountDownLatch(1);
+    private @Nullable LocalArchive archive;
+    private final Map<DataType, Long> pendingMaxDates = new EnumMap<DataType, Long>(DataType.class);
+    private int pendingCount;
 
     BackupTask(@NotNull SmsBackupService service) {
         this.service = service;
         this.fetcher = new BackupItemsFetcher(service,
                 new BackupQueryBuilder(service, service.getContacts()));
         this.converter = new MessageConverter(service, AuthPreferences.getUserEmail(service));
+        this.journal = new UploadJournal(service);
+        this.spool = new BackupSpool(service);
+        this.changeDetector = new ChangeDetector(service);
+        this.converter.setMetrics(metrics);
 
         if (Preferences.isCallLogCalendarSyncEnabled(service)) {
             calendarSyncer = new CalendarSyncer(
@@ -63,16 +113,24 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
     @Override
     protected void onPreExecute() {
+        started = System.currentTimeMillis();
         App.bus.register(this);
     }
 
     @Subscribe public void userCanceled(UserCanceled canceled) {
         cancel(false);
+        this.canceled.countDown();
     }
 
     @Override
     protected BackupState doInBackground(BackupConfig... params) {
-        final BackupConfig config = params[0];
+        final BackupState result = runBackup(params[0]);
+        // the history is a file, record the run here and not on the main thread
+        recordRun(isCancelled() ? transition(CANCELED_BACKUP, null) : result, metrics.getSummary());
+        return result;
+    }
+
+    private BackupState runBackup(BackupConfig config) {
         if (config.skip) {
             appLog(R.string.app_log_skip_backup_skip_messages);
             for (DataType type : new DataType[] { SMS, MMS, CALLLOG }) {
@@ -80,6 +138,12 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             }
             Log.i(TAG, "All messages skipped.");
             return new BackupState(FINISHED_BACKUP, 0, 0, BackupType.MANUAL, null, null);
+        } else if (config.backupType == BackupType.RECONCILE) {
+            if (config.imap == null) {
+                appLog(R.string.app_log_missing_credentials);
+                return transition(ERROR, new RequiresLoginException());
+            }
+            return reconcile(config);
         }
 
         Cursor smsItems = null;
@@ -87,35 +151,58 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         Cursor callLogItems = null;
         Cursor whatsAppItems = null;
         final int smsCount, mmsCount, callLogCount, whatsAppItemsCount;
+        // without an IMAP account backed up items only go to the local copy
+        final boolean localOnly = config.imap == null;
         try {
-            service.acquireLocks();
+            ConnectivityException offline = null;
+            try {
+                service.acquireLocks();
+            } catch (ConnectivityException e) {
+                // convert anyway, the spooled messages get uploaded by the next connected run
+                if (!localOnly) offline = e;
+            }
+            archive = LocalArchive.get(service);
+            final Set<DataType> types = getTypesToBackup(config);
             int max = config.maxItemsPerSync;
 
-            smsItems = fetcher.getItemsForDataType(SMS, config.groupToBackup, max);
+            smsItems = query(SMS, types, config, max);
             smsCount = smsItems != null ? smsItems.getCount() : 0;
             max -= smsCount;
 
-            mmsItems = fetcher.getItemsForDataType(MMS, config.groupToBackup, max);
+            mmsItems = query(MMS, types, config, max);
             mmsCount = mmsItems != null ? mmsItems.getCount() : 0;
             max -= mmsCount;
 
-            callLogItems = fetcher.getItemsForDataType(CALLLOG, config.groupToBackup, max);
+            callLogItems = query(CALLLOG, types, config, max);
             callLogCount = callLogItems != null ? callLogItems.getCount() : 0;
             max -= callLogCount;
 
-            whatsAppItems = fetcher.getItemsForDataType(DataType.WHATSAPP, config.groupToBackup, max);
+            whatsAppItems = query(WHATSAPP, types, config, max);
             whatsAppItemsCount = whatsAppItems != null ? whatsAppItems.getCount() : 0;
 
             final int itemsToSync = smsCount + mmsCount + callLogCount + whatsAppItemsCount;
-
-            if (itemsToSync > 0) {
-                if (!AuthPreferences.isLoginInformationSet(service)) {
+            // change detection scans all rows, leave it to full backups
+            final Map<DataType, ChangeDetector.Changes> changes = offline == null && !localOnly &&
+                    types.size() == DataType.values().length &&
+                    AuthPreferences.isLoginInformationSet(service) ?
+                    detectChanges(config) : new EnumMap<DataType, ChangeDetector.Changes>(DataType.class);
+
+            if (itemsToSync > 0 || (offline == null && !localOnly && (!spool.isEmpty() || !changes.isEmpty()))) {
+                if (localOnly ? archive == null : !AuthPreferences.isLoginInformationSet(service)) {
                     appLog(R.string.app_log_missing_credentials);
                     return transition(ERROR, new RequiresLoginException());
+                } else if (localOnly) {
+                    appLog(R.string.app_log_backup_messages, smsCount, mmsCount, callLogCount);
+                    return archiveMessages(config, smsItems, mmsItems, callLogItems, whatsAppItems, itemsToSync);
+                } else if (offline != null) {
+                    appLog(R.string.app_log_backup_messages, smsCount, mmsCount, callLogCount);
+                    return spoolMessages(config, smsItems, mmsItems, callLogItems, whatsAppItems, itemsToSync, offline);
                 } else {
                     appLog(R.string.app_log_backup_messages, smsCount, mmsCount, callLogCount);
-                    return backup(config, smsItems, mmsItems, callLogItems, whatsAppItems, itemsToSync);
+                    return backup(config, smsItems, mmsItems, callLogItems, whatsAppItems, itemsToSync, changes);
                 }
+            } else if (offline != null) {
+                throw offline;
             } else {
                 appLog(R.string.app_log_skip_backup_no_items);
 
@@ -135,7 +222,12 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                     try {
                         // we got a new token, let's retry one more time - we need to pass in a new store object
                         // since the auth params on it are immutable
-                        return doInBackground(config.retryWithStore(service.getBackupImapStore()));
+                        if (archive != null) {
+                            // the retry opens its own, nothing unflushed has been committed yet
+                            archive.close();
+                            archive = null;
+                        }
+                        return runBackup(config.retryWithStore(service.getBackupImapStore()));
                     } catch (MessagingException ignored) {
                         Log.w(TAG, ignored);
                     }
@@ -154,6 +246,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             return transition(ERROR, e);
         } finally {
             service.releaseLocks();
+            if (archive != null) archive.close();
             try {
                 if (smsItems != null) smsItems.close();
                 if (mmsItems != null) mmsItems.close();
@@ -165,6 +258,31 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         }
     }
 
+    /**
+     * @return the types changed since the last backup for incoming backups triggered by
+     * {@link ProviderObserver}, all types otherwise
+     */
+    private Set<DataType> getTypesToBackup(BackupConfig config) {
+        final Set<DataType> dirty = DataType.clearDirty(service);
+        if (config.backupType == BackupType.INCOMING && !dirty.isEmpty()) {
+            if (LOCAL_LOGV) Log.v(TAG, "backing up changed types " + dirty);
+            return dirty;
+        } else {
+            return EnumSet.allOf(DataType.class);
+        }
+    }
+
+    private @Nullable Cursor query(DataType type, Set<DataType> types, BackupConfig config, int max) {
+        if (!types.contains(type)) return null;
+
+        final long started = PipelineMetrics.start();
+        final Cursor cursor = fetcher.getItemsForDataType(type, config.groupToBackup, max);
+        // the query only runs once the cursor is accessed
+        final int count = cursor != null ? cursor.getCount() : 0;
+        metrics.stop(PipelineMetrics.Stage.QUERY, started, count);
+        return cursor;
+    }
+
     private void appLog(int id, Object... args) {
         service.appLog(id, args);
     }
@@ -183,7 +301,12 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     @Override
     protected void onPostExecute(BackupState result) {
         if (result != null) {
-            post(result);
+            final PipelineMetrics.Summary summary = metrics.getSummary();
+            if (!summary.isEmpty()) {
+                Log.i(TAG, "backup timings: " + summary);
+                appLog(R.string.app_log_timings, summary);
+            }
+            post(result.withMetrics(summary));
         }
         App.bus.unregister(this);
     }
@@ -194,6 +317,24 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         App.bus.unregister(this);
     }
 
+    private void recordRun(BackupState result, PipelineMetrics.Summary summary) {
+        final TrafficMeter.Usage usage = traffic.finish();
+        if (usage != null) {
+            Log.i(TAG, "backup traffic: " + usage);
+            appLog(R.string.app_log_traffic, usage);
+        }
+        final RunHistory.Run run = new RunHistory(service).add(result.backupType, started, result,
+                itemCounts, retries, usage, heap.getPeak(), summary);
+        Log.i(TAG, "backup run: " + run);
+        appLog(R.string.app_log_run_summary, run.getItemCount(), run.getItemsPerSecond(),
+                Formatter.formatFileSize(service, run.peakHeap));
+    }
+
+    private void countItems(DataType dataType, int count) {
+        final Integer counted = itemCounts.get(dataType);
+        itemCounts.put(dataType, counted == null ? count : counted + count);
+    }
+
     private void post(BackupState state) {
         App.bus.post(state);
     }
@@ -203,63 +344,60 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                                @Nullable Cursor mmsItems,
                                @Nullable Cursor callLogItems,
                                @Nullable Cursor whatsAppItems,
-                               final int itemsToSync) throws MessagingException {
+                               final int itemsToSync,
+                               Map<DataType, ChangeDetector.Changes> changes) throws MessagingException {
         Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", itemsToSync));
 
         publish(LOGIN);
+        traffic.enter(TrafficMeter.Phase.LOGIN, null);
 
-        Folder smsmmsfolder   = (smsItems != null || mmsItems != null) ? config.imap.getFolder(SMS) : null;
-        Folder callLogfolder  = callLogItems  != null ?  config.imap.getFolder(CALLLOG) : null;
-        Folder whatsAppFolder = whatsAppItems != null ? config.imap.getFolder(WHATSAPP) : null;
+        // opening a folder creates it, spooled messages only need the folders of their types
+        final Set<DataType> spooled = getSpooledTypes();
+        final boolean smsMmsChanged = changes.containsKey(SMS) || changes.containsKey(MMS);
+        final boolean smsMmsSpooled = spooled.contains(SMS) || spooled.contains(MMS);
+        BackupImapStore.BackupFolder smsmmsfolder   = (smsMmsSpooled || smsMmsChanged || smsItems != null || mmsItems != null) ? config.imap.getFolder(SMS) : null;
+        BackupImapStore.BackupFolder callLogfolder  = (spooled.contains(CALLLOG) || changes.containsKey(CALLLOG) || callLogItems  != null) ?  config.imap.getFolder(CALLLOG) : null;
+        BackupImapStore.BackupFolder whatsAppFolder = (spooled.contains(WHATSAPP) || whatsAppItems != null) ? config.imap.getFolder(WHATSAPP) : null;
 
         try {
-            Cursor curCursor;
-            DataType dataType = null;
+            traffic.enter(TrafficMeter.Phase.SEARCH, null);
+            final Set<String> alreadyUploaded = reconcileJournal(smsmmsfolder, callLogfolder, whatsAppFolder);
+
             publish(CALC);
+            flushSpool(alreadyUploaded, smsmmsfolder, callLogfolder, whatsAppFolder);
+            backupChanges(config, changes, smsmmsfolder, callLogfolder);
+
+            DataType dataType = null;
             int backedUpItems = 0;
-            while (!isCancelled() && backedUpItems < itemsToSync) {
-                if (smsItems != null && smsItems.moveToNext()) {
-                    dataType = SMS;
-                    curCursor = smsItems;
-                } else if (mmsItems != null && mmsItems.moveToNext()) {
-                    dataType = MMS;
-                    curCursor = mmsItems;
-                } else if (callLogItems != null && callLogItems.moveToNext()) {
-                    dataType = CALLLOG;
-                    curCursor = callLogItems;
-                } else if (whatsAppItems != null && whatsAppItems.moveToNext()) {
-                    dataType = DataType.WHATSAPP;
-                    curCursor = whatsAppItems;
-                } else break; // no more items available
-
-                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + dataType);
-                ConversionResult result = converter.cursorToMessages(curCursor, config.maxMessagePerRequest, dataType);
+            final ThroughputMeter meter = new ThroughputMeter(true);
+            ConversionResult result;
+            while (!isCancelled() && backedUpItems < itemsToSync &&
+                    (result = convertNext(config, smsItems, mmsItems, callLogItems, whatsAppItems)) != null) {
+                dataType = result.type;
                 List<Message> messages = result.messageList;
                 if (!messages.isEmpty()) {
+                    final List<Message> toAppend = skipUploaded(messages, alreadyUploaded);
+                    final List<String> messageIds = getMessageIds(toAppend);
                     if (LOCAL_LOGV)
                         Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), dataType));
-
-                    dataType.setMaxSyncedDate(service, result.maxDate);
-                    switch (dataType) {
-                        case MMS:
-                        case SMS:
-                            appendMessages(smsmmsfolder, messages);
-                            break;
-                        case CALLLOG:
-                            appendMessages(callLogfolder, messages);
-                            if (calendarSyncer != null) {
-                                calendarSyncer.syncCalendar(result);
-                            }
-                            break;
-                        case WHATSAPP:
-                            appendMessages(whatsAppFolder, messages);
-                            break;
+                                toAppend.size(), dataType));
+
+                    journal.begin(dataType, messageIds);
+                    appendMessages(dataType, getFolder(dataType, smsmmsfolder, callLogfolder, whatsAppFolder), toAppend);
+                    if (dataType == CALLLOG && calendarSyncer != null) {
+                        calendarSyncer.syncCalendar(result);
                     }
+                    journal.acknowledge(dataType, messageIds);
+                    commit(result);
                 }
                 backedUpItems += messages.size();
-                publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, config.backupType, dataType, null));
+                if (throttle.isDue(backedUpItems, itemsToSync)) {
+                    heap.sample();
+                    publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, config.backupType, dataType, null)
+                            .withThroughput(meter.update(backedUpItems, itemsToSync)));
+                }
             }
+            commitPending();
             return new BackupState(FINISHED_BACKUP,
                     backedUpItems,
                     itemsToSync,
@@ -271,10 +409,583 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         }
     }
 
-    private void appendMessages(Folder folder, List<Message> messages) throws MessagingException {
-        if (folder != null) {
-            folder.appendMessages(messages.toArray(new Message[messages.size()]));
+    /**
+     * Converts messages while there is no connection and stores them in the spool.
+     */
+    private BackupState spoolMessages(BackupConfig config,
+                                      @Nullable Cursor smsItems,
+                                      @Nullable Cursor mmsItems,
+                                      @Nullable Cursor callLogItems,
+                                      @Nullable Cursor whatsAppItems,
+                                      final int itemsToSync,
+                                      ConnectivityException offline) {
+        Log.i(TAG, String.format(Locale.ENGLISH, "Not connected, spooling %d messages", itemsToSync));
+        publish(CALC);
+
+        DataType dataType = null;
+        int spooledItems = 0;
+        final ThroughputMeter meter = new ThroughputMeter(true);
+        ConversionResult result;
+        try {
+            while (!isCancelled() && spooledItems < itemsToSync &&
+                    (result = convertNext(config, smsItems, mmsItems, callLogItems, whatsAppItems)) != null) {
+                dataType = result.type;
+                if (!result.messageList.isEmpty()) {
+                    final long started = PipelineMetrics.start();
+                    spool.write(dataType, result.messageList);
+                    countItems(dataType, result.messageList.size());
+                    metrics.stop(PipelineMetrics.Stage.SERIALIZATION, started, result.messageList.size());
+                    if (dataType == CALLLOG && calendarSyncer != null) {
+                        calendarSyncer.syncCalendar(result);
+                    }
+                    // the spool is responsible for the upload from here on
+                    commit(result);
+                }
+                spooledItems += result.messageList.size();
+                if (throttle.isDue(spooledItems, itemsToSync)) {
+                    heap.sample();
+                    publishProgress(new BackupState(BACKUP, spooledItems, itemsToSync, config.backupType, dataType, null)
+                            .withThroughput(meter.update(spooledItems, itemsToSync)));
+                }
+            }
+            commitPending();
+        } catch (IOException e) {
+            Log.w(TAG, "error spooling messages", e);
+        } catch (MessagingException e) {
+            Log.w(TAG, "error spooling messages", e);
+        }
+        appLog(R.string.app_log_spooled_messages, spooledItems);
+        return new BackupState(ERROR, spooledItems, itemsToSync, config.backupType, dataType, offline);
+    }
+
+    /**
+     * Converts messages for the local archive only, used when no IMAP account is set up.
+     */
+    private BackupState archiveMessages(BackupConfig config,
+                                        @Nullable Cursor smsItems,
+                                        @Nullable Cursor mmsItems,
+                                        @Nullable Cursor callLogItems,
+                                        @Nullable Cursor whatsAppItems,
+                                        final int itemsToSync) throws MessagingException {
+        Log.i(TAG, String.format(Locale.ENGLISH, "No IMAP account, archiving %d messages locally", itemsToSync));
+        publish(CALC);
+
+        DataType dataType = null;
+        int archivedItems = 0;
+        final ThroughputMeter meter = new ThroughputMeter(true);
+        ConversionResult result;
+        while (!isCancelled() && archivedItems < itemsToSync &&
+                (result = convertNext(config, smsItems, mmsItems, callLogItems, whatsAppItems)) != null) {
+            dataType = result.type;
+            if (!result.messageList.isEmpty()) {
+                countItems(dataType, result.messageList.size());
+                if (dataType == CALLLOG && calendarSyncer != null) {
+                    calendarSyncer.syncCalendar(result);
+                }
+                commit(result);
+            }
+            archivedItems += result.messageList.size();
+            if (throttle.isDue(archivedItems, itemsToSync)) {
+                heap.sample();
+                publishProgress(new BackupState(BACKUP, archivedItems, itemsToSync, config.backupType, dataType, null)
+                        .withThroughput(meter.update(archivedItems, itemsToSync)));
+            }
+        }
+        commitPending();
+        return new BackupState(FINISHED_BACKUP,
+                archivedItems,
+                itemsToSync,
+                config.backupType, dataType, null);
+    }
+
+    /**
+     * Advances the sync watermark after a batch has been handled. With a local archive this is
+     * deferred until the archive has been synced to disk.
+     */
+    private void commit(ConversionResult result) throws MessagingException {
+        if (archive == null) {
+            final long started = PipelineMetrics.start();
+            result.type.setMaxSyncedDate(service, result.maxDate);
+            clearJournal(Collections.singleton(result.type));
+            metrics.stop(PipelineMetrics.Stage.COMMIT, started, result.messageList.size());
+            return;
+        }
+        try {
+            final long started = PipelineMetrics.start();
+            archive.append(result.type.getFolder(service), result);
+            metrics.stop(PipelineMetrics.Stage.SERIALIZATION, started, result.messageList.size());
+        } catch (IOException e) {
+            throw new MessagingException("error writing local archive", e);
+        }
+        final Long pending = pendingMaxDates.get(result.type);
+        if (pending == null || result.maxDate > pending) {
+            pendingMaxDates.put(result.type, result.maxDate);
+        }
+        pendingCount += result.messageList.size();
+        if (pendingCount >= LOCAL_ARCHIVE_BATCH_SIZE) commitPending();
+    }
+
+    private void commitPending() throws MessagingException {
+        if (archive == null || pendingMaxDates.isEmpty()) return;
+        final long started = PipelineMetrics.start();
+        final int committed = pendingCount;
+        try {
+            archive.flush();
+        } catch (IOException e) {
+            throw new MessagingException("error writing local archive", e);
+        }
+        for (Map.Entry<DataType, Long> entry : pendingMaxDates.entrySet()) {
+            entry.getKey().setMaxSyncedDate(service, entry.getValue());
+        }
+        clearJournal(pendingMaxDates.keySet());
+        pendingMaxDates.clear();
+        pendingCount = 0;
+        metrics.stop(PipelineMetrics.Stage.COMMIT, started, committed);
+    }
+
+    private Set<DataType> getSpooledTypes() throws MessagingException {
+        try {
+            return spool.getDataTypes();
+        } catch (IOException e) {
+            throw new MessagingException("error reading spool", e);
+        }
+    }
+
+    /**
+     * Uploads messages spooled by earlier runs without connection, oldest first.
+     */
+    private void flushSpool(Set<String> alreadyUploaded,
+                            BackupImapStore.BackupFolder smsmmsfolder,
+                            BackupImapStore.BackupFolder callLogfolder,
+                            BackupImapStore.BackupFolder whatsAppFolder) throws MessagingException {
+        for (File segment : spool.getSegments()) {
+            if (isCancelled()) return;
+
+            Log.i(TAG, "uploading spooled messages from " + segment.getName());
+            final Set<DataType> dataTypes = EnumSet.noneOf(DataType.class);
+            try {
+                final BackupSpool.Reader reader = spool.open(segment);
+                try {
+                    BackupSpool.Batch batch;
+                    while ((batch = reader.next()) != null) {
+                        if (isCancelled()) return;
+
+                        dataTypes.add(batch.dataType);
+                        final List<Message> toAppend = skipUploaded(batch.messages, alreadyUploaded);
+                        final List<String> messageIds = getMessageIds(toAppend);
+
+                        journal.begin(batch.dataType, messageIds);
+                        appendMessages(batch.dataType,
+                                getFolder(batch.dataType, smsmmsfolder, callLogfolder, whatsAppFolder), toAppend);
+                        journal.acknowledge(batch.dataType, messageIds);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // the segment is kept, its messages are not backed up anywhere else
+                throw new MessagingException("error reading spool", e);
+            }
+            spool.delete(segment);
+            clearJournal(dataTypes);
+        }
+    }
+
+    /**
+     * Fingerprints the already backed up range of each data type.
+     * @return the detected changes, for types with changed buckets only
+     */
+    private Map<DataType, ChangeDetector.Changes> detectChanges(BackupConfig config) {
+        final Map<DataType, ChangeDetector.Changes> changes =
+                new EnumMap<DataType, ChangeDetector.Changes>(DataType.class);
+        for (DataType type : new DataType[] { SMS, MMS, CALLLOG }) {
+            final long upTo = type.getMaxSyncedDate(service);
+            final Cursor cursor = fetcher.getFingerprintItems(type, config.groupToBackup, upTo);
+            if (cursor == null) continue;
+            try {
+                final ChangeDetector.Changes detected = changeDetector.detect(type, cursor, upTo);
+                if (detected.changed.isEmpty()) {
+                    changeDetector.save(detected);
+                } else {
+                    Log.i(TAG, type + ": " + detected.changed.size() + " changed day(s)");
+                    changes.put(type, detected);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Examines buckets which changed since the last run and uploads items missing on the server,
+     * e.g. older items inserted by other apps.
+     */
+    private void backupChanges(BackupConfig config,
+                               Map<DataType, ChangeDetector.Changes> changes,
+                               BackupImapStore.BackupFolder smsmmsfolder,
+                               BackupImapStore.BackupFolder callLogfolder) throws MessagingException {
+        for (ChangeDetector.Changes detected : changes.values()) {
+            final BackupImapStore.BackupFolder folder = detected.type == CALLLOG ? callLogfolder : smsmmsfolder;
+            int uploaded = 0;
+            for (long bucket : detected.changed) {
+                if (isCancelled()) return;
+                uploaded += backupBucket(config, detected.type, bucket, folder);
+            }
+            if (uploaded > 0) Log.i(TAG, detected.type + ": uploaded " + uploaded + " item(s) from changed days");
+            changeDetector.save(detected);
+        }
+    }
+
+    private int backupBucket(BackupConfig config,
+                             DataType type,
+                             long bucket,
+                             BackupImapStore.BackupFolder folder) throws MessagingException {
+        final long[] range = getSyncedRange(type, bucket);
+        if (range[1] <= range[0]) return 0;
+        final Cursor cursor = fetcher.getItemsForDateRange(type, config.groupToBackup, range[0], range[1]);
+        if (cursor == null) return 0;
+        try {
+            if (cursor.getCount() == 0) return 0; // only deletions
+
+            // sent dates are compared by day in the message's time zone, widen the range
+            final long from = bucket * ChangeDetector.BUCKET_SIZE;
+            traffic.enter(TrafficMeter.Phase.SEARCH, type);
+            final Set<String> onServer = folder.getMessageIds(
+                    new Date(from - ChangeDetector.BUCKET_SIZE),
+                    new Date(from + 2 * ChangeDetector.BUCKET_SIZE));
+
+            return appendMissing(config, type, cursor, folder, onServer);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the date range of the bucket, limited to the items up to the sync watermark like
+     * the change detection. Newer items get uploaded by the backup itself.
+     */
+    private long[] getSyncedRange(DataType type, long bucket) {
+        final long[] range = ChangeDetector.getRange(type, bucket);
+        range[1] = Math.min(range[1], type.getMaxSyncedDate(service) + 1);
+        return range;
+    }
+
+    /**
+     * Converts all items of the cursor and uploads those not on the server.
+     * @return the number of uploaded items
+     */
+    private int appendMissing(BackupConfig config,
+                              DataType type,
+                              Cursor cursor,
+                              BackupImapStore.BackupFolder folder,
+                              Set<String> onServer) throws MessagingException {
+        int uploaded = 0;
+        while (!isCancelled() && cursor.moveToNext()) {
+            final ConversionResult result = converter.cursorToMessages(cursor, config.maxMessagePerRequest, type);
+            final List<Message> missing = new ArrayList<Message>();
+            for (Message message : result.messageList) {
+                final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+                if (messageId == null || !onServer.contains(messageId)) missing.add(message);
+            }
+            appendMessages(type, folder, missing);
+            uploaded += missing.size();
+        }
+        return uploaded;
+    }
+
+    /**
+     * Checks that everything backed up so far is actually on the server. Merkle trees over the
+     * Message-IDs on the device and on the server get compared, only days which differ are
+     * examined and items missing on the server uploaded again.
+     */
+    private BackupState reconcile(BackupConfig config) {
+        try {
+            service.acquireLocks();
+            publish(LOGIN);
+            traffic.enter(TrafficMeter.Phase.LOGIN, null);
+
+            int uploaded = 0, notOnDevice = 0;
+            for (DataType type : new DataType[] { SMS, CALLLOG }) {
+                if (isCancelled()) break;
+                if (!type.isBackupEnabled(service)) continue;
+
+                final BackupImapStore.BackupFolder folder = config.imap.getFolder(type);
+                try {
+                    publish(CALC);
+                    traffic.enter(TrafficMeter.Phase.SEARCH, type);
+                    final Set<String> onServer = new HashSet<String>();
+                    final Set<String> undated = new HashSet<String>();
+                    final MerkleTree serverTree = new MerkleTree();
+                    for (ServerIndex.Entry entry : new ServerIndex(service, folder.getName()).update(folder).values()) {
+                        // folders can be shared between data types, legacy backups have no data type header
+                        if (entry.messageId.length() > 0 &&
+                            (entry.dataType == null || type.name().equals(entry.dataType)) &&
+                            onServer.add(entry.messageId)) {
+                            // duplicate copies are only counted once, undated ones can't be put in a day
+                            if (entry.date >= 0) {
+                                serverTree.add(entry.date, entry.messageId);
+                            } else {
+                                undated.add(entry.messageId);
+                            }
+                        }
+                    }
+                    final Set<String> onDevice = new HashSet<String>();
+                    final MerkleTree deviceTree = getDeviceTree(config, type, onDevice, undated);
+
+                    final SortedSet<Long> days = MerkleTree.diff(deviceTree, serverTree);
+                    Log.i(TAG, String.format(Locale.ENGLISH, "%s: %d on device, %d on server, %d day(s) differ",
+                            type, deviceTree.size(), serverTree.size(), days.size()));
+
+                    int examined = 0;
+                    for (Long day : days) {
+                        if (isCancelled()) break;
+                        final long[] range = getSyncedRange(type, day);
+                        final Cursor cursor = range[1] > range[0] ?
+                                fetcher.getItemsForDateRange(type, config.groupToBackup, range[0], range[1]) : null;
+                        if (cursor != null) {
+                            try {
+                                uploaded += appendMissing(config, type, cursor, folder, onServer);
+                            } finally {
+                                cursor.close();
+                            }
+                        }
+                        if (throttle.isDue(++examined, days.size())) {
+                            heap.sample();
+                            publishProgress(new BackupState(BACKUP, examined, days.size(), config.backupType, type, null));
+                        }
+                    }
+                    onServer.removeAll(onDevice);
+                    notOnDevice += onServer.size();
+                } finally {
+                    folder.close();
+                }
+            }
+            appLog(R.string.app_log_reconciled, uploaded, notOnDevice);
+            return new BackupState(isCancelled() ? CANCELED_BACKUP : FINISHED_BACKUP,
+                    uploaded, uploaded, config.backupType, null, null);
+        } catch (AuthenticationFailedException e) {
+            return transition(ERROR, e);
+        } catch (MessagingException e) {
+            Log.w(TAG, "error reconciling", e);
+            return transition(ERROR, e);
+        } catch (ConnectivityException e) {
+            return transition(ERROR, e);
+        } finally {
+            service.releaseLocks();
+        }
+    }
+
+    /**
+     * @param messageIds receives the Message-IDs of all items backed up so far
+     * @param skip Message-IDs left out of the tree, the server has them without a date
+     */
+    private MerkleTree getDeviceTree(BackupConfig config, DataType type, Set<String> messageIds, Set<String> skip) {
+        final MerkleTree tree = new MerkleTree();
+        final Cursor cursor = fetcher.getMessageIdItems(type, config.groupToBackup, type.getMaxSyncedDate(service));
+        if (cursor == null) return tree;
+        try {
+            while (cursor.moveToNext()) {
+                final long date = cursor.getLong(0);
+                final String address = cursor.getString(1);
+                final int itemType = cursor.getInt(2);
+                // same items the message generator skips
+                if (TextUtils.isEmpty(address) ||
+                    (type == CALLLOG && !CallLogTypes.isTypeEnabled(service, itemType))) {
+                    continue;
+                }
+                final String messageId = MessageConverter.getMessageId(date, address, itemType);
+                if (messageIds.add(messageId) && !skip.contains(messageId)) tree.add(date, messageId);
+            }
+        } finally {
+            cursor.close();
+        }
+        return tree;
+    }
+
+    private @Nullable ConversionResult convertNext(BackupConfig config,
+                                                   @Nullable Cursor smsItems,
+                                                   @Nullable Cursor mmsItems,
+                                                   @Nullable Cursor callLogItems,
+                                                   @Nullable Cursor whatsAppItems) throws MessagingException {
+        final DataType dataType;
+        final Cursor curCursor;
+        if (smsItems != null && smsItems.moveToNext()) {
+            dataType = SMS;
+            curCursor = smsItems;
+        } else if (mmsItems != null && mmsItems.moveToNext()) {
+            dataType = MMS;
+            curCursor = mmsItems;
+        } else if (callLogItems != null && callLogItems.moveToNext()) {
+            dataType = CALLLOG;
+            curCursor = callLogItems;
+        } else if (whatsAppItems != null && whatsAppItems.moveToNext()) {
+            dataType = DataType.WHATSAPP;
+            curCursor = whatsAppItems;
+        } else return null; // no more items available
+
+        if (LOCAL_LOGV) Log.v(TAG, "backing up: " + dataType);
+        return converter.cursorToMessages(curCursor, config.maxMessagePerRequest, dataType);
+    }
+
+    private static @Nullable BackupImapStore.BackupFolder getFolder(DataType dataType,
+                                                                    BackupImapStore.BackupFolder smsmmsfolder,
+                                                                    BackupImapStore.BackupFolder callLogfolder,
+                                                                    BackupImapStore.BackupFolder whatsAppFolder) {
+        switch (dataType) {
+            case SMS:
+            case MMS:     return smsmmsfolder;
+            case CALLLOG: return callLogfolder;
+            default:      return whatsAppFolder;
+        }
+    }
+
+    /**
+     * Checks messages left in the upload journal by an interrupted run. Entries found on the
+     * server are kept as acknowledged until their data type gets committed, entries of folders
+     * not opened by this backup are kept for the next one.
+     * @return Message-IDs which are already on the server and don't need to be sent again
+     */
+    private Set<String> reconcileJournal(BackupImapStore.BackupFolder smsmmsfolder,
+                                         BackupImapStore.BackupFolder callLogfolder,
+                                         BackupImapStore.BackupFolder whatsAppFolder) throws MessagingException {
+        final Set<String> uploaded = new HashSet<String>();
+        final Map<String, UploadJournal.Entry> entries = journal.read();
+        journalReconciled = true;
+        if (entries.isEmpty()) return uploaded;
+
+        final Map<String, UploadJournal.Entry> kept = new LinkedHashMap<String, UploadJournal.Entry>();
+
+        Log.i(TAG, "reconciling " + entries.size() + " journal entries");
+        // unacknowledged entries, looked up with one search per folder
+        final Map<BackupImapStore.BackupFolder, List<String>> unacknowledged =
+                new IdentityHashMap<BackupImapStore.BackupFolder, List<String>>();
+        for (UploadJournal.Entry entry : entries.values()) {
+            final BackupImapStore.BackupFolder folder =
+                    getFolder(entry.dataType, smsmmsfolder, callLogfolder, whatsAppFolder);
+            if (folder == null) {
+                kept.put(entry.messageId, entry);
+            } else if (entry.acknowledged) {
+                kept.put(entry.messageId, entry);
+                uploaded.add(entry.messageId);
+            } else {
+                List<String> ids = unacknowledged.get(folder);
+                if (ids == null) {
+                    ids = new ArrayList<String>();
+                    unacknowledged.put(folder, ids);
+                }
+                ids.add(entry.messageId);
+            }
+        }
+        for (Map.Entry<BackupImapStore.BackupFolder, List<String>> entry : unacknowledged.entrySet()) {
+            for (String messageId : entry.getKey().findMessageIds(entry.getValue())) {
+                kept.put(messageId, new UploadJournal.Entry(entries.get(messageId).dataType, messageId, true));
+                uploaded.add(messageId);
+            }
+        }
+        journal.reset(kept.values());
+        if (LOCAL_LOGV) Log.v(TAG, "already uploaded: " + uploaded);
+        return uploaded;
+    }
+
+    /**
+     * Removes the journal entries of data types whose watermark has been committed. Does nothing
+     * while spooling, the entries are needed once the spool gets uploaded.
+     */
+    private void clearJournal(Collection<DataType> committed) {
+        if (journalReconciled) journal.commit(committed);
+    }
+
+    private static List<Message> skipUploaded(List<Message> messages, Set<String> uploaded) {
+        if (uploaded.isEmpty()) return messages;
+
+        final List<Message> toAppend = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId != null && uploaded.remove(messageId)) {
+                Log.d(TAG, "skipping already uploaded message " + messageId);
+            } else {
+                toAppend.add(message);
+            }
+        }
+        return toAppend;
+    }
+
+    private static List<String> getMessageIds(List<Message> messages) {
+        final List<String> ids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId != null) ids.add(messageId);
+        }
+        return ids;
+    }
+
+    /**
+     * Uploads messages, retrying transient failures (timeouts, BYE, throttling) after
+     * reconnecting. Messages which made it to the server before the failure are not sent again.
+     */
+    private void appendMessages(DataType dataType,
+                                @Nullable BackupImapStore.BackupFolder folder,
+                                List<Message> messages) throws MessagingException {
+        if (folder == null || messages.isEmpty()) return;
+        traffic.enter(TrafficMeter.Phase.APPEND, dataType);
+
+        List<Message> toAppend = messages;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (attempt > 1) {
+                    folder.close();
+                    folder.open(Folder.OpenMode.READ_WRITE);
+                    toAppend = notOnServer(folder, toAppend);
+                }
+                if (!toAppend.isEmpty()) {
+                    final long started = PipelineMetrics.start();
+                    folder.appendMessages(toAppend.toArray(new Message[toAppend.size()]));
+                    metrics.stop(PipelineMetrics.Stage.UPLOAD, started, toAppend.size());
+                }
+                countItems(dataType, messages.size());
+                break;
+            } catch (MessagingException e) {
+                if (attempt >= RetryPolicy.MAX_ATTEMPTS || isCancelled() || !RetryPolicy.isTransient(e)) {
+                    throw e;
+                }
+                retries++;
+                final long delay = retryPolicy.getDelay(attempt);
+                Log.w(TAG, "transient error uploading to " + folder.getName() + ", retrying in " + delay + "ms", e);
+                appLog(R.string.app_log_retrying_upload, delay / 1000, e.getMessage());
+                if (awaitCanceled(delay)) throw e;
+            }
+        }
+
+        final AttachmentStore attachments = converter.getAttachmentStore();
+        if (attachments != null) attachments.add(folder.getName(), messages);
+    }
+
+    /**
+     * @return true if the backup got canceled within the timeout
+     */
+    private boolean awaitCanceled(long timeout) {
+        try {
+            return canceled.await(timeout, TimeUnit.MILLISECONDS) || isCancelled();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private static List<Message> notOnServer(BackupImapStore.BackupFolder folder, List<Message> messages)
+            throws MessagingException {
+        final Set<String> onServer = folder.findMessageIds(getMessageIds(messages));
+        final List<Message> missing = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId == null || !onServer.contains(messageId)) {
+                missing.add(message);
+            } else if (LOCAL_LOGV) {
+                Log.v(TAG, "already uploaded before the failure: " + messageId);
+            }
         }
+        return missing;
     }
 
     private void publish(SmsSyncState state) {
@@ -8,7 +8,9 @@ public enum BackupType {
     INCOMING(R.string.source_incoming),
     REGULAR(R.string.source_regular),
     UNKNOWN(R.string.source_unknown),
-    MANUAL(R.string.source_manual);
+    MANUAL(R.string.source_manual),
+    /** checks that everything backed up is on the server, see BackupTask#reconcile */
+    RECONCILE(R.string.source_reconcile);
 
     public final int resId;
 
@@ -33,6 +35,6 @@ public enum BackupType {
     }
 
     public boolean isBackground() {
-        return this != MANUAL;
+        return this != MANUAL && this != RECONCILE;
     }
 }
@@ -0,0 +1,241 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.format.DateUtils;
+import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.mail.DataType.MMS;
+
+/**
+ * Detects changes to items which have already been backed up (read state changes, deletions,
+ * rows inserted with old timestamps), which the sync watermark does not notice.
+ * <p>
+ * Rows are grouped into day buckets, each with a row count and an order independent hash over
+ * (date, _id, type, read). One scan per data type compared with the fingerprints stored by the
+ * previous run gives the buckets which need to be examined again.
+ */
+class ChangeDetector {
+    static final long BUCKET_SIZE = DateUtils.DAY_IN_MILLIS;
+
+    private static final String DIR_NAME = "fingerprints";
+    private static final int VERSION = 1;
+
+    private final File dir;
+
+    ChangeDetector(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME));
+    }
+
+    ChangeDetector(File dir) {
+        this.dir = dir;
+    }
+
+    static class Fingerprint {
+        int count;
+        long hash;
+
+        Fingerprint(int count, long hash) {
+            this.count = count;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) return false;
+            final Fingerprint other = (Fingerprint) o;
+            return count == other.count && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * count + (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    static class Changes {
+        final DataType type;
+        /** watermark the fingerprints were computed up to, in provider units */
+        final long upTo;
+        final SortedMap<Long, Fingerprint> fingerprints;
+        /** buckets which differ from the previous run, oldest first */
+        final List<Long> changed;
+
+        Changes(DataType type, long upTo, SortedMap<Long, Fingerprint> fingerprints, List<Long> changed) {
+            this.type = type;
+            this.upTo = upTo;
+            this.fingerprints = fingerprints;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * @param cursor rows up to <code>upTo</code>, with the columns (_id, date, type, read)
+     * @param upTo   the current sync watermark
+     */
+    Changes detect(DataType type, Cursor cursor, long upTo) {
+        final Stored stored = load(type);
+        final SortedMap<Long, Fingerprint> current = new TreeMap<Long, Fingerprint>();
+        // only the range covered by the previous run can be compared, newer rows were
+        // backed up by advancing the watermark since
+        final SortedMap<Long, Fingerprint> comparable = new TreeMap<Long, Fingerprint>();
+
+        while (cursor.moveToNext()) {
+            final long date = cursor.getLong(1);
+            final long bucket = toMillis(type, date) / BUCKET_SIZE;
+            final long hash = hash(cursor.getLong(0), date, cursor.getInt(2), cursor.getInt(3));
+
+            add(current, bucket, hash);
+            if (stored != null && date <= stored.upTo) add(comparable, bucket, hash);
+        }
+
+        final List<Long> changed = new ArrayList<Long>();
+        if (stored != null) {
+            final SortedMap<Long, Fingerprint> buckets = new TreeMap<Long, Fingerprint>(comparable);
+            buckets.putAll(stored.fingerprints);
+            for (Long bucket : buckets.keySet()) {
+                final Fingerprint before = stored.fingerprints.get(bucket);
+                final Fingerprint now = comparable.get(bucket);
+                if (before == null || !before.equals(now)) changed.add(bucket);
+            }
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "%s: %d bucket(s), %d changed", type, current.size(),
+                    changed.size()));
+        }
+        return new Changes(type, upTo, current, changed);
+    }
+
+    /**
+     * Stores the fingerprints for the next run, once all changed buckets have been handled.
+     */
+    void save(Changes changes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "could not create " + dir);
+            return;
+        }
+        final File file = getFile(changes.type);
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            final FileOutputStream fos = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(VERSION);
+                out.writeLong(changes.upTo);
+                out.writeInt(changes.fingerprints.size());
+                for (Map.Entry<Long, Fingerprint> entry : changes.fingerprints.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeInt(entry.getValue().count);
+                    out.writeLong(entry.getValue().hash);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) Log.w(TAG, "could not rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing fingerprints", e);
+        }
+    }
+
+    /**
+     * @return the bucket's date range [from, to) in provider units
+     */
+    static long[] getRange(DataType type, long bucket) {
+        final long from = bucket * BUCKET_SIZE, to = from + BUCKET_SIZE;
+        return type == MMS ? new long[] { from / 1000, to / 1000 } : new long[] { from, to };
+    }
+
+    private static long toMillis(DataType type, long date) {
+        // MMS dates are in seconds
+        return type == MMS ? date * 1000 : date;
+    }
+
+    private static void add(Map<Long, Fingerprint> fingerprints, long bucket, long hash) {
+        final Fingerprint fingerprint = fingerprints.get(bucket);
+        if (fingerprint == null) {
+            fingerprints.put(bucket, new Fingerprint(1, hash));
+        } else {
+            // a sum does not depend on the order of the rows and can be updated row by row
+            fingerprint.count++;
+            fingerprint.hash += hash;
+        }
+    }
+
+    private static long hash(long id, long date, int type, int read) {
+        long h = mix(id);
+        h = mix(h ^ date);
+        h = mix(h ^ type);
+        return mix(h ^ read);
+    }
+
+    // finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private @Nullable Stored load(DataType type) {
+        final File file = getFile(type);
+        if (!file.exists()) return null;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) return null;
+                final long upTo = in.readLong();
+                final int size = in.readInt();
+                final SortedMap<Long, Fingerprint> fingerprints = new TreeMap<Long, Fingerprint>();
+                for (int i = 0; i < size; i++) {
+                    fingerprints.put(in.readLong(), new Fingerprint(in.readInt(), in.readLong()));
+                }
+                return new Stored(upTo, fingerprints);
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "truncated fingerprints for " + type);
+        } catch (IOException e) {
+            Log.w(TAG, "error reading fingerprints", e);
+        }
+        return null;
+    }
+
+    private File getFile(DataType type) {
+        return new File(dir, type.name().toLowerCase(Locale.ENGLISH));
+    }
+
+    private static class Stored {
+        final long upTo;
+        final SortedMap<Long, Fingerprint> fingerprints;
+
+        Stored(long upTo, SortedMap<Long, Fingerprint> fingerprints) {
+            this.upTo = upTo;
+            this.fingerprints = fingerprints;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.zegoggles.smssync.service;
+
+import android.os.AsyncTask;
+import android.util.Log;
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.MessagingException;
+import com.squareup.otto.Subscribe;
+import com.zegoggles.smssync.App;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+import com.zegoggles.smssync.service.exception.ConnectivityException;
+import com.zegoggles.smssync.service.state.DedupState;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import com.zegoggles.smssync.utils.LongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.service.state.SmsSyncState.*;
+
+/**
+ * Removes duplicate messages from the backup folders on the server. Only a few header
+ * fields are fetched per message, duplicates are detected with an in-memory index of
+ * 64 bit hashes. The message with the lowest uid is kept.
+ */
+class DedupTask extends AsyncTask<Void, DedupState, DedupState> {
+    /** number of messages fetched / deleted with a single command */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] FIELDS = {
+            Headers.MESSAGE_ID,
+            Headers.DATATYPE,
+            Headers.TYPE,
+            Headers.DATE,
+            Headers.ADDRESS
+    };
+
+    private final SmsDedupService service;
+    private final BackupImapStore imapStore;
+
+    private int currentCount, totalCount, duplicateCount, flaggedCount;
+
+    DedupTask(SmsDedupService service, BackupImapStore imapStore) {
+        this.service = service;
+        this.imapStore = imapStore;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        App.bus.register(this);
+    }
+
+    @Subscribe public void userCanceled(UserCanceled canceled) {
+        cancel(false);
+    }
+
+    @NotNull protected DedupState doInBackground(Void... params) {
+        final Map<BackupImapStore.BackupFolder, List<Long>> folders =
+                new LinkedHashMap<BackupImapStore.BackupFolder, List<Long>>();
+        try {
+            service.acquireLocks();
+            publishProgress(LOGIN);
+
+            final Set<String> names = new HashSet<String>();
+            for (DataType type : DataType.values()) {
+                // several data types might be backed up to the same folder
+                if (type.isBackupEnabled(service) && names.add(type.getFolder(service))) {
+                    folders.put(imapStore.getFolder(type), null);
+                }
+            }
+
+            publishProgress(CALC);
+            for (BackupImapStore.BackupFolder folder : folders.keySet()) {
+                final List<Long> uids = folder.getUids();
+                folders.put(folder, uids);
+                totalCount += uids.size();
+            }
+
+            for (Map.Entry<BackupImapStore.BackupFolder, List<Long>> entry : folders.entrySet()) {
+                if (isCancelled()) break;
+                dedup(entry.getKey(), entry.getValue());
+            }
+            return new DedupState(isCancelled() ? CANCELED_DEDUP : FINISHED_DEDUP,
+                    currentCount, totalCount, duplicateCount, flaggedCount, null, null);
+        } catch (ConnectivityException e) {
+            return transition(ERROR, e);
+        } catch (AuthenticationFailedException e) {
+            return transition(ERROR, e);
+        } catch (MessagingException e) {
+            Log.e(TAG, "error", e);
+            return transition(ERROR, e);
+        } finally {
+            for (BackupImapStore.BackupFolder folder : folders.keySet()) {
+                folder.close();
+            }
+            service.releaseLocks();
+        }
+    }
+
+    private void dedup(BackupImapStore.BackupFolder folder, List<Long> uids) throws MessagingException {
+        Log.i(TAG, "checking " + uids.size() + " message(s) in " + folder.getName() + " for duplicates");
+
+        final LongHashSet seen = new LongHashSet(uids.size());
+        for (int start = 0; start < uids.size() && !isCancelled(); start += BATCH_SIZE) {
+            final List<Long> batch = uids.subList(start, Math.min(start + BATCH_SIZE, uids.size()));
+            final Map<Long, Map<String, String>> headers = folder.fetchHeaders(batch, FIELDS);
+
+            final List<Long> duplicates = new ArrayList<Long>();
+            DataType dataType = null;
+            // uids are ascending, so the first (oldest) copy of a message is the one kept
+            for (Long uid : batch) {
+                final Map<String, String> fields = headers.get(uid);
+                final String key = fields == null ? null : getKey(fields);
+                if (key == null) continue;
+
+                if (!seen.add(hash(key))) {
+                    duplicates.add(uid);
+                }
+                dataType = getDataType(fields);
+            }
+
+            if (!duplicates.isEmpty()) {
+                if (LOCAL_LOGV) Log.v(TAG, "deleting duplicates " + duplicates);
+                if (!folder.deleteMessages(duplicates)) {
+                    flaggedCount += duplicates.size();
+                }
+                duplicateCount += duplicates.size();
+            }
+            currentCount += batch.size();
+            publishProgress(new DedupState(DEDUP, currentCount, totalCount, duplicateCount, flaggedCount, dataType, null));
+        }
+    }
+
+    /**
+     * @return a key identifying the backed up item, or null if the message was not created by the
+     * app, i.e. it has neither a data type header nor the date/type/address headers of legacy backups
+     */
+    static @Nullable String getKey(Map<String, String> fields) {
+        final String dataType = fields.get(Headers.DATATYPE.toLowerCase(Locale.ENGLISH));
+        final String messageId = fields.get(Headers.MESSAGE_ID.toLowerCase(Locale.ENGLISH));
+        final String date = fields.get(Headers.DATE.toLowerCase(Locale.ENGLISH));
+        final String type = fields.get(Headers.TYPE.toLowerCase(Locale.ENGLISH));
+        final String address = fields.get(Headers.ADDRESS.toLowerCase(Locale.ENGLISH));
+
+        if (dataType != null && messageId != null) {
+            return dataType + "|" + messageId;
+        } else if (date != null && type != null && address != null) {
+            // same fields as used for the Message-ID of legacy backups, which have no data type
+            return (dataType == null ? "" : dataType) + "|" + date + "|" + type + "|" + address;
+        } else {
+            return null;
+        }
+    }
+
+    private static @Nullable DataType getDataType(Map<String, String> fields) {
+        final String dataType = fields.get(Headers.DATATYPE.toLowerCase(Locale.ENGLISH));
+        if (dataType == null) return null;
+        try {
+            return DataType.valueOf(dataType.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static long hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void publishProgress(SmsSyncState smsSyncState) {
+        publishProgress(transition(smsSyncState, null));
+    }
+
+    private DedupState transition(SmsSyncState smsSyncState, Exception exception) {
+        return service.getState().transition(smsSyncState, exception);
+    }
+
+    @Override
+    protected void onPostExecute(DedupState result) {
+        if (result != null) {
+            Log.d(TAG, "finished (" + result + ")");
+            App.bus.post(result);
+        }
+        App.bus.unregister(this);
+    }
+
+    @Override
+    protected void onCancelled() {
+        Log.d(TAG, "dedup canceled by user");
+        App.bus.post(transition(CANCELED_DEDUP, null));
+        App.bus.unregister(this);
+    }
+
+    @Override
+    protected void onProgressUpdate(DedupState... progress) {
+        if (progress != null && progress.length > 0 && !isCancelled()) {
+            App.bus.post(progress[0]);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.zegoggles.smssync.service;
+
+/**
+ * Tracks the peak Java heap usage of a backup or restore. The heap is only sampled when the
+ * task reports progress, so short spikes in between can be missed.
+ */
+class HeapMeter {
+    private long peak;
+
+    void sample() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > peak) peak = used;
+    }
+
+    /**
+     * @return the peak heap usage in bytes
+     */
+    long getPeak() {
+        sample();
+        return peak;
+    }
+}
@@ -0,0 +1,106 @@
+package com.zegoggles.smssync.service;
+
+import android.text.format.DateUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A Merkle tree over day buckets of Message-IDs. Leaves hold the sum of the hashes of the
+ * Message-IDs of one day, inner nodes the sum of their children. Sums don't depend on the order
+ * messages get added in, so trees built from the device and from the server can be compared
+ * directly, descending only into subtrees which differ.
+ */
+class MerkleTree {
+    static final long BUCKET_SIZE = DateUtils.DAY_IN_MILLIS;
+
+    /** children per inner node: days, ~1 month, ~3 years, ~90 years */
+    private static final int FANOUT = 32;
+    private static final int LEVELS = 4;
+
+    private final List<Map<Long, Long>> levels = new ArrayList<Map<Long, Long>>(LEVELS);
+    private long root;
+    private int size;
+
+    MerkleTree() {
+        for (int i = 0; i < LEVELS; i++) {
+            levels.add(new HashMap<Long, Long>());
+        }
+    }
+
+    void add(long date, String messageId) {
+        final long hash = hash(messageId);
+        long node = date < 0 ? -1 : date / BUCKET_SIZE;
+        for (Map<Long, Long> level : levels) {
+            final Long current = level.get(node);
+            level.put(node, current == null ? hash : current + hash);
+            node = node < 0 ? -1 : node / FANOUT;
+        }
+        root += hash;
+        size++;
+    }
+
+    long getRoot() {
+        return root;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the day buckets which differ between the two trees, oldest first
+     */
+    static SortedSet<Long> diff(MerkleTree a, MerkleTree b) {
+        final SortedSet<Long> days = new TreeSet<Long>();
+        if (a.root != b.root) {
+            final int top = LEVELS - 1;
+            final SortedSet<Long> nodes = new TreeSet<Long>(a.levels.get(top).keySet());
+            nodes.addAll(b.levels.get(top).keySet());
+            diff(a, b, top, nodes, days);
+        }
+        return days;
+    }
+
+    private static void diff(MerkleTree a, MerkleTree b, int level, Iterable<Long> nodes, SortedSet<Long> days) {
+        for (Long node : nodes) {
+            if (a.get(level, node) == b.get(level, node)) continue;
+
+            if (level == 0) {
+                days.add(node);
+            } else {
+                final List<Long> children = new ArrayList<Long>(FANOUT);
+                if (node < 0) {
+                    children.add(-1L);
+                } else {
+                    for (long child = node * FANOUT; child < (node + 1) * FANOUT; child++) {
+                        if (a.levels.get(level - 1).containsKey(child) ||
+                            b.levels.get(level - 1).containsKey(child)) {
+                            children.add(child);
+                        }
+                    }
+                }
+                diff(a, b, level - 1, children, days);
+            }
+        }
+    }
+
+    private long get(int level, long node) {
+        final Long hash = levels.get(level).get(node);
+        return hash == null ? 0 : hash;
+    }
+
+    // FNV-1a, 64 bit
+    private static long hash(String messageId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            h ^= messageId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,31 @@
+package com.zegoggles.smssync.service;
+
+import android.os.SystemClock;
+
+/**
+ * Limits how often a running task publishes its progress. Every progress update goes to the
+ * bus, the status view and the notification, doing that for every single item slows down fast
+ * runs. Skipped updates are covered by the next one, which carries the latest counts. State
+ * changes (login, finished, errors) are published directly and not subject to this.
+ */
+class ProgressThrottle {
+    /** minimum time between two updates, in ms */
+    static final long MIN_INTERVAL = 250;
+
+    private long lastPublished = -1;
+
+    /**
+     * @param done  items handled so far
+     * @param total total number of items
+     * @return whether to publish the progress now. Always true for the first and the last item.
+     */
+    boolean isDue(int done, int total) {
+        final long now = SystemClock.elapsedRealtime();
+        if (lastPublished < 0 || done >= total || now - lastPublished >= MIN_INTERVAL) {
+            lastPublished = now;
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
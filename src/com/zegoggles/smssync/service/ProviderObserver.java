@@ -0,0 +1,76 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.LocalExportFormat;
+import com.zegoggles.smssync.preferences.Preferences;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Watches the sms, mms and call log providers and schedules an incoming backup of the changed
+ * data types. Unlike {@link com.zegoggles.smssync.receiver.SmsBroadcastReceiver} this also picks
+ * up sent messages, mms and calls. Observers only get notified while the process is running.
+ */
+public class ProviderObserver extends ContentObserver {
+    private final Context context;
+    private final DataType dataType;
+
+    private ProviderObserver(Context context, Handler handler, DataType dataType) {
+        super(handler);
+        this.context = context;
+        this.dataType = dataType;
+    }
+
+    /**
+     * Registers observers for all supported providers, needs to be called from the main thread.
+     */
+    public static void register(Context context) {
+        final Handler handler = new Handler();
+        register(context, handler, Consts.SMS_PROVIDER, DataType.SMS);
+        register(context, handler, Consts.MMS_PROVIDER, DataType.MMS);
+        register(context, handler, Consts.CALLLOG_PROVIDER, DataType.CALLLOG);
+    }
+
+    private static void register(Context context, Handler handler, Uri uri, DataType dataType) {
+        try {
+            context.getContentResolver().registerContentObserver(uri, true,
+                    new ProviderObserver(context, handler, dataType));
+        } catch (SecurityException e) {
+            Log.w(TAG, "could not observe " + uri, e);
+        }
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        if (LOCAL_LOGV) Log.v(TAG, "onChange(" + dataType + ")");
+        if (SmsRestoreService.isServiceWorking()) {
+            // restored items are already on the server
+            return;
+        }
+        trigger(context, dataType);
+    }
+
+    /**
+     * Marks the data type as changed and schedules an incoming backup, see
+     * {@link Alarms#scheduleIncomingBackup}.
+     */
+    public static void trigger(Context context, DataType dataType) {
+        if (!Preferences.isEnableAutoSync(context) ||
+            !(AuthPreferences.isLoginInformationSet(context) || LocalExportFormat.isEnabled(context)) ||
+            Preferences.isFirstBackup(context) ||
+            !dataType.isBackupEnabled(context)) {
+            if (LOCAL_LOGV) Log.v(TAG, dataType + " changed but not set up to sync");
+            return;
+        }
+        dataType.setDirty(context);
+        Alarms.scheduleIncomingBackup(context);
+    }
+}
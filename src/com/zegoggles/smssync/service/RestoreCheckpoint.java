@@ -0,0 +1,71 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps track of the last restored IMAP UID per folder, so that an interrupted
+ * restore can continue where it left off. A checkpoint is only valid for the
+ * UIDVALIDITY it was recorded with and gets discarded otherwise.
+ */
+class RestoreCheckpoint {
+    private static final String PREFIX = "restore_checkpoint_";
+    private static final String UID_VALIDITY = "_uidvalidity";
+    private static final String LAST_UID = "_uid";
+
+    private final Context context;
+
+    RestoreCheckpoint(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return the last restored uid in this folder, or -1 if there is no (valid) checkpoint
+     */
+    public long getLastUid(String folder, long uidValidity) {
+        if (uidValidity < 0) return -1;
+
+        final SharedPreferences prefs = prefs();
+        final long storedValidity = prefs.getLong(key(folder, UID_VALIDITY), -1);
+        if (storedValidity < 0) {
+            return -1;
+        } else if (storedValidity != uidValidity) {
+            Log.i(TAG, "UIDVALIDITY of " + folder + " changed (" + storedValidity + " -> " + uidValidity + ")" +
+                    ", discarding restore checkpoint");
+            clear(folder);
+            return -1;
+        } else {
+            return prefs.getLong(key(folder, LAST_UID), -1);
+        }
+    }
+
+    public void update(String folder, long uidValidity, long lastUid) {
+        if (uidValidity < 0 || lastUid < 0) return;
+        if (LOCAL_LOGV) Log.v(TAG, "checkpoint(" + folder + ", " + uidValidity + ", " + lastUid + ")");
+
+        prefs().edit()
+                .putLong(key(folder, UID_VALIDITY), uidValidity)
+                .putLong(key(folder, LAST_UID), lastUid)
+                .commit();
+    }
+
+    public void clear(String folder) {
+        prefs().edit()
+                .remove(key(folder, UID_VALIDITY))
+                .remove(key(folder, LAST_UID))
+                .commit();
+    }
+
+    private static String key(String folder, String suffix) {
+        return PREFIX + folder + suffix;
+    }
+
+    private SharedPreferences prefs() {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+}
@@ -0,0 +1,269 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentValues;
+import android.util.Log;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Fetches and parses messages to restore on two background threads, so that network
+ * latency, MIME parsing and provider inserts (done by the consumer) overlap.
+ * <p/>
+ * Fetcher → (bounded queue) → parser → (bounded queue) → consumer ({@link #next()})
+ */
+class RestorePipeline {
+    /** number of message bodies fetched with a single FETCH command */
+    static final int BATCH_SIZE = 20;
+
+    /** number of batches buffered between stages */
+    private static final int QUEUE_CAPACITY = 2;
+
+    /** cache files written shortly before a fetch started might still be in use */
+    private static final long CACHE_SAFETY_MARGIN = 2000;
+
+    /** how long to wait for each stage to end after stopping */
+    private static final long STOP_TIMEOUT = 10000;
+
+    private static final Batch END = new Batch(Collections.<Message>emptyList(), 0, null);
+
+    private final List<Message> messages;
+    private final MessageConverter converter;
+    private final SmsRestoreService service;
+    private final PipelineMetrics metrics;
+
+    private final BlockingQueue<Batch> fetched = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+    private final BlockingQueue<List<Item>> parsed = new ArrayBlockingQueue<List<Item>>(QUEUE_CAPACITY);
+
+    private final Thread fetcher = new Thread("RestoreFetcher") {
+        @Override
+        public void run() {
+            try {
+                fetch();
+            } catch (InterruptedException e) {
+                if (LOCAL_LOGV) Log.v(TAG, "fetcher interrupted");
+            } catch (Throwable t) {
+                Log.e(TAG, "error fetching messages", t);
+                failure = t;
+            } finally {
+                // the parser would otherwise wait for the end forever
+                finish(fetched, END);
+            }
+        }
+    };
+
+    private final Thread parser = new Thread("RestoreParser") {
+        @Override
+        public void run() {
+            try {
+                parse();
+            } catch (InterruptedException e) {
+                if (LOCAL_LOGV) Log.v(TAG, "parser interrupted");
+            } catch (Throwable t) {
+                Log.e(TAG, "error parsing messages", t);
+                failure = t;
+            } finally {
+                finish(parsed, Collections.<Item>emptyList());
+            }
+        }
+    };
+
+    private volatile boolean stopped;
+    /** an unexpected error which ended one of the stages */
+    private volatile @Nullable Throwable failure;
+
+    RestorePipeline(SmsRestoreService service, MessageConverter converter, List<Message> messages,
+                    PipelineMetrics metrics) {
+        this.service = service;
+        this.converter = converter;
+        this.messages = messages;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        fetcher.start();
+        parser.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        fetcher.interrupt();
+        parser.interrupt();
+    }
+
+    /**
+     * Stops the pipeline and waits for the fetcher and the parser to end, so they don't write to
+     * the message cache any more.
+     * @return true if both stages ended in time
+     */
+    public boolean stopAndWait() {
+        stop();
+        try {
+            fetcher.join(STOP_TIMEOUT);
+            parser.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !fetcher.isAlive() && !parser.isAlive();
+    }
+
+    /**
+     * @return the next batch of parsed messages, in the original order, or null if there
+     * are no more messages or the pipeline was stopped.
+     * @throws IllegalStateException if fetching or parsing failed unexpectedly
+     */
+    public @Nullable List<Item> next() throws InterruptedException {
+        while (!stopped) {
+            final List<Item> items = parsed.poll(1, TimeUnit.SECONDS);
+            if (items != null) {
+                if (!items.isEmpty()) return items;
+
+                final Throwable t = failure;
+                if (t != null) throw new IllegalStateException("restore pipeline failed", t);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the end marker of a stage, unless the pipeline was stopped and nobody waits for it.
+     */
+    private <T> void finish(BlockingQueue<T> queue, T end) {
+        if (stopped) return;
+        try {
+            queue.put(end);
+        } catch (InterruptedException e) {
+            if (LOCAL_LOGV) Log.v(TAG, "interrupted while finishing");
+        }
+    }
+
+    private void fetch() throws InterruptedException {
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+
+        for (int start = 0; start < messages.size() && !stopped; start += BATCH_SIZE) {
+            final int end = Math.min(start + BATCH_SIZE, messages.size());
+            final List<Message> batch = new ArrayList<Message>(messages.subList(start, end));
+            final long fetchStarted = System.currentTimeMillis();
+            MessagingException error = null;
+            try {
+                if (LOCAL_LOGV) Log.v(TAG, "fetching " + batch.size() + " message(s)");
+                // messages from different folders have to be fetched separately
+                for (List<Message> sameFolder : groupByFolder(batch)) {
+                    final long started = PipelineMetrics.start();
+                    final Message[] toFetch = sameFolder.toArray(new Message[sameFolder.size()]);
+                    final Folder folder = sameFolder.get(0).getFolder();
+                    if (folder instanceof BackupImapStore.BackupFolder) {
+                        ((BackupImapStore.BackupFolder) folder).fetch(toFetch, fp);
+                    } else {
+                        folder.fetch(toFetch, fp, null);
+                    }
+                    metrics.stop(PipelineMetrics.Stage.DOWNLOAD, started, sameFolder.size());
+                }
+            } catch (MessagingException e) {
+                Log.e(TAG, "error fetching messages", e);
+                error = e;
+            }
+            for (int i = start; i < end; i++) {
+                messages.set(i, null); // help gc
+            }
+            fetched.put(new Batch(batch, fetchStarted, error));
+        }
+    }
+
+    private void parse() throws InterruptedException {
+        Batch batch;
+        while ((batch = fetched.take()) != END) {
+            // all bodies fetched before this batch have been parsed already
+            service.clearCache(batch.fetchStarted - CACHE_SAFETY_MARGIN);
+
+            final List<Item> items = new ArrayList<Item>(batch.messages.size());
+            for (Message message : batch.messages) {
+                items.add(batch.error != null ? new Item(message, null, null, batch.error) : parse(message));
+            }
+            parsed.put(items);
+        }
+    }
+
+    private Item parse(Message message) {
+        DataType dataType = null;
+        try {
+            dataType = converter.getDataType(message);
+            switch (dataType) {
+                case SMS:
+                case CALLLOG:
+                    final long started = PipelineMetrics.start();
+                    final ContentValues values = converter.messageToContentValues(message);
+                    metrics.stop(PipelineMetrics.Stage.CONVERSION, started);
+                    return new Item(message, dataType, values, null);
+                default:
+                    return new Item(message, dataType, null, null);
+            }
+        } catch (MessagingException e) {
+            return new Item(message, dataType, null, e);
+        } catch (IllegalArgumentException e) {
+            // http://code.google.com/p/android/issues/detail?id=2916
+            return new Item(message, dataType, null, e);
+        } catch (IOException e) {
+            return new Item(message, dataType, null, e);
+        }
+    }
+
+    private static List<List<Message>> groupByFolder(List<Message> batch) {
+        final List<List<Message>> groups = new ArrayList<List<Message>>();
+        List<Message> current = null;
+        for (Message message : batch) {
+            if (current == null || current.get(0).getFolder() != message.getFolder()) {
+                current = new ArrayList<Message>();
+                groups.add(current);
+            }
+            current.add(message);
+        }
+        return groups;
+    }
+
+    static class Item {
+        /** null for items read from the local archive */
+        final @Nullable Message message;
+        final @Nullable DataType dataType;
+        final @Nullable ContentValues values;
+        final @Nullable Exception error;
+
+        Item(@Nullable Message message, @Nullable DataType dataType, @Nullable ContentValues values, @Nullable Exception error) {
+            this.message = message;
+            this.dataType = dataType;
+            this.values = values;
+            this.error = error;
+        }
+    }
+
+    private static class Batch {
+        final List<Message> messages;
+        final long fetchStarted;
+        final @Nullable MessagingException error;
+
+        Batch(List<Message> messages, long fetchStarted, @Nullable MessagingException error) {
+            this.messages = messages;
+            this.fetchStarted = fetchStarted;
+            this.error = error;
+        }
+    }
+}
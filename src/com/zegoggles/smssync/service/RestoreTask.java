@@ -1,32 +1,51 @@
 package com.zegoggles.smssync.service;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.provider.CallLog;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
-import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ColumnarArchive;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.service.exception.ConnectivityException;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import com.zegoggles.smssync.utils.ThroughputMeter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -36,49 +55,84 @@ import static com.zegoggles.smssync.mail.DataType.SMS;
 import static com.zegoggles.smssync.service.state.SmsSyncState.*;
 
 class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
+    private static final Uri SMS_CONVERSATIONS = Uri.parse("content://sms/conversations");
+
+    /** above this number of touched threads a full update is cheaper than updating them one by one */
+    private static final int MAX_THREADS_TO_UPDATE = 200;
+
     private Set<String> smsIds = new HashSet<String>();
     private Set<String> callLogIds = new HashSet<String>();
     private Set<String> uids = new HashSet<String>();
+    private Set<Long> threadIds = new HashSet<Long>();
+    private boolean unknownThreadIds;
     private BackupImapStore.BackupFolder callFolder;
     private final SmsRestoreService service;
     private final ContentResolver resolver;
     private final MessageConverter converter;
-    private final BackupImapStore imapStore;
-    private final boolean restoreSms, restoreCallLog, restoreOnlyStarred;
+    private final @Nullable BackupImapStore imapStore;
+    private final @Nullable ColumnarArchive.Reader archive;
+    private final RestoreCheckpoint checkpoint;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final TrafficMeter traffic = new TrafficMeter();
+    private final ProgressThrottle throttle = new ProgressThrottle();
+    private final HeapMeter heap = new HeapMeter();
+    private volatile @Nullable RestorePipeline pipeline;
+    /** messages handled, and the provider calls made for them */
+    private int processed, providerQueries, providerInserts;
+    private long started;
+    private final Map<Folder, FolderProgress> progress = new IdentityHashMap<Folder, FolderProgress>();
+    private final boolean restoreSms, restoreCallLog, restoreOnlyStarred, restoreIncremental;
 
     public RestoreTask(SmsRestoreService service,
-                       BackupImapStore imapStore,
+                       @Nullable BackupImapStore imapStore,
                        MessageConverter converter,
-                       boolean restoreSms, boolean restoreCalllog, boolean restoreOnlyStarred) {
+                       boolean restoreSms, boolean restoreCalllog, boolean restoreOnlyStarred,
+                       boolean restoreIncremental,
+                       @Nullable ColumnarArchive.Reader archive) {
         this.service = service;
         this.imapStore = imapStore;
+        this.archive = archive;
         this.converter = converter;
         this.restoreSms = restoreSms;
         this.restoreCallLog = restoreCalllog;
         this.restoreOnlyStarred = restoreOnlyStarred;
+        this.restoreIncremental = restoreIncremental;
+        this.checkpoint = new RestoreCheckpoint(service);
         resolver = service.getContentResolver();
     }
 
     @Override
     protected void onPreExecute() {
+        started = System.currentTimeMillis();
         App.bus.register(this);
     }
 
     @Subscribe public void userCanceled(UserCanceled canceled) {
         cancel(false);
+        // don't wait for the batch currently being fetched
+        final RestorePipeline running = pipeline;
+        if (running != null) running.stop();
     }
 
     @NotNull protected RestoreState doInBackground(Integer... params) {
-        int max = params.length > 0 ? params[0] : -1;
+        final RestoreState result = restore(params.length > 0 ? params[0] : -1);
+        // the history is a file, record the run here and not on the main thread
+        recordRun(isCancelled() ? transition(CANCELED_RESTORE, null) : result, metrics.getSummary());
+        return result;
+    }
 
+    @NotNull private RestoreState restore(int max) {
         if (!restoreSms && !restoreCallLog) {
             return new RestoreState(FINISHED_RESTORE, 0, 0, 0, 0, null, null);
+        } else if (archive != null) {
+            return restoreFromArchive(archive, max);
         }
 
         try {
             service.acquireLocks();
 
             publishProgress(LOGIN);
+            traffic.enter(TrafficMeter.Phase.LOGIN, null);
             BackupImapStore.BackupFolder smsFolder = imapStore.getFolder(SMS);
             if (restoreCallLog) callFolder = imapStore.getFolder(CALLLOG);
 
@@ -86,25 +140,49 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
 
             final List<Message> msgs = new ArrayList<Message>();
 
-            if (restoreSms) msgs.addAll(smsFolder.getMessages(max, restoreOnlyStarred, null));
-            if (restoreCallLog) msgs.addAll(callFolder.getMessages(max, restoreOnlyStarred, null));
+            final long started = PipelineMetrics.start();
+            if (restoreSms) msgs.addAll(getMessagesToRestore(smsFolder, SMS, max));
+            if (restoreCallLog) msgs.addAll(getMessagesToRestore(callFolder, CALLLOG, max));
+            metrics.stop(PipelineMetrics.Stage.QUERY, started, msgs.size());
 
             int itemsToRestoreCount = max <= 0 ? msgs.size() : Math.min(msgs.size(), max);
             int currentRestoredItem = 0;
-            for (int i = 0; i < itemsToRestoreCount && !isCancelled(); i++) {
-                DataType dataType = importMessage(msgs.get(i));
-                currentRestoredItem = i;
-
-                msgs.set(i, null); // help gc
-                publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
-                if (i % 50 == 0) {
-                    //clear cache periodically otherwise SD card fills up
-                    service.clearCache();
+            final ThroughputMeter meter = new ThroughputMeter(false);
+
+            final RestorePipeline pipeline = new RestorePipeline(service, converter,
+                    msgs.subList(0, itemsToRestoreCount), metrics);
+            this.pipeline = pipeline;
+            traffic.enter(TrafficMeter.Phase.FETCH, null);
+            pipeline.start();
+            boolean ended = false;
+            try {
+                List<RestorePipeline.Item> batch;
+                while (!isCancelled() && (batch = pipeline.next()) != null) {
+                    importBatch(batch);
+                    currentRestoredItem += batch.size();
+
+                    if (throttle.isDue(currentRestoredItem, itemsToRestoreCount)) {
+                        heap.sample();
+                        publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0,
+                                batch.get(batch.size() - 1).dataType, null)
+                                .withThroughput(meter.update(currentRestoredItem, itemsToRestoreCount)));
+                    }
+                    saveCheckpoints();
                 }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted", e);
+            } finally {
+                ended = pipeline.stopAndWait();
+            }
+            if (ended) {
+                service.clearCache();
+            } else {
+                Log.w(TAG, "restore pipeline still running, not clearing the cache");
             }
             if (!isCancelled()) {
                 publishProgress(UPDATING_THREADS);
-                updateAllThreads();
+                updateThreads();
+                if (currentRestoredItem == msgs.size()) completeCheckpoints();
             }
             final int restoredCount = smsIds.size() + callLogIds.size();
             return new RestoreState(isCancelled() ? CANCELED_RESTORE : FINISHED_RESTORE,
@@ -127,6 +205,227 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
         }
     }
 
+    /**
+     * Restores sms and call log entries from the local compact archive, segments outside of
+     * the incremental restore range are skipped without reading them. Like the restore from the
+     * server, only the <code>max</code> most recent items of each type are restored.
+     */
+    private RestoreState restoreFromArchive(ColumnarArchive.Reader reader, int max) {
+        try {
+            try {
+                service.acquireLocks();
+            } catch (ConnectivityException ignored) {
+                // no network needed to restore from local storage
+            }
+            publishProgress(CALC);
+
+            final Map<DataType, List<ColumnarArchive.Segment>> segments =
+                    new EnumMap<DataType, List<ColumnarArchive.Segment>>(DataType.class);
+            if (restoreSms) segments.put(SMS, getSegmentsToRestore(reader, SMS, max));
+            if (restoreCallLog) segments.put(CALLLOG, getSegmentsToRestore(reader, CALLLOG, max));
+
+            int itemsToRestoreCount = 0;
+            for (List<ColumnarArchive.Segment> list : segments.values()) {
+                itemsToRestoreCount += countRows(list);
+            }
+            if (max > 0) itemsToRestoreCount = Math.min(itemsToRestoreCount, max);
+
+            int currentRestoredItem = 0;
+            final ThroughputMeter meter = new ThroughputMeter(false);
+            final Map<DataType, Long> maxDates = new EnumMap<DataType, Long>(DataType.class);
+            for (Map.Entry<DataType, List<ColumnarArchive.Segment>> entry : segments.entrySet()) {
+                final DataType type = entry.getKey();
+                // the oldest rows of the first segment might be beyond the limit
+                int skip = max > 0 ? Math.max(0, countRows(entry.getValue()) - max) : 0;
+                for (ColumnarArchive.Segment segment : entry.getValue()) {
+                    if (isCancelled() || currentRestoredItem >= itemsToRestoreCount) break;
+
+                    final List<RestorePipeline.Item> batch = new ArrayList<RestorePipeline.Item>(segment.rows);
+                    long started = PipelineMetrics.start();
+                    List<Map<String, String>> rows = reader.read(type, segment);
+                    metrics.stop(PipelineMetrics.Stage.ROW_READ, started, rows.size());
+                    if (skip > 0) {
+                        final int skipped = Math.min(skip, rows.size());
+                        rows = rows.subList(skipped, rows.size());
+                        skip -= skipped;
+                    }
+                    if (rows.size() > itemsToRestoreCount - currentRestoredItem) {
+                        rows = rows.subList(0, itemsToRestoreCount - currentRestoredItem);
+                    }
+
+                    for (Map<String, String> row : rows) {
+                        try {
+                            started = PipelineMetrics.start();
+                            final ContentValues values = converter.rowToContentValues(type, row);
+                            metrics.stop(PipelineMetrics.Stage.CONVERSION, started);
+                            final Long date = values.getAsLong(type == SMS ? SmsConsts.DATE : CallLog.Calls.DATE);
+                            if (date != null && (!maxDates.containsKey(type) || date > maxDates.get(type))) {
+                                maxDates.put(type, date);
+                            }
+                            batch.add(new RestorePipeline.Item(null, type, values, null));
+                        } catch (MessagingException e) {
+                            batch.add(new RestorePipeline.Item(null, type, null, e));
+                        }
+                    }
+                    if (batch.isEmpty()) continue;
+
+                    importBatch(batch);
+                    currentRestoredItem += batch.size();
+                    if (throttle.isDue(currentRestoredItem, itemsToRestoreCount)) {
+                        heap.sample();
+                        publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0,
+                                type, null).withThroughput(meter.update(currentRestoredItem, itemsToRestoreCount)));
+                    }
+                }
+            }
+            if (!isCancelled()) {
+                publishProgress(UPDATING_THREADS);
+                updateThreads();
+                for (Map.Entry<DataType, Long> entry : maxDates.entrySet()) {
+                    if (entry.getValue() > entry.getKey().getMaxRestoredDate(service)) {
+                        entry.getKey().setMaxRestoredDate(service, entry.getValue());
+                    }
+                }
+            }
+            final int restoredCount = smsIds.size() + callLogIds.size();
+            return new RestoreState(isCancelled() ? CANCELED_RESTORE : FINISHED_RESTORE,
+                    currentRestoredItem,
+                    itemsToRestoreCount,
+                    restoredCount,
+                    currentRestoredItem - restoredCount, null, null);
+        } catch (IOException e) {
+            Log.e(TAG, "error reading local archive", e);
+            return transition(ERROR, e);
+        } finally {
+            service.releaseLocks();
+        }
+    }
+
+    /**
+     * @return the segments holding the <code>max</code> most recent items in the restore range,
+     * oldest first
+     */
+    private List<ColumnarArchive.Segment> getSegmentsToRestore(ColumnarArchive.Reader reader, DataType type, int max)
+            throws IOException {
+        final Date since = getRestoreSince(type);
+        final List<ColumnarArchive.Segment> segments = reader.getSegments(type, since == null ? 0 : since.getTime());
+        if (max <= 0) return segments;
+
+        int first = segments.size(), rows = 0;
+        while (first > 0 && rows < max) {
+            rows += segments.get(--first).rows;
+        }
+        return segments.subList(first, segments.size());
+    }
+
+    private static int countRows(List<ColumnarArchive.Segment> segments) {
+        int rows = 0;
+        for (ColumnarArchive.Segment segment : segments) rows += segment.rows;
+        return rows;
+    }
+
+    private List<Message> getMessagesToRestore(BackupImapStore.BackupFolder folder, DataType type, int max)
+            throws MessagingException {
+        traffic.enter(TrafficMeter.Phase.SEARCH, type);
+        final List<Message> messages = folder.getMessages(max, restoreOnlyStarred, getRestoreSince(type));
+        final FolderProgress folderProgress = new FolderProgress(type, type + "_" + folder.getName(),
+                folder.getUidValidity());
+        progress.put(folder, folderProgress);
+
+        // restore in uid order, so the last restored uid marks everything processed before it
+        Collections.sort(messages, UID_ORDER);
+
+        final long lastUid = checkpoint.getLastUid(folderProgress.key, folderProgress.uidValidity);
+        if (lastUid > 0) {
+            for (Iterator<Message> it = messages.iterator(); it.hasNext(); ) {
+                if (getUid(it.next()) <= lastUid) it.remove();
+            }
+            Log.i(TAG, "resuming restore of " + folder.getName() + " after uid " + lastUid +
+                    " (" + messages.size() + " msgs left)");
+            // threads touched by the interrupted restore might not have been updated
+            unknownThreadIds = true;
+        }
+        return messages;
+    }
+
+    private @Nullable Date getRestoreSince(DataType type) {
+        if (!restoreIncremental) return null;
+
+        final long maxRestored = type.getMaxRestoredDate(service);
+        // SENTSINCE only compares the date part, in the timezone of the message. Go back a day
+        // to be safe, already existing messages get skipped anyway.
+        return maxRestored > 0 ? new Date(maxRestored - DateUtils.DAY_IN_MILLIS) : null;
+    }
+
+    private void restoredMessage(@Nullable Message message, @Nullable Long date) {
+        if (message == null) return;
+        final FolderProgress folderProgress = progress.get(message.getFolder());
+        if (folderProgress != null && date != null && date > folderProgress.maxDate) {
+            folderProgress.maxDate = date;
+        }
+    }
+
+    private void advanceCheckpoint(@Nullable Message message, boolean success) {
+        if (message == null) return;
+        final FolderProgress folderProgress = progress.get(message.getFolder());
+        if (folderProgress == null || folderProgress.failed) return;
+
+        if (success) {
+            folderProgress.lastUid = getUid(message);
+        } else {
+            // don't move past failed messages, they will be retried on the next restore
+            folderProgress.failed = true;
+        }
+    }
+
+    private void saveCheckpoints() {
+        for (FolderProgress folderProgress : progress.values()) {
+            checkpoint.update(folderProgress.key, folderProgress.uidValidity, folderProgress.lastUid);
+        }
+    }
+
+    private void completeCheckpoints() {
+        for (FolderProgress folderProgress : progress.values()) {
+            if (folderProgress.failed) continue;
+
+            checkpoint.clear(folderProgress.key);
+            if (folderProgress.maxDate > folderProgress.type.getMaxRestoredDate(service)) {
+                folderProgress.type.setMaxRestoredDate(service, folderProgress.maxDate);
+            }
+        }
+    }
+
+    private static long getUid(Message message) {
+        try {
+            return Long.parseLong(message.getUid());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final Comparator<Message> UID_ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            final long l = getUid(lhs), r = getUid(rhs);
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    private static class FolderProgress {
+        final DataType type;
+        final String key;
+        final long uidValidity;
+        long lastUid = -1;
+        long maxDate = DataType.Defaults.MAX_SYNCED_DATE;
+        boolean failed;
+
+        FolderProgress(DataType type, String key, long uidValidity) {
+            this.type = type;
+            this.key = key;
+            this.uidValidity = uidValidity;
+        }
+    }
+
     private void publishProgress(SmsSyncState smsSyncState) {
         publishProgress(smsSyncState, null);
     }
@@ -143,7 +442,12 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
     protected void onPostExecute(RestoreState result) {
         if (result != null) {
             Log.d(TAG, "finished (" + result + "/" + uids.size() + ")");
-            post(result);
+            final PipelineMetrics.Summary summary = metrics.getSummary();
+            if (!summary.isEmpty()) {
+                Log.i(TAG, "restore timings: " + summary);
+                service.appLog(R.string.app_log_timings, summary);
+            }
+            post(result.withMetrics(summary));
         }
         App.bus.unregister(this);
     }
@@ -155,6 +459,42 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
         App.bus.unregister(this);
     }
 
+    private void recordRun(RestoreState result, PipelineMetrics.Summary summary) {
+        final TrafficMeter.Usage usage = traffic.finish();
+        if (usage != null) {
+            Log.i(TAG, "restore traffic: " + usage);
+            service.appLog(R.string.app_log_traffic, usage);
+        }
+        final Map<DataType, Integer> items = new EnumMap<DataType, Integer>(DataType.class);
+        if (!smsIds.isEmpty()) items.put(SMS, smsIds.size());
+        if (!callLogIds.isEmpty()) items.put(CALLLOG, callLogIds.size());
+        final RunHistory.Run run = new RunHistory(service).add(null, started, result,
+                items, 0, usage, heap.getPeak(), summary);
+        Log.i(TAG, "restore run: " + run);
+        service.appLog(R.string.app_log_run_summary, run.getItemCount(), run.getItemsPerSecond(),
+                Formatter.formatFileSize(service, run.peakHeap));
+
+        if (processed > 0) {
+            final int roundTrips = getImapCommandCount();
+            Log.i(TAG, String.format(Locale.ENGLISH,
+                    "restore io: %d messages, %d imap round trips, %d provider queries, %d inserts",
+                    processed, roundTrips, providerQueries, providerInserts));
+            service.appLog(R.string.app_log_restore_io, processed, roundTrips,
+                    providerQueries / (float) processed,
+                    providerInserts / (float) processed);
+        }
+    }
+
+    private int getImapCommandCount() {
+        int commands = 0;
+        for (Folder folder : progress.keySet()) {
+            if (folder instanceof BackupImapStore.BackupFolder) {
+                commands += ((BackupImapStore.BackupFolder) folder).getCommandCount();
+            }
+        }
+        return commands;
+    }
+
     @Override
     protected void onProgressUpdate(RestoreState... progress) {
         if (progress != null  && progress.length > 0 && !isCancelled()) {
@@ -166,74 +506,111 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
         App.bus.post(changed);
     }
 
-    private DataType importMessage(Message message) {
-        uids.add(message.getUid());
+    private void importBatch(List<RestorePipeline.Item> batch) {
+        final ArrayList<ContentProviderOperation> smsOps = new ArrayList<ContentProviderOperation>();
+        final ArrayList<ContentProviderOperation> callLogOps = new ArrayList<ContentProviderOperation>();
+        // catch duplicates within the same batch, they are not in the provider yet
+        final Set<String> pending = new HashSet<String>();
+        final List<Long> smsThreadIds = new ArrayList<Long>();
+        long maxSmsDate = DataType.Defaults.MAX_SYNCED_DATE;
+
+        processed += batch.size();
+        for (RestorePipeline.Item item : batch) {
+            if (item.message != null) uids.add(item.message.getUid());
+            if (item.error != null) {
+                Log.e(TAG, "error", item.error);
+                continue;
+            } else if (item.values == null || item.dataType == null) {
+                if (LOCAL_LOGV) Log.d(TAG, "ignoring restore of type: " + item.dataType);
+                continue;
+            }
 
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.BODY);
-        DataType dataType = null;
-        try {
-            if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
-            message.getFolder().fetch(new Message[]{message}, fp, null);
-            dataType = converter.getDataType(message);
+            final ContentValues values = item.values;
             //only restore sms+call log for now
-            switch (dataType) {
-                case CALLLOG:
-                    importCallLog(message);
-                    break;
+            switch (item.dataType) {
                 case SMS:
-                    importSms(message);
+                    final Long date = values.getAsLong(SmsConsts.DATE);
+                    restoredMessage(item.message, date);
+                    if (isRestorableSms(values) && pending.add(smsKey(values)) && !smsExists(values)) {
+                        smsOps.add(ContentProviderOperation.newInsert(Consts.SMS_PROVIDER).withValues(values).build());
+                        smsThreadIds.add(values.getAsLong(SmsConsts.THREAD_ID));
+                        if (date != null && date > maxSmsDate) maxSmsDate = date;
+                    } else {
+                        if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
+                    }
+                    break;
+                case CALLLOG:
+                    restoredMessage(item.message, values.getAsLong(CallLog.Calls.DATE));
+                    if (pending.add(callLogKey(values)) && !callLogExists(values)) {
+                        callLogOps.add(ContentProviderOperation.newInsert(Consts.CALLLOG_PROVIDER).withValues(values).build());
+                    } else {
+                        if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
+                    }
                     break;
-                default:
-                    if (LOCAL_LOGV) Log.d(TAG, "ignoring restore of type: " + dataType);
             }
+        }
 
-        } catch (MessagingException e) {
-            Log.e(TAG, "error", e);
-        } catch (IllegalArgumentException e) {
-            // http://code.google.com/p/android/issues/detail?id=2916
-            Log.e(TAG, "error", e);
-        } catch (java.io.IOException e) {
-            Log.e(TAG, "error", e);
+        final boolean smsInserted = insert(Consts.SMS_PROVIDER, smsOps, smsIds);
+        final boolean callLogInserted = insert(Consts.CALLLOG_PROVIDER, callLogOps, callLogIds);
+
+        if (!smsOps.isEmpty()) {
+            for (Long threadId : smsThreadIds) {
+                if (threadId != null) threadIds.add(threadId); else unknownThreadIds = true;
+            }
         }
-        return dataType;
-    }
 
-    private void importSms(final Message message) throws IOException, MessagingException {
-        if (LOCAL_LOGV) Log.v(TAG, "importSms(" + message + ")");
-        final ContentValues values = converter.messageToContentValues(message);
-        final Integer type = values.getAsInteger(SmsConsts.TYPE);
+        if (smsInserted && maxSmsDate > SMS.getMaxSyncedDate(service)) {
+            SMS.setMaxSyncedDate(service, maxSmsDate);
+        }
 
-        // only restore inbox messages and sent messages - otherwise sms might get sent on restore
-        if (type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX ||
-                type == SmsConsts.MESSAGE_TYPE_SENT) && !smsExists(values)) {
-            final Uri uri = resolver.insert(Consts.SMS_PROVIDER, values);
-            if (uri != null) {
-                smsIds.add(uri.getLastPathSegment());
-                Long timestamp = values.getAsLong(SmsConsts.DATE);
-
-                if (timestamp != null && SMS.getMaxSyncedDate(service) < timestamp) {
-                    SMS.setMaxSyncedDate(service, timestamp);
+        for (RestorePipeline.Item item : batch) {
+            final boolean inserted = item.dataType == SMS ? smsInserted :
+                                     item.dataType == CALLLOG ? callLogInserted : true;
+            advanceCheckpoint(item.message, item.error == null && inserted);
+        }
+    }
+
+    private boolean insert(Uri provider, ArrayList<ContentProviderOperation> operations, Set<String> insertedIds) {
+        if (operations.isEmpty()) return true;
+        if (LOCAL_LOGV) Log.v(TAG, "inserting " + operations.size() + " item(s) into " + provider);
+        try {
+            providerInserts += operations.size();
+            final long started = PipelineMetrics.start();
+            for (ContentProviderResult result : resolver.applyBatch(provider.getAuthority(), operations)) {
+                if (result.uri != null) {
+                    insertedIds.add(result.uri.getLastPathSegment());
                 }
-                if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
             }
-        } else {
-            if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
+            metrics.stop(PipelineMetrics.Stage.COMMIT, started, operations.size());
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "error inserting into " + provider, e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "error inserting into " + provider, e);
         }
+        return false;
     }
 
-    private void importCallLog(final Message message) throws MessagingException, IOException {
-        if (LOCAL_LOGV) Log.v(TAG, "importCallLog(" + message + ")");
-        final ContentValues values = converter.messageToContentValues(message);
-        if (!callLogExists(values)) {
-            final Uri uri = resolver.insert(Consts.CALLLOG_PROVIDER, values);
-            if (uri != null) callLogIds.add(uri.getLastPathSegment());
-        } else {
-            if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
-        }
+    private static boolean isRestorableSms(ContentValues values) {
+        final Integer type = values.getAsInteger(SmsConsts.TYPE);
+        // only restore inbox messages and sent messages - otherwise sms might get sent on restore
+        return type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT);
+    }
+
+    private static String smsKey(ContentValues values) {
+        return values.getAsString(SmsConsts.DATE) + "|" +
+               values.getAsString(SmsConsts.ADDRESS) + "|" +
+               values.getAsString(SmsConsts.TYPE);
+    }
+
+    private static String callLogKey(ContentValues values) {
+        return values.getAsString(CallLog.Calls.NUMBER) + "|" +
+               values.getAsString(CallLog.Calls.DURATION) + "|" +
+               values.getAsString(CallLog.Calls.TYPE);
     }
 
     private boolean callLogExists(ContentValues values) {
+        providerQueries++;
         Cursor c = resolver.query(Consts.CALLLOG_PROVIDER,
                 new String[]{"_id"},
                 "number = ? AND duration = ? AND type = ?",
@@ -252,6 +629,7 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
 
     private boolean smsExists(ContentValues values) {
         // just assume equality on date+address+type
+        providerQueries++;
         Cursor c = resolver.query(Consts.SMS_PROVIDER,
                 new String[]{"_id"},
                 "date = ? AND address = ? AND type = ?",
@@ -269,12 +647,45 @@ class RestoreTask extends AsyncTask<Integer, RestoreState, RestoreState> {
         return exists;
     }
 
+    private void updateThreads() {
+        if (unknownThreadIds || threadIds.size() > MAX_THREADS_TO_UPDATE) {
+            updateAllThreads();
+        } else if (!threadIds.isEmpty() && !updateThreads(threadIds)) {
+            updateAllThreads();
+        } else if (LOCAL_LOGV) {
+            Log.v(TAG, "no threads to update");
+        }
+    }
+
+    private boolean updateThreads(Set<Long> ids) {
+        // deleting nothing from a conversation makes the provider recalculate
+        // date, snippet and read state of that thread only
+        Log.d(TAG, "updating " + ids.size() + " thread(s)");
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(ids.size());
+        for (Long id : ids) {
+            operations.add(ContentProviderOperation
+                    .newDelete(Uri.withAppendedPath(SMS_CONVERSATIONS, String.valueOf(id)))
+                    .withSelection(SmsConsts.ID + " = -1", null)
+                    .build());
+        }
+        try {
+            resolver.applyBatch(Consts.SMS_PROVIDER.getAuthority(), operations);
+            Log.d(TAG, "finished");
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "error updating threads", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "error updating threads", e);
+        }
+        return false;
+    }
+
     private void updateAllThreads() {
         // thread dates + states might be wrong, we need to force a full update
         // unfortunately there's no direct way to do that in the SDK, but passing a
         // negative conversation id to delete should to the trick
         Log.d(TAG, "updating threads");
-        resolver.delete(Uri.parse("content://sms/conversations/-1"), null, null);
+        resolver.delete(Uri.withAppendedPath(SMS_CONVERSATIONS, "-1"), null, null);
         Log.d(TAG, "finished");
     }
 }
@@ -0,0 +1,73 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides which upload failures are worth retrying within the same run, and how long to wait
+ * before reconnecting. Delays grow exponentially and are jittered, so clients throttled at the
+ * same time don't all come back at the same time.
+ */
+class RetryPolicy {
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final long BASE_DELAY = 2 * 1000L;
+    private static final long MAX_DELAY = 2 * 60 * 1000L;
+
+    /** server responses (lower case) indicating a temporary condition */
+    private static final String[] TRANSIENT_RESPONSES = {
+            "bye",
+            "too many simultaneous connections",
+            "bandwidth limits exceeded",
+            "bandwidth exceeded",
+            "[throttled]",
+            "[unavailable]",
+            "[limit]",
+            "[inuse]",
+            "try again later",
+    };
+
+    private final Random random;
+
+    RetryPolicy() {
+        this(new Random());
+    }
+
+    RetryPolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @param attempt the number of the failed attempt, starting at 1
+     * @return the time to wait before the next attempt, in ms
+     */
+    long getDelay(int attempt) {
+        final long max = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        // "equal jitter": at least half the exponential delay
+        return max / 2 + (long) (random.nextDouble() * (max / 2));
+    }
+
+    /**
+     * @return true if the failure is likely to go away after reconnecting
+     */
+    static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof AuthenticationFailedException) return false;
+            // socket timeouts, resets and connections closed by the server
+            if (t instanceof IOException) return true;
+
+            final String message = t.getMessage();
+            if (message != null) {
+                final String lower = message.toLowerCase(Locale.ENGLISH);
+                for (String response : TRANSIENT_RESPONSES) {
+                    if (lower.contains(response)) return true;
+                }
+            }
+            if (t.getCause() == t) break;
+        }
+        return false;
+    }
+}
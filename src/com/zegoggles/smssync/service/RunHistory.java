@@ -0,0 +1,430 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import com.zegoggles.smssync.service.state.State;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Records every backup and restore in files/run_history. Runs are appended as length prefixed
+ * records, once the file grows past {@link #MAX_SIZE} it is compacted to the last
+ * {@link #MAX_RUNS} runs, so adding a run never needs to read the file.
+ */
+public class RunHistory {
+    private static final String FILE_NAME = "run_history";
+    private static final int VERSION = 1;
+    static final int MAX_RUNS = 200;
+    static final int MAX_SIZE = 64 * 1024;
+
+    /** number of recent backups the averages are taken over */
+    static final int WINDOW = 10;
+    /** minimum number of backups on each side of a comparison */
+    static final int MIN_SAMPLES = 3;
+    /** slowdowns below this factor are considered noise */
+    static final float REGRESSION_FACTOR = 1.5f;
+
+    private final Context context;
+    private final File file;
+
+    public RunHistory(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static class Run {
+        public final long started, finished;
+        /** null for restores */
+        public final @Nullable BackupType backupType;
+        public final SmsSyncState state;
+        /** version code of the app which did the run */
+        public final String version;
+        /** simple class name of the error, null if there was none */
+        public final @Nullable String error;
+        public final int retries;
+        /** bytes, -1 if not measured */
+        public final long sent, received;
+        /** peak Java heap usage in bytes, -1 if not measured */
+        public final long peakHeap;
+        public final Map<DataType, Integer> items;
+        /** total time spent in each stage, in ms */
+        public final Map<PipelineMetrics.Stage, Long> timings;
+
+        Run(long started, long finished, @Nullable BackupType backupType, SmsSyncState state,
+            String version, @Nullable String error, int retries, long sent, long received,
+            long peakHeap, Map<DataType, Integer> items, Map<PipelineMetrics.Stage, Long> timings) {
+            this.started = started;
+            this.finished = finished;
+            this.backupType = backupType;
+            this.state = state;
+            this.version = version;
+            this.error = error;
+            this.retries = retries;
+            this.sent = sent;
+            this.received = received;
+            this.peakHeap = peakHeap;
+            this.items = items;
+            this.timings = timings;
+        }
+
+        public boolean isBackup() {
+            return backupType != null;
+        }
+
+        public boolean isSuccessful() {
+            return state == SmsSyncState.FINISHED_BACKUP || state == SmsSyncState.FINISHED_RESTORE;
+        }
+
+        public int getItemCount() {
+            int count = 0;
+            for (int n : items.values()) count += n;
+            return count;
+        }
+
+        public long getDuration() {
+            return finished - started;
+        }
+
+        public float getItemsPerSecond() {
+            final long duration = getDuration();
+            return duration > 0 ? getItemCount() * 1000f / duration : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{" +
+                    "started=" + started +
+                    ", duration=" + getDuration() +
+                    ", backupType=" + backupType +
+                    ", state=" + state +
+                    ", version=" + version +
+                    ", error=" + error +
+                    ", retries=" + retries +
+                    ", sent=" + sent +
+                    ", received=" + received +
+                    ", peakHeap=" + peakHeap +
+                    ", items=" + items +
+                    ", timings=" + timings +
+                    '}';
+        }
+    }
+
+    /**
+     * Rolling averages of the most recent backups, and how their speed compares to the backups
+     * of the previous app version, or the backups before them if there was no update.
+     */
+    public static class Trend {
+        /** number of backups the averages are taken over */
+        public final int runs;
+        public final int failures, retries;
+        public final long averageDuration;
+        public final float averageItems;
+        /** -1 if not measured */
+        public final long averageSent;
+        /** highest peak heap usage, -1 if not measured */
+        public final long peakHeap;
+        /** time per backed up item, in ms, -1 if nothing was backed up */
+        public final float msPerItem;
+        /** how many times slower backups got, 0 if they didn't */
+        public final float slowdown;
+        /** whether {@link #slowdown} compares against the previous app version */
+        public final boolean sinceUpdate;
+
+        Trend(int runs, int failures, int retries, long averageDuration, float averageItems,
+              long averageSent, long peakHeap, float msPerItem, float slowdown, boolean sinceUpdate) {
+            this.runs = runs;
+            this.failures = failures;
+            this.retries = retries;
+            this.averageDuration = averageDuration;
+            this.averageItems = averageItems;
+            this.averageSent = averageSent;
+            this.peakHeap = peakHeap;
+            this.msPerItem = msPerItem;
+            this.slowdown = slowdown;
+            this.sinceUpdate = sinceUpdate;
+        }
+    }
+
+    /**
+     * @return the recorded run
+     */
+    Run add(@Nullable BackupType backupType, long started, State result,
+            Map<DataType, Integer> items, int retries,
+            @Nullable TrafficMeter.Usage usage, long peakHeap,
+            PipelineMetrics.Summary summary) {
+        final Map<PipelineMetrics.Stage, Long> timings =
+                new EnumMap<PipelineMetrics.Stage, Long>(PipelineMetrics.Stage.class);
+        for (Map.Entry<PipelineMetrics.Stage, PipelineMetrics.StageSummary> entry : summary.stages.entrySet()) {
+            timings.put(entry.getKey(), entry.getValue().total);
+        }
+        final String version = Preferences.getVersion(context, true);
+        final Run run = new Run(started, System.currentTimeMillis(), backupType, result.state,
+                version == null ? "" : version,
+                result.exception == null ? null : result.exception.getClass().getSimpleName(),
+                retries,
+                usage == null ? -1 : usage.sent,
+                usage == null ? -1 : usage.received,
+                peakHeap, items, timings);
+        add(run);
+        return run;
+    }
+
+    synchronized void add(Run run) {
+        if (LOCAL_LOGV) Log.v(TAG, "add(" + run + ")");
+        try {
+            final boolean exists = file.exists();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true)));
+            try {
+                if (!exists) out.writeInt(VERSION);
+                final byte[] record = toBytes(run);
+                out.writeInt(record.length);
+                out.write(record);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error writing run history", e);
+            return;
+        }
+        if (file.length() > MAX_SIZE) compact();
+    }
+
+    /**
+     * @return all recorded runs, oldest first
+     */
+    public synchronized List<Run> getRuns() {
+        final List<Run> runs = new ArrayList<Run>();
+        if (!file.exists()) return runs;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) return runs;
+                for (;;) {
+                    final int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    final byte[] record = new byte[length];
+                    in.readFully(record);
+                    final Run run = fromBytes(record);
+                    if (run != null) runs.add(run);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a truncated last record, keep what could be read
+            Log.w(TAG, "error reading run history", e);
+        }
+        return runs;
+    }
+
+    /**
+     * @return sent and received bytes of all runs since the given date
+     */
+    public long[] getTraffic(long since) {
+        final long[] total = new long[2];
+        for (Run run : getRuns()) {
+            if (run.started < since) continue;
+            if (run.sent > 0) total[0] += run.sent;
+            if (run.received > 0) total[1] += run.received;
+        }
+        return total;
+    }
+
+    /**
+     * @return the trend of the most recent backups, null if there are none
+     */
+    public @Nullable Trend getBackupTrend() {
+        final List<Run> backups = new ArrayList<Run>();
+        for (Run run : getRuns()) {
+            if (run.isBackup()) backups.add(run);
+        }
+        if (backups.isEmpty()) return null;
+        Collections.reverse(backups);
+
+        final List<Run> recent = backups.subList(0, Math.min(WINDOW, backups.size()));
+        int failures = 0, retries = 0, items = 0;
+        long duration = 0, sent = 0, measured = 0, peakHeap = -1;
+        for (Run run : recent) {
+            peakHeap = Math.max(peakHeap, run.peakHeap);
+            if (!run.isSuccessful()) failures++;
+            retries += run.retries;
+            items += run.getItemCount();
+            duration += run.getDuration();
+            if (run.sent >= 0) {
+                sent += run.sent;
+                measured++;
+            }
+        }
+
+        // compare with the last backups of an older version if there are enough, otherwise with
+        // the backups preceding the recent ones
+        final String version = backups.get(0).version;
+        final List<Run> current = new ArrayList<Run>();
+        final List<Run> previous = new ArrayList<Run>();
+        for (Run run : backups) {
+            if (run.version.equals(version)) {
+                if (current.size() < WINDOW) current.add(run);
+            } else if (previous.size() < WINDOW) {
+                previous.add(run);
+            }
+        }
+        boolean sinceUpdate = true;
+        if (countTimed(previous) < MIN_SAMPLES) {
+            sinceUpdate = false;
+            current.clear();
+            current.addAll(recent);
+            previous.clear();
+            previous.addAll(backups.subList(recent.size(), Math.min(2 * WINDOW, backups.size())));
+        }
+
+        float slowdown = 0;
+        if (countTimed(current) >= MIN_SAMPLES && countTimed(previous) >= MIN_SAMPLES) {
+            final float ratio = getMsPerItem(current) / getMsPerItem(previous);
+            if (ratio >= REGRESSION_FACTOR) slowdown = ratio;
+        }
+
+        return new Trend(recent.size(), failures, retries,
+                duration / recent.size(),
+                items / (float) recent.size(),
+                measured > 0 ? sent / measured : -1,
+                peakHeap,
+                getMsPerItem(recent),
+                slowdown, sinceUpdate);
+    }
+
+    /** successful backups which backed up anything, the only ones with a meaningful speed */
+    private static boolean isTimed(Run run) {
+        return run.isSuccessful() && run.getItemCount() > 0;
+    }
+
+    private static int countTimed(List<Run> runs) {
+        int count = 0;
+        for (Run run : runs) {
+            if (isTimed(run)) count++;
+        }
+        return count;
+    }
+
+    private static float getMsPerItem(List<Run> runs) {
+        long duration = 0;
+        int items = 0;
+        for (Run run : runs) {
+            if (!isTimed(run)) continue;
+            duration += run.getDuration();
+            items += run.getItemCount();
+        }
+        return items > 0 ? duration / (float) items : -1;
+    }
+
+    private void compact() {
+        final List<Run> runs = getRuns();
+        final List<Run> keep = runs.subList(Math.max(0, runs.size() - MAX_RUNS), runs.size());
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(VERSION);
+                for (Run run : keep) {
+                    final byte[] record = toBytes(run);
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) Log.w(TAG, "could not rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "error compacting run history", e);
+        }
+    }
+
+    private static byte[] toBytes(Run run) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(run.started);
+        out.writeLong(run.finished);
+        out.writeUTF(run.backupType == null ? "" : run.backupType.name());
+        out.writeUTF(run.state.name());
+        out.writeUTF(run.version);
+        out.writeUTF(run.error == null ? "" : run.error);
+        out.writeInt(run.retries);
+        out.writeLong(run.sent);
+        out.writeLong(run.received);
+        out.writeInt(run.items.size());
+        for (Map.Entry<DataType, Integer> entry : run.items.entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            out.writeInt(entry.getValue());
+        }
+        out.writeInt(run.timings.size());
+        for (Map.Entry<PipelineMetrics.Stage, Long> entry : run.timings.entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            out.writeLong(entry.getValue());
+        }
+        out.writeLong(run.peakHeap);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static @Nullable Run fromBytes(byte[] record) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            final long started = in.readLong();
+            final long finished = in.readLong();
+            final String backupType = in.readUTF();
+            final SmsSyncState state = SmsSyncState.valueOf(in.readUTF());
+            final String version = in.readUTF();
+            final String error = in.readUTF();
+            final int retries = in.readInt();
+            final long sent = in.readLong();
+            final long received = in.readLong();
+
+            final Map<DataType, Integer> items = new EnumMap<DataType, Integer>(DataType.class);
+            for (int i = in.readInt(); i > 0; i--) {
+                items.put(DataType.valueOf(in.readUTF()), in.readInt());
+            }
+            final Map<PipelineMetrics.Stage, Long> timings =
+                    new EnumMap<PipelineMetrics.Stage, Long>(PipelineMetrics.Stage.class);
+            for (int i = in.readInt(); i > 0; i--) {
+                timings.put(PipelineMetrics.Stage.valueOf(in.readUTF()), in.readLong());
+            }
+            // added later, missing in older records
+            final long peakHeap = in.available() >= 8 ? in.readLong() : -1;
+            return new Run(started, finished,
+                    backupType.length() == 0 ? null : BackupType.valueOf(backupType),
+                    state, version, error.length() == 0 ? null : error,
+                    retries, sent, received, peakHeap, items, timings);
+        } catch (IllegalArgumentException e) {
+            // written by a version with different types or stages
+            Log.w(TAG, "skipping run", e);
+            return null;
+        }
+    }
+}
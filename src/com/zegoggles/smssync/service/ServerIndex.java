@@ -0,0 +1,168 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.Headers;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Local cache of the Message-IDs, dates and data types of the messages in a backup folder,
+ * keyed by uid. Each update only fetches the headers of messages not seen before, the cache
+ * gets dropped when the UIDVALIDITY of the folder changes.
+ */
+class ServerIndex {
+    private static final String DIR_NAME = "server_index";
+    private static final int VERSION = 1;
+    /** number of messages whose headers are fetched with a single command */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] FIELDS = {
+            Headers.MESSAGE_ID,
+            Headers.DATATYPE,
+            Headers.DATE
+    };
+
+    private final File file;
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private long uidValidity = -1;
+
+    ServerIndex(Context context, String folderName) {
+        this.file = new File(new File(context.getFilesDir(), DIR_NAME), folderName.replaceAll("[^\\w.-]", "_"));
+    }
+
+    static class Entry {
+        /** empty if the message has no Message-ID */
+        final String messageId;
+        final @Nullable String dataType;
+        /** the date of the backed up item, or -1 if unknown */
+        final long date;
+
+        Entry(String messageId, @Nullable String dataType, long date) {
+            this.messageId = messageId;
+            this.dataType = dataType;
+            this.date = date;
+        }
+    }
+
+    /**
+     * Brings the cache up to date with the folder.
+     * @return all entries, keyed by uid
+     */
+    Map<Long, Entry> update(BackupImapStore.BackupFolder folder) throws MessagingException {
+        load();
+        final long validity = folder.getUidValidity();
+        if (validity != uidValidity) {
+            if (!entries.isEmpty()) Log.i(TAG, "UIDVALIDITY of " + folder.getName() + " changed, dropping index");
+            entries.clear();
+            uidValidity = validity;
+        }
+
+        final List<Long> uids = folder.getUids();
+        entries.keySet().retainAll(new HashSet<Long>(uids));
+
+        final List<Long> unknown = new ArrayList<Long>();
+        for (Long uid : uids) {
+            if (!entries.containsKey(uid)) unknown.add(uid);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, folder.getName() + ": " + entries.size() + " cached, " + unknown.size() + " new");
+
+        for (int start = 0; start < unknown.size(); start += BATCH_SIZE) {
+            final List<Long> batch = unknown.subList(start, Math.min(start + BATCH_SIZE, unknown.size()));
+            for (Map.Entry<Long, Map<String, String>> headers : folder.fetchHeaders(batch, FIELDS).entrySet()) {
+                entries.put(headers.getKey(), toEntry(headers.getValue()));
+            }
+        }
+        if (!unknown.isEmpty()) save();
+        return entries;
+    }
+
+    private static Entry toEntry(Map<String, String> fields) {
+        final String messageId = fields.get(Headers.MESSAGE_ID.toLowerCase(Locale.ENGLISH));
+        final String date = fields.get(Headers.DATE.toLowerCase(Locale.ENGLISH));
+        long parsed = -1;
+        if (date != null) {
+            try {
+                parsed = Long.parseLong(date);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new Entry(messageId == null ? "" : messageId,
+                fields.get(Headers.DATATYPE.toLowerCase(Locale.ENGLISH)),
+                parsed);
+    }
+
+    private void load() {
+        entries.clear();
+        uidValidity = -1;
+        if (!file.exists()) return;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) return;
+                final long validity = in.readLong();
+                final int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    final long uid = in.readLong();
+                    final long date = in.readLong();
+                    final String dataType = in.readUTF();
+                    final String messageId = in.readUTF();
+                    entries.put(uid, new Entry(messageId, dataType.length() == 0 ? null : dataType, date));
+                }
+                uidValidity = validity;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading server index", e);
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "could not create " + dir);
+            return;
+        }
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeLong(uidValidity);
+                out.writeInt(entries.size());
+                for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue().date);
+                    out.writeUTF(entry.getValue().dataType == null ? "" : entry.getValue().dataType);
+                    out.writeUTF(entry.getValue().messageId);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) Log.w(TAG, "could not rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing server index", e);
+        }
+    }
+}
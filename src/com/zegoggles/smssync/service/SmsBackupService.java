@@ -21,12 +21,14 @@ import android.content.Intent;
 import android.text.format.DateFormat;
 import android.util.Log;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.squareup.otto.Produce;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.LocalExportFormat;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.exception.RequiresBackgroundDataException;
 import com.zegoggles.smssync.service.state.BackupState;
@@ -37,7 +39,6 @@ import java.util.Date;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
-import static com.zegoggles.smssync.service.BackupType.MANUAL;
 import static com.zegoggles.smssync.service.state.SmsSyncState.ERROR;
 import static com.zegoggles.smssync.service.state.SmsSyncState.FINISHED_BACKUP;
 import static com.zegoggles.smssync.service.state.SmsSyncState.INITIAL;
@@ -62,6 +63,8 @@ public class SmsBackupService extends ServiceBase {
     @Override
     public void onCreate() {
         super.onCreate();
+        // used when parsing spooled messages
+        BinaryTempFileBody.setTempDirectory(getCacheDir());
         service = this;
     }
 
@@ -88,13 +91,16 @@ public class SmsBackupService extends ServiceBase {
             App.bus.post(mState.transition(FINISHED_BACKUP, new RequiresBackgroundDataException()));
         } else if (!isWorking()) {
             // Only start a backup if there's no other operation going on at this time.
-            if (!SmsRestoreService.isServiceWorking()) {
+            if (!SmsRestoreService.isServiceWorking() && !SmsDedupService.isServiceWorking()) {
                 // set initial state
                 mState = new BackupState(INITIAL, 0, 0, backupType, null, null);
 
                 try {
+                    // without login the backup only writes the local copy
+                    final boolean localOnly = !AuthPreferences.isLoginInformationSet(this) &&
+                            LocalExportFormat.isEnabled(this);
                     BackupConfig config = new BackupConfig(
-                            getBackupImapStore(),
+                            localOnly ? null : getBackupImapStore(),
                             0,
                             intent.getBooleanExtra(Consts.KEY_SKIP_MESSAGES, false),
                             Preferences.getMaxItemsPerSync(service),
@@ -103,12 +109,14 @@ public class SmsBackupService extends ServiceBase {
                             backupType);
 
                     appLog(R.string.app_log_start_backup, backupType);
+                    final int changes = Alarms.backupStarted(this);
+                    if (changes > 1) appLog(R.string.app_log_coalesced_changes, changes);
                     new BackupTask(this).execute(config);
                 } catch (MessagingException e) {
                     App.bus.post(mState.transition(ERROR, e));
                 }
             } else {
-                // restore is already running
+                // restore or dedup is already running
                 App.bus.post(mState.transition(ERROR, null));
             }
         } else {
@@ -134,7 +142,7 @@ public class SmsBackupService extends ServiceBase {
         }
 
         if (state.isRunning()) {
-            if (state.backupType == MANUAL) {
+            if (!state.backupType.isBackground()) {
                 notifyAboutBackup(state);
             }
         } else {
@@ -143,6 +151,9 @@ public class SmsBackupService extends ServiceBase {
             if (state.backupType == BackupType.REGULAR) {
                 Log.d(TAG, "scheduling next backup");
                 scheduleNextBackup();
+            } else {
+                // the alarm might have been replaced by this backup
+                Alarms.backupFinished(this);
             }
             stopForeground(true);
             stopSelf();
@@ -172,7 +183,7 @@ public class SmsBackupService extends ServiceBase {
     }
 
     private boolean shouldNotifyUser(BackupState state) {
-        return state.backupType == MANUAL ||
+        return !state.backupType.isBackground() ||
                (Preferences.isNotificationEnabled(this) && !state.isConnectivityError());
     }
 
@@ -0,0 +1,85 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Intent;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.squareup.otto.Produce;
+import com.squareup.otto.Subscribe;
+import com.zegoggles.smssync.App;
+import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.service.state.DedupState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.service.state.SmsSyncState.ERROR;
+
+public class SmsDedupService extends ServiceBase {
+    private static final int DEDUP_ID = 3;
+
+    @NotNull private DedupState mState = new DedupState();
+    @Nullable private static SmsDedupService service;
+
+    @Override @NotNull
+    public DedupState getState() {
+        return mState;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        service = this;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (LOCAL_LOGV) Log.v(TAG, "SmsDedupService#onDestroy(state"+getState()+")");
+        service = null;
+    }
+
+    @Override
+    protected void handleIntent(final Intent intent) {
+        if (isWorking()) return;
+        if (SmsBackupService.isServiceWorking() || SmsRestoreService.isServiceWorking()) {
+            // backup or restore is already running
+            App.bus.post(mState.transition(ERROR, null));
+            return;
+        }
+        try {
+            new DedupTask(this, getBackupImapStore()).execute();
+        } catch (MessagingException e) {
+            App.bus.post(mState.transition(ERROR, e));
+        }
+    }
+
+    @Subscribe public void dedupStateChanged(final DedupState state) {
+        mState = state;
+        if (mState.isInitialState()) return;
+
+        if (mState.isRunning()) {
+            if (notification == null) {
+                notification = createNotification(R.string.status_dedup);
+            }
+            notification.setLatestEventInfo(this,
+                    getString(R.string.status_dedup),
+                    state.getNotificationLabel(getResources()),
+                    getPendingIntent());
+
+            startForeground(DEDUP_ID, notification);
+        } else {
+            Log.d(TAG, "stopping service, state"+mState);
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    @Produce public DedupState produceLastState() {
+        return mState;
+    }
+
+    public static boolean isServiceWorking() {
+        return service != null && service.isWorking();
+    }
+}
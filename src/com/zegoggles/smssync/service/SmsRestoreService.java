@@ -8,6 +8,7 @@ import com.squareup.otto.Produce;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.mail.ColumnarArchive;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -53,17 +54,33 @@ public class SmsRestoreService extends ServiceBase {
     @Override
     protected void handleIntent(final Intent intent) {
         if (isWorking()) return;
+        if (SmsBackupService.isServiceWorking() || SmsDedupService.isServiceWorking()) {
+            // backup or dedup is already running
+            App.bus.post(mState.transition(ERROR, null));
+            return;
+        }
         try {
             final boolean starredOnly = Preferences.isRestoreStarredOnly(service);
+            final boolean incremental = Preferences.isRestoreIncremental(service);
             final boolean restoreCallLog = CALLLOG.isRestoreEnabled(service);
             final boolean restoreSms     = SMS.isRestoreEnabled(service);
 
             MessageConverter converter = new MessageConverter(service, AuthPreferences.getUserEmail(service));
 
+            ColumnarArchive.Reader archive = null;
+            if (Preferences.isRestoreFromLocalArchive(service)) {
+                archive = new ColumnarArchive.Reader(ColumnarArchive.getDefaultDir());
+                if (!archive.exists()) {
+                    Log.w(TAG, "no local archive in " + ColumnarArchive.getDefaultDir() + ", restoring from server");
+                    appLog(R.string.app_log_no_local_archive);
+                    archive = null;
+                }
+            }
+
             new RestoreTask(this,
-                    getBackupImapStore(),
+                    archive == null ? getBackupImapStore() : null,
                     converter,
-                    restoreSms, restoreCallLog, starredOnly).execute(
+                    restoreSms, restoreCallLog, starredOnly, incremental, archive).execute(
                     Preferences.getMaxItemsPerRestore(this));
         } catch (MessagingException e) {
             App.bus.post(mState.transition(ERROR, e));
@@ -79,14 +96,22 @@ public class SmsRestoreService extends ServiceBase {
         }.start();
     }
 
-    public synchronized void clearCache() {
+    public void clearCache() {
+        clearCache(Long.MAX_VALUE);
+    }
+
+    /**
+     * Deletes cached message bodies.
+     * @param olderThan only delete files last modified before this time
+     */
+    public synchronized void clearCache(final long olderThan) {
         File tmp = getCacheDir();
         if (tmp == null) return; // not sure why this would return null
 
         Log.d(TAG, "clearing cache in " + tmp);
         for (File f : tmp.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return name.startsWith("body");
+                return name.startsWith("body") && new File(dir, name).lastModified() < olderThan;
             }
         })) {
             if (LOCAL_LOGV) Log.v(TAG, "deleting " + f);
@@ -0,0 +1,108 @@
+package com.zegoggles.smssync.service;
+
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.utils.TrafficCounter;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Attributes the network traffic of a backup or restore to protocol phases and data types.
+ * The task announces each phase with {@link #enter}, the bytes counted by {@link TrafficCounter}
+ * until the next phase are charged to it. Only one backup or restore runs at a time, so the
+ * traffic of the app during a run is the traffic of the run.
+ */
+public class TrafficMeter {
+    public enum Phase {
+        LOGIN("login"),
+        SEARCH("search"),
+        APPEND("append"),
+        FETCH("fetch");
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Usage usage = new Usage();
+    private @Nullable Phase phase;
+    private @Nullable DataType dataType;
+    private long sent, received;
+
+    /**
+     * Charges the traffic from now on to a phase, and data type if known.
+     */
+    public synchronized void enter(Phase phase, @Nullable DataType dataType) {
+        if (!TrafficCounter.SUPPORTED || (phase == this.phase && dataType == this.dataType)) return;
+        charge();
+        this.phase = phase;
+        this.dataType = dataType;
+    }
+
+    /**
+     * @return the traffic of the run, or null if it could not be measured
+     */
+    public synchronized @Nullable Usage finish() {
+        charge();
+        phase = null;
+        dataType = null;
+        return usage.sent > 0 || usage.received > 0 ? usage : null;
+    }
+
+    private void charge() {
+        final long nowSent = TrafficCounter.getSent(), nowReceived = TrafficCounter.getReceived();
+        if (nowSent < 0 || nowReceived < 0) return;
+
+        if (phase != null) {
+            usage.add(phase, dataType, nowSent - sent, nowReceived - received);
+        }
+        sent = nowSent;
+        received = nowReceived;
+    }
+
+    public static class Usage {
+        public long sent, received;
+        public final Map<Phase, long[]> byPhase = new EnumMap<Phase, long[]>(Phase.class);
+        public final Map<DataType, long[]> byDataType = new EnumMap<DataType, long[]>(DataType.class);
+
+        void add(Phase phase, @Nullable DataType dataType, long sent, long received) {
+            this.sent += sent;
+            this.received += received;
+            add(byPhase, phase, sent, received);
+            if (dataType != null) add(byDataType, dataType, sent, received);
+        }
+
+        private static <K> void add(Map<K, long[]> map, K key, long sent, long received) {
+            long[] bytes = map.get(key);
+            if (bytes == null) {
+                bytes = new long[2];
+                map.put(key, bytes);
+            }
+            bytes[0] += sent;
+            bytes[1] += received;
+        }
+
+        /**
+         * @return totals, then sent/received bytes per phase and data type
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(format("total", new long[] { sent, received }));
+            for (Map.Entry<Phase, long[]> entry : byPhase.entrySet()) {
+                sb.append("; ").append(format(entry.getKey().label, entry.getValue()));
+            }
+            for (Map.Entry<DataType, long[]> entry : byDataType.entrySet()) {
+                sb.append("; ").append(format(entry.getKey().name().toLowerCase(Locale.ENGLISH), entry.getValue()));
+            }
+            return sb.toString();
+        }
+
+        private static String format(String label, long[] bytes) {
+            return String.format(Locale.ENGLISH, "%s: %d/%d bytes", label, bytes[0], bytes[1]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.zegoggles.smssync.service;
+
+/**
+ * Coalesces bursts of change events into a single backup. A backup becomes due once no new
+ * event has been seen for the quiet period, but never later than the maximum latency after the
+ * first event of the burst, so a steady stream of events can't postpone it indefinitely.
+ */
+class TriggerCoalescer {
+    private long first;
+    private long due;
+    private int events;
+
+    TriggerCoalescer() {
+        this(-1, -1, 0);
+    }
+
+    /**
+     * Restores a coalescer from its persisted state.
+     */
+    TriggerCoalescer(long first, long due, int events) {
+        this.first = first;
+        this.due = due;
+        this.events = events;
+    }
+
+    /**
+     * @return the time the backup covering this event is due
+     */
+    long onEvent(long now, long quietPeriod, long maxLatency) {
+        if (events == 0) first = now;
+        events++;
+        due = Math.min(now + Math.min(quietPeriod, maxLatency), first + maxLatency);
+        return due;
+    }
+
+    /**
+     * Hands the pending events to a backup which is about to start.
+     * @return the number of events covered by the backup
+     */
+    int reset() {
+        final int covered = events;
+        first = due = -1;
+        events = 0;
+        return covered;
+    }
+
+    boolean isPending() {
+        return events > 0;
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return the time the pending backup is due, or -1
+     */
+    long getDue() {
+        return due;
+    }
+
+    int getEvents() {
+        return events;
+    }
+}
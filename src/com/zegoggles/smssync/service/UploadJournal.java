@@ -0,0 +1,184 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A write-ahead journal of messages being uploaded. Message-IDs get recorded before they are
+ * appended to the server and marked as acknowledged once the append succeeded. Entries are
+ * dropped after the sync watermark of their data type has been committed, so any entries found
+ * at the start of a backup belong to a run which got interrupted in between.
+ * <p/>
+ * Only {@link #begin} syncs the file, which also makes the records written since the last batch
+ * durable. A lost acknowledgement or commit record costs a lookup on the server, not a duplicate.
+ */
+class UploadJournal {
+    private static final String FILE_NAME = "upload_journal";
+    private static final char PENDING = 'P';
+    private static final char ACKNOWLEDGED = 'A';
+    /** all earlier entries of the data type are committed */
+    private static final char COMMITTED = 'C';
+    /** the file gets rewritten without the committed entries once it is larger than this */
+    static final long COMPACT_SIZE = 64 * 1024;
+
+    private final File file;
+
+    UploadJournal(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    UploadJournal(File file) {
+        this.file = file;
+    }
+
+    static class Entry {
+        final DataType dataType;
+        final String messageId;
+        final boolean acknowledged;
+
+        Entry(DataType dataType, String messageId, boolean acknowledged) {
+            this.dataType = dataType;
+            this.messageId = messageId;
+            this.acknowledged = acknowledged;
+        }
+    }
+
+    /**
+     * @return entries left over from an interrupted run, keyed by Message-ID
+     */
+    public Map<String, Entry> read() {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        if (!file.exists()) return entries;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", 3);
+                if (fields.length != 3 || fields[0].length() != 1) continue; // partially written
+
+                try {
+                    final DataType dataType = DataType.valueOf(fields[1]);
+                    if (fields[0].charAt(0) == COMMITTED) {
+                        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                            if (it.next().dataType == dataType) it.remove();
+                        }
+                    } else {
+                        entries.put(fields[2], new Entry(dataType, fields[2], fields[0].charAt(0) == ACKNOWLEDGED));
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "invalid journal entry: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading journal", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records messages about to be uploaded, durably.
+     */
+    public void begin(DataType dataType, Collection<String> messageIds) {
+        write(PENDING, dataType, messageIds, true);
+    }
+
+    public void acknowledge(DataType dataType, Collection<String> messageIds) {
+        write(ACKNOWLEDGED, dataType, messageIds, false);
+    }
+
+    /**
+     * Drops the entries of data types whose watermark has been committed.
+     */
+    public void commit(Collection<DataType> dataTypes) {
+        if (dataTypes.isEmpty() || !file.exists()) return;
+
+        final StringBuilder sb = new StringBuilder();
+        for (DataType dataType : dataTypes) {
+            append(sb, COMMITTED, dataType, "");
+        }
+        write(file, true, sb, false);
+        if (file.length() > COMPACT_SIZE) reset(read().values());
+    }
+
+    public void clear() {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+    }
+
+    /**
+     * Replaces the contents of the journal with the given entries, atomically.
+     */
+    public void reset(Collection<Entry> entries) {
+        if (entries.isEmpty()) {
+            clear();
+            return;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            append(sb, entry.acknowledged ? ACKNOWLEDGED : PENDING, entry.dataType, entry.messageId);
+        }
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        if (write(tmp, false, sb, true) && !tmp.renameTo(file)) {
+            Log.w(TAG, "could not rename " + tmp);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "journal: kept " + entries.size() + " entries");
+    }
+
+    private void write(char state, DataType dataType, Collection<String> messageIds, boolean sync) {
+        if (messageIds.isEmpty()) return;
+
+        final StringBuilder sb = new StringBuilder();
+        for (String id : messageIds) {
+            append(sb, state, dataType, id);
+        }
+        if (write(file, true, sb, sync) && LOCAL_LOGV) Log.v(TAG, "journal: " + state + " " + messageIds);
+    }
+
+    private static void append(StringBuilder sb, char state, DataType dataType, String messageId) {
+        sb.append(state).append('\t').append(dataType.name()).append('\t').append(messageId).append('\n');
+    }
+
+    private static boolean write(File file, boolean append, CharSequence lines, boolean sync) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, append);
+            out.write(lines.toString().getBytes("UTF-8"));
+            if (sync) out.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,9 @@ import android.content.res.Resources;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.service.BackupType;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import com.zegoggles.smssync.utils.ThroughputMeter;
+import org.jetbrains.annotations.Nullable;
 
 import static com.zegoggles.smssync.service.BackupType.UNKNOWN;
 import static com.zegoggles.smssync.service.state.SmsSyncState.BACKUP;
@@ -12,6 +15,9 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.INITIAL;
 public class BackupState extends State {
     public final int currentSyncedItems, itemsToSync;
     public final BackupType backupType;
+    public final @Nullable ThroughputMeter.Throughput throughput;
+    /** stage timings, set once the backup has finished */
+    public final @Nullable PipelineMetrics.Summary metrics;
 
     public BackupState() {
         this(INITIAL, 0, 0, UNKNOWN, null, null);
@@ -23,10 +29,23 @@ public class BackupState extends State {
                        BackupType backupType,
                        DataType dataType,
                        Exception exception) {
+        this(state, currentSyncedItems, itemsToSync, backupType, dataType, exception, null, null);
+    }
+
+    public BackupState(SmsSyncState state,
+                       int currentSyncedItems,
+                       int itemsToSync,
+                       BackupType backupType,
+                       DataType dataType,
+                       Exception exception,
+                       @Nullable ThroughputMeter.Throughput throughput,
+                       @Nullable PipelineMetrics.Summary metrics) {
         super(state, dataType, exception);
         this.currentSyncedItems = currentSyncedItems;
         this.itemsToSync = itemsToSync;
         this.backupType = backupType;
+        this.throughput = throughput;
+        this.metrics = metrics;
     }
 
     @Override
@@ -36,12 +55,24 @@ public class BackupState extends State {
                 ", currentSyncedItems=" + currentSyncedItems +
                 ", itemsToSync=" + itemsToSync +
                 ", backupType=" + backupType +
+                ", throughput=" + throughput +
                 '}';
     }
 
     @Override
     public BackupState transition(SmsSyncState newState, Exception exception) {
-        return new BackupState(newState, currentSyncedItems, itemsToSync, backupType, dataType, exception);
+        return new BackupState(newState, currentSyncedItems, itemsToSync, backupType, dataType, exception,
+                throughput, metrics);
+    }
+
+    public BackupState withThroughput(@Nullable ThroughputMeter.Throughput throughput) {
+        return new BackupState(state, currentSyncedItems, itemsToSync, backupType, dataType, exception,
+                throughput, metrics);
+    }
+
+    public BackupState withMetrics(PipelineMetrics.Summary metrics) {
+        return new BackupState(state, currentSyncedItems, itemsToSync, backupType, dataType, exception,
+                throughput, metrics);
     }
 
     @Override
@@ -55,7 +86,7 @@ public class BackupState extends State {
             if (dataType != null) {
                 label += " ("+resources.getString(dataType.resId)+")";
             }
-            return label;
+            return appendThroughput(resources, label, throughput);
         } else {
             return "";
         }
@@ -0,0 +1,74 @@
+package com.zegoggles.smssync.service.state;
+
+import android.content.res.Resources;
+import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.mail.DataType;
+
+import static com.zegoggles.smssync.service.state.SmsSyncState.DEDUP;
+import static com.zegoggles.smssync.service.state.SmsSyncState.INITIAL;
+
+public class DedupState extends State {
+    /** messages checked so far */
+    public final int currentCount;
+
+    /** total number of messages to check */
+    public final int totalCount;
+
+    /** how many duplicates were found (and deleted) */
+    public final int duplicateCount;
+
+    /** duplicates only flagged as deleted, the server could not expunge them */
+    public final int flaggedCount;
+
+    public DedupState() {
+        this(INITIAL, 0, 0, 0, 0, null, null);
+    }
+
+    public DedupState(SmsSyncState state,
+                      int currentCount,
+                      int totalCount,
+                      int duplicateCount,
+                      int flaggedCount,
+                      DataType dataType,
+                      Exception exception) {
+        super(state, dataType, exception);
+        this.currentCount = currentCount;
+        this.totalCount = totalCount;
+        this.duplicateCount = duplicateCount;
+        this.flaggedCount = flaggedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DedupStateChanged{" +
+                "state=" + state +
+                ", currentCount=" + currentCount +
+                ", totalCount=" + totalCount +
+                ", duplicateCount=" + duplicateCount +
+                ", flaggedCount=" + flaggedCount +
+                '}';
+    }
+
+    @Override
+    public DedupState transition(SmsSyncState newState, Exception exception) {
+        return new DedupState(newState, currentCount, totalCount, duplicateCount, flaggedCount, dataType, exception);
+    }
+
+    @Override
+    public String getNotificationLabel(Resources resources) {
+        String label = super.getNotificationLabel(resources);
+        if (label != null) return label;
+        if (state == DEDUP) {
+            label = resources.getString(R.string.status_dedup_details,
+                    currentCount,
+                    totalCount,
+                    duplicateCount);
+            if (dataType != null) {
+                label += " ("+resources.getString(dataType.resId)+")";
+            }
+            return label;
+        } else {
+            return "";
+        }
+    }
+}
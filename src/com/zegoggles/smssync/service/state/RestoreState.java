@@ -3,6 +3,9 @@ package com.zegoggles.smssync.service.state;
 import android.content.res.Resources;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.utils.PipelineMetrics;
+import com.zegoggles.smssync.utils.ThroughputMeter;
+import org.jetbrains.annotations.Nullable;
 
 import static com.zegoggles.smssync.service.state.SmsSyncState.INITIAL;
 
@@ -19,6 +22,11 @@ public class RestoreState extends State {
     /** how many duplicates where detected after restore */
     public final int duplicateCount;
 
+    public final @Nullable ThroughputMeter.Throughput throughput;
+
+    /** stage timings, set once the restore has finished */
+    public final @Nullable PipelineMetrics.Summary metrics;
+
     public RestoreState() {
         this(INITIAL, 0, 0, 0, 0, null, null);
     }
@@ -30,11 +38,26 @@ public class RestoreState extends State {
                         int duplicateCount,
                         DataType dataType,
                         Exception exception) {
+        this(state, currentRestoredCount, itemsToRestore, actualRestoredCount, duplicateCount, dataType, exception,
+                null, null);
+    }
+
+    public RestoreState(SmsSyncState state,
+                        int currentRestoredCount,
+                        int itemsToRestore,
+                        int actualRestoredCount,
+                        int duplicateCount,
+                        DataType dataType,
+                        Exception exception,
+                        @Nullable ThroughputMeter.Throughput throughput,
+                        @Nullable PipelineMetrics.Summary metrics) {
         super(state, dataType, exception);
         this.currentRestoredCount = currentRestoredCount;
         this.actualRestoredCount = actualRestoredCount;
         this.itemsToRestore = itemsToRestore;
         this.duplicateCount = duplicateCount;
+        this.throughput = throughput;
+        this.metrics = metrics;
     }
 
     @Override
@@ -50,7 +73,18 @@ public class RestoreState extends State {
 
     @Override
     public RestoreState transition(SmsSyncState newState, Exception exception) {
-        return new RestoreState(newState, currentRestoredCount, itemsToRestore, actualRestoredCount, duplicateCount, dataType, exception);
+        return new RestoreState(newState, currentRestoredCount, itemsToRestore, actualRestoredCount, duplicateCount, dataType, exception,
+                throughput, metrics);
+    }
+
+    public RestoreState withThroughput(@Nullable ThroughputMeter.Throughput throughput) {
+        return new RestoreState(state, currentRestoredCount, itemsToRestore, actualRestoredCount, duplicateCount, dataType, exception,
+                throughput, metrics);
+    }
+
+    public RestoreState withMetrics(PipelineMetrics.Summary metrics) {
+        return new RestoreState(state, currentRestoredCount, itemsToRestore, actualRestoredCount, duplicateCount, dataType, exception,
+                throughput, metrics);
     }
 
     @Override
@@ -65,7 +99,7 @@ public class RestoreState extends State {
                 if (dataType != null) {
                     label += " ("+resources.getString(dataType.resId)+")";
                 }
-                return label;
+                return appendThroughput(resources, label, throughput);
             case UPDATING_THREADS:
                 return resources.getString(R.string.status_updating_threads);
             default:
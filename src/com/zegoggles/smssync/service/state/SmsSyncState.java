@@ -6,10 +6,13 @@ public enum SmsSyncState {
     LOGIN,
     BACKUP,
     RESTORE,
+    DEDUP,
     ERROR,
     CANCELED_BACKUP,
     CANCELED_RESTORE,
+    CANCELED_DEDUP,
     FINISHED_BACKUP,
     FINISHED_RESTORE,
+    FINISHED_DEDUP,
     UPDATING_THREADS
 }
@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service.state;
 
 import android.content.res.Resources;
+import android.text.format.DateUtils;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.XOAuth2AuthenticationFailedException;
@@ -9,6 +10,7 @@ import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.service.exception.ConnectivityException;
 import com.zegoggles.smssync.service.exception.LocalizableException;
 import com.zegoggles.smssync.service.exception.RequiresLoginException;
+import com.zegoggles.smssync.utils.ThroughputMeter;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.EnumSet;
@@ -47,6 +49,7 @@ public abstract class State {
                 SmsSyncState.CALC,
                 SmsSyncState.BACKUP,
                 SmsSyncState.RESTORE,
+                SmsSyncState.DEDUP,
                 SmsSyncState.UPDATING_THREADS).contains(state);
     }
 
@@ -67,7 +70,30 @@ public abstract class State {
     }
 
     public boolean isCanceled() {
-        return state == SmsSyncState.CANCELED_BACKUP || state == SmsSyncState.CANCELED_RESTORE;
+        return state == SmsSyncState.CANCELED_BACKUP ||
+               state == SmsSyncState.CANCELED_RESTORE ||
+               state == SmsSyncState.CANCELED_DEDUP;
+    }
+
+    /**
+     * Adds items/s, bytes/s and the estimated remaining time to a progress label.
+     */
+    protected static String appendThroughput(Resources resources, String label,
+                                             @Nullable ThroughputMeter.Throughput throughput) {
+        if (throughput == null) return label;
+
+        final StringBuilder sb = new StringBuilder(label)
+                .append(", ")
+                .append(resources.getString(R.string.status_items_per_second, throughput.itemsPerSecond));
+        if (throughput.bytesPerSecond >= 0) {
+            sb.append(", ").append(resources.getString(R.string.status_kilobytes_per_second,
+                    throughput.bytesPerSecond / 1024f));
+        }
+        if (throughput.eta >= 0) {
+            sb.append(", ").append(resources.getString(R.string.status_eta,
+                    DateUtils.formatElapsedTime(throughput.eta)));
+        }
+        return sb.toString();
     }
 
     public String getNotificationLabel(Resources resources) {
@@ -3,35 +3,58 @@ package com.zegoggles.smssync.utils;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.Process;
 import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.View;
-import android.widget.ScrollView;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 import com.zegoggles.smssync.R;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.LineNumberReader;
 import java.io.PrintWriter;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
+/**
+ * The user visible log. {@link #append} only puts the line into a lock-free ring buffer, a
+ * background thread formats and writes the buffered lines in batches. If the writer can't keep
+ * up, lines are dropped rather than blocking the caller.
+ * <p>
+ * The log is kept in two segments of {@link #SEGMENT_SIZE}, once the current one is full it
+ * replaces the previous one, so rotating never needs to read the log.
+ */
 public class AppLog {
     // keep max 32k worth of logs
     static final int MAX_SIZE = 32 * 1024;
+    static final int SEGMENT_SIZE = MAX_SIZE / 2;
     public static final int ID = 1;
 
-    private PrintWriter writer;
-    private String dateFormat;
+    private static final Map<File, Writer> WRITERS = new HashMap<File, Writer>();
+
+    private final @Nullable Writer writer;
 
     public AppLog(String name, char[] format) {
+        String dateFormat = null;
         for (char c : format) {
             if (c == DateFormat.MONTH) {
                 dateFormat = "MM-dd kk:mm";
@@ -44,134 +67,321 @@ public class AppLog {
         }
 
         if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            final File logFile = getFile(name);
-            if (logFile.isFile() && logFile.exists()) rotate(logFile);
-
-            try {
-                writer = new PrintWriter(new FileWriter(logFile, true));
-            } catch (IOException e) {
-                Log.w(TAG, "error opening app log", e);
-            }
+            writer = Writer.acquire(getFile(name), dateFormat);
+        } else {
+            writer = null;
         }
     }
 
     public void append(String s) {
         if (writer != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(format(new Date()))
-                    .append(" ").append(s);
-            writer.println(sb);
-            if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + sb);
+            writer.offer(new Line(System.currentTimeMillis(), s));
+            if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + s);
         }
     }
 
+    /**
+     * Stops logging, lines appended before get written in the background.
+     */
     public void close() {
         if (LOCAL_LOGV) Log.v(TAG, "AppLog#close()");
-        if (writer != null) writer.close();
+        if (writer != null) writer.release();
     }
 
-    public CharSequence format(Date d) {
-        return DateFormat.format(dateFormat, d);
+    private static class Line {
+        final long time;
+        final String text;
+
+        Line(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
     }
 
-    private void rotate(final File logFile) {
-        if (logFile.length() > MAX_SIZE) {
-            if (LOCAL_LOGV) Log.v(TAG, "rotating logfile " + logFile);
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        LineNumberReader r = new LineNumberReader(new FileReader(logFile));
+    /**
+     * Drains the ring buffer of one log file. Shared by all {@link AppLog}s of the file, the last
+     * one to be closed stops it.
+     */
+    private static class Writer extends Thread {
+        private static final int CAPACITY = 512;
+        private static final int MASK = CAPACITY - 1;
+        /** how long buffered lines may wait before they get written, in ns */
+        private static final long FLUSH_INTERVAL = 1000 * 1000 * 1000L;
 
-                        while (r.readLine() != null) ;
-                        r.close();
+        private final File file;
+        private final @Nullable String dateFormat;
+        private final AtomicReferenceArray<Line> slots = new AtomicReferenceArray<Line>(CAPACITY);
+        /** next slot to fill */
+        private final AtomicLong head = new AtomicLong();
+        /** next slot to write, only advanced by the writer thread */
+        private volatile long tail;
+        private final AtomicInteger dropped = new AtomicInteger();
+        private volatile boolean closed;
+        private int references;
 
-                        int keep = Math.round(r.getLineNumber() * 0.3f);
-                        if (keep > 0) {
-                            r = new LineNumberReader(new FileReader(logFile));
+        private Writer(File file, @Nullable String dateFormat) {
+            super("AppLog");
+            this.file = file;
+            this.dateFormat = dateFormat;
+        }
 
-                            while (r.readLine() != null && r.getLineNumber() < keep) ;
+        static Writer acquire(File file, @Nullable String dateFormat) {
+            synchronized (WRITERS) {
+                Writer writer = WRITERS.get(file);
+                if (writer == null) {
+                    writer = new Writer(file, dateFormat);
+                    writer.start();
+                    WRITERS.put(file, writer);
+                }
+                writer.references++;
+                return writer;
+            }
+        }
 
-                            File newFile = new File(logFile.getAbsolutePath() + ".new");
-                            PrintWriter pw = new PrintWriter(new FileWriter(newFile));
-                            String line;
-                            while ((line = r.readLine()) != null) pw.println(line);
+        void release() {
+            synchronized (WRITERS) {
+                if (--references > 0) return;
+                WRITERS.remove(file);
+            }
+            closed = true;
+            LockSupport.unpark(this);
+        }
 
-                            pw.close();
-                            r.close();
+        void offer(Line line) {
+            for (;;) {
+                final long h = head.get();
+                if (h - tail >= CAPACITY) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (head.compareAndSet(h, h + 1)) {
+                    slots.set((int) (h & MASK), line);
+                    // wake up the writer early rather than dropping lines
+                    if (h - tail == CAPACITY / 2) LockSupport.unpark(this);
+                    return;
+                }
+            }
+        }
 
-                            if (newFile.renameTo(logFile) && LOCAL_LOGV) {
-                                Log.v(TAG, "rotated file, new size = " + logFile.length());
-                            }
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "error rotating file " + logFile, e);
-                    }
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            PrintWriter out = open();
+            for (;;) {
+                // read before draining, so nothing appended before close() gets lost
+                final boolean done = closed;
+                if (out != null && drain(out) && file.length() > SEGMENT_SIZE) {
+                    out.close();
+                    rotate();
+                    out = open();
                 }
-            }.start();
+                if (done) break;
+                LockSupport.parkNanos(this, FLUSH_INTERVAL);
+            }
+            if (out != null) out.close();
+        }
+
+        /**
+         * Writes all buffered lines and flushes them.
+         * @return if anything was written
+         */
+        private boolean drain(PrintWriter out) {
+            final int lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                out.println(format(System.currentTimeMillis()) + " (" + lost + " lines dropped)");
+            }
+            final long start = tail;
+            long t = start;
+            Line line;
+            // a claimed slot may not be filled yet, it gets written with the next batch
+            while (t < head.get() && (line = slots.get((int) (t & MASK))) != null) {
+                slots.set((int) (t & MASK), null);
+                tail = ++t;
+                out.println(format(line.time) + " " + line.text);
+            }
+            if (lost == 0 && t == start) return false;
+            out.flush();
+            return true;
+        }
+
+        private CharSequence format(long time) {
+            return DateFormat.format(dateFormat, time);
+        }
+
+        private @Nullable PrintWriter open() {
+            try {
+                return new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+            } catch (IOException e) {
+                Log.w(TAG, "error opening app log", e);
+                return null;
+            }
+        }
+
+        private void rotate() {
+            if (LOCAL_LOGV) Log.v(TAG, "rotating logfile " + file);
+            final File previous = getPreviousSegment(file);
+            if (previous.exists() && !previous.delete()) {
+                Log.w(TAG, "could not delete " + previous);
+            }
+            if (!file.renameTo(previous)) {
+                Log.w(TAG, "could not rotate " + file);
+            }
         }
     }
 
     public static Dialog displayAsDialog(String name, Context context) {
         final int PAD = 5;
-        final TextView view = new TextView(context);
+        final ListView view = new ListView(context);
         view.setId(ID);
+        view.setPadding(PAD, PAD, PAD, PAD);
+        view.setStackFromBottom(true);
+        view.setDividerHeight(0);
 
         readLog(name, view);
 
-        final ScrollView sView = new ScrollView(context) {
-            {
-                addView(view);
-                setPadding(PAD, PAD, PAD, PAD);
-            }
-
-            @Override
-            protected void onLayout(boolean changed, int l, int t, int r, int b) {
-                super.onLayout(changed, l, t, r, b);
-                scrollTo(0, view.getHeight());
-            }
-        };
-
         return new AlertDialog.Builder(context)
                 .setCustomTitle(null)
                 .setPositiveButton(android.R.string.ok, null)
-                .setView(sView)
+                .setView(view)
                 .create();
     }
 
-    public static boolean readLog(String name, View view) {
-        return readLog(getFile(name), view);
+    /**
+     * Shows the newest lines of the log in <code>view</code>, a {@link ListView}. Older lines get
+     * read in the background once the user scrolls up to them.
+     */
+    public static void readLog(String name, View view) {
+        if (!(view instanceof ListView)) return;
+
+        final ListView listView = (ListView) view;
+        if (listView.getAdapter() instanceof LogAdapter) {
+            ((LogAdapter) listView.getAdapter()).close();
+        }
+        final File file = getFile(name);
+        final LogAdapter adapter = new LogAdapter(listView, new ReverseLineReader(file, getPreviousSegment(file)));
+        listView.setAdapter(adapter);
+        listView.setOnScrollListener(adapter);
+        adapter.loadMore();
     }
 
-    public static boolean readLog(File f, View view) {
-        StringBuilder text = new StringBuilder();
-        if (f.exists() && view instanceof TextView) {
-            BufferedReader br = null;
-            try {
-                br = new BufferedReader(new FileReader(f));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    text.append(line);
-                    text.append('\n');
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "error reading", e);
-            } finally {
-                if (br != null) {
+    private static class LogAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+        private static final int PAGE_SIZE = 200;
+
+        private final ListView view;
+        private final ReverseLineReader reader;
+        /** oldest first */
+        private final List<String> lines = new ArrayList<String>();
+        private boolean loading, complete, closed;
+
+        LogAdapter(ListView view, ReverseLineReader reader) {
+            this.view = view;
+            this.reader = reader;
+        }
+
+        void loadMore() {
+            if (loading || complete || closed) return;
+            loading = true;
+            new AsyncTask<Void, Void, List<String>>() {
+                @Override
+                protected List<String> doInBackground(Void... params) {
                     try {
-                        br.close();
-                    } catch (IOException ignored) {
+                        return reader.readLines(PAGE_SIZE);
+                    } catch (IOException e) {
+                        Log.e(TAG, "error reading", e);
+                        return Collections.emptyList();
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(List<String> older) {
+                    loading = false;
+                    if (closed) {
+                        closeReader();
+                    } else {
+                        prepend(older);
                     }
                 }
+            }.execute();
+        }
+
+        void close() {
+            closed = true;
+            if (!loading) closeReader();
+        }
+
+        private void prepend(List<String> older) {
+            if (older.isEmpty()) {
+                complete = true;
+                closeReader();
+                if (lines.isEmpty()) {
+                    lines.add(view.getContext().getString(R.string.app_log_empty));
+                    notifyDataSetChanged();
+                }
+                return;
             }
+
+            // keep the lines currently shown in place
+            final int first = view.getFirstVisiblePosition();
+            final View top = view.getChildAt(0);
+            final int offset = top == null ? 0 : top.getTop();
+
+            Collections.reverse(older);
+            final boolean initial = lines.isEmpty();
+            lines.addAll(0, older);
+            notifyDataSetChanged();
+            if (!initial) view.setSelectionFromTop(first + older.size(), offset);
+        }
+
+        private void closeReader() {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            if (firstVisibleItem == 0 && totalItemCount > 0) loadMore();
+        }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
         }
-        ((TextView) view).setText(text.length() > 0 ? text :
-                view.getContext().getString(R.string.app_log_empty));
 
-        return text.length() > 0;
+        @Override
+        public int getCount() {
+            return lines.size();
+        }
+
+        @Override
+        public String getItem(int position) {
+            return lines.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final TextView text;
+            if (convertView instanceof TextView) {
+                text = (TextView) convertView;
+            } else {
+                text = new TextView(parent.getContext());
+                text.setTextAppearance(parent.getContext(), android.R.style.TextAppearance_Small);
+            }
+            text.setText(lines.get(position));
+            return text;
+        }
     }
 
     static File getFile(String name) {
         return new File(Environment.getExternalStorageDirectory(), name);
     }
+
+    static File getPreviousSegment(File file) {
+        return new File(file.getPath() + ".1");
+    }
 }
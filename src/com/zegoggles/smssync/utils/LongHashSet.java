@@ -0,0 +1,72 @@
+package com.zegoggles.smssync.utils;
+
+/**
+ * A compact set of primitive longs (open addressing, linear probing), used to
+ * keep large numbers of message hashes in memory without boxing.
+ */
+public class LongHashSet {
+    private static final long EMPTY = 0;
+    // substitute for EMPTY, so 0 can be stored as well
+    private static final long ZERO = 0x9e3779b97f4a7c15L;
+
+    private long[] table;
+    private int size;
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        table = new long[capacity];
+    }
+
+    /**
+     * @return true if the value was not already contained in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) value = ZERO;
+        if (size * 2 >= table.length) resize();
+
+        final int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == value) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) value = ZERO;
+        final int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == value) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length; i++) table[i] = EMPTY;
+        size = 0;
+    }
+
+    private void resize() {
+        final long[] old = table;
+        table = new long[old.length * 2];
+        size = 0;
+        for (long value : old) {
+            if (value != EMPTY) add(value);
+        }
+    }
+
+    private static int index(long value, int mask) {
+        final long h = value ^ (value >>> 32);
+        return ((int) h ^ ((int) h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,172 @@
+package com.zegoggles.smssync.utils;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timers and latency histograms for the stages of a backup or restore. Durations come from
+ * {@link System#nanoTime()}, which is monotonic, and are recorded into log-linear histograms
+ * (4 buckets per power of two), so percentiles are accurate to within 1/8 of their value.
+ * Safe to use from several threads.
+ */
+public class PipelineMetrics {
+    public enum Stage {
+        /** provider queries (backup), IMAP searches (restore) */
+        QUERY("query"),
+        /** reading provider rows */
+        ROW_READ("rows"),
+        /** contact lookups, nested in {@link #CONVERSION} */
+        CONTACT_LOOKUP("contacts"),
+        /** building (backup) or parsing (restore) messages */
+        CONVERSION("convert"),
+        /** writing messages to the spool or the local copy */
+        SERIALIZATION("serialize"),
+        /** APPEND, from the first byte written until the server acknowledged the message */
+        UPLOAD("upload"),
+        /** FETCH of message bodies */
+        DOWNLOAD("download"),
+        /** advancing the sync watermark (backup), provider inserts (restore) */
+        COMMIT("commit");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(Stage.class);
+
+    public PipelineMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * @return the start time, to be passed to {@link #stop}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since <code>started</code>.
+     * @param items number of items handled in this interval
+     */
+    public void stop(Stage stage, long started, int items) {
+        histograms.get(stage).record(System.nanoTime() - started, items);
+    }
+
+    public void stop(Stage stage, long started) {
+        stop(stage, started, 1);
+    }
+
+    public Summary getSummary() {
+        final Map<Stage, StageSummary> stages = new EnumMap<Stage, StageSummary>(Stage.class);
+        for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+            final StageSummary summary = entry.getValue().summarize();
+            if (summary.count > 0) stages.put(entry.getKey(), summary);
+        }
+        return new Summary(stages);
+    }
+
+    public static class StageSummary {
+        /** number of timed intervals */
+        public final int count;
+        /** number of items handled */
+        public final int items;
+        /** times in ms */
+        public final long total, p50, p95, p99;
+
+        StageSummary(int count, int items, long total, long p50, long p95, long p99) {
+            this.count = count;
+            this.items = items;
+            this.total = total;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+    }
+
+    public static class Summary {
+        public final Map<Stage, StageSummary> stages;
+
+        Summary(Map<Stage, StageSummary> stages) {
+            this.stages = stages;
+        }
+
+        public boolean isEmpty() {
+            return stages.isEmpty();
+        }
+
+        /**
+         * @return label, total time, item count and p50/p95/p99 (ms) of each stage
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Stage, StageSummary> entry : stages.entrySet()) {
+                final StageSummary s = entry.getValue();
+                if (sb.length() > 0) sb.append("; ");
+                sb.append(String.format(Locale.ENGLISH, "%s: %dms, n=%d, p50/p95/p99=%d/%d/%dms",
+                        entry.getKey().label, s.total, s.items, s.p50, s.p95, s.p99));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final int[] counts = new int[64 * SUB_BUCKETS];
+        private int count, items;
+        private long total;
+
+        synchronized void record(long nanos, int n) {
+            if (nanos < 0) nanos = 0;
+            counts[index(nanos)]++;
+            count++;
+            items += n;
+            total += nanos;
+        }
+
+        synchronized StageSummary summarize() {
+            return new StageSummary(count, items, toMillis(total),
+                    toMillis(percentile(0.50)),
+                    toMillis(percentile(0.95)),
+                    toMillis(percentile(0.99)));
+        }
+
+        private long percentile(double p) {
+            if (count == 0) return 0;
+            final long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return midpoint(i);
+            }
+            return midpoint(counts.length - 1);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            final int log = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (log - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (log - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long midpoint(int index) {
+            if (index < SUB_BUCKETS) return index;
+            final int shift = index / SUB_BUCKETS - 1;
+            final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) / 2;
+        }
+
+        private static long toMillis(long nanos) {
+            return nanos / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.zegoggles.smssync.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the lines of one or more files backwards, starting at the end of the newest file, in
+ * blocks of {@link #BLOCK_SIZE} bytes. Only the parts of the files which get shown are read.
+ */
+class ReverseLineReader implements Closeable {
+    static final int BLOCK_SIZE = 8 * 1024;
+
+    /** newest first */
+    private final File[] files;
+    private int fileIndex = -1;
+    private RandomAccessFile current;
+    /** bytes of the current file not read yet */
+    private long position;
+    /** bytes of an incomplete line at the start of the last block */
+    private byte[] carry = new byte[0];
+    private final List<String> pending = new ArrayList<String>();
+
+    /**
+     * @param files the files to read, newest first, the lines of each file continue in the next
+     *              newer one
+     */
+    ReverseLineReader(File... files) {
+        this.files = files;
+    }
+
+    /**
+     * @return up to <code>max</code> lines preceding the ones returned before, newest first. Empty
+     * if the start of the oldest file was reached.
+     */
+    List<String> readLines(int max) throws IOException {
+        final List<String> lines = new ArrayList<String>(max);
+        while (lines.size() < max) {
+            if (!pending.isEmpty()) {
+                lines.add(pending.remove(0));
+            } else if (!readBlock()) {
+                break;
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        fileIndex = files.length;
+    }
+
+    /**
+     * Reads the block preceding the current position into {@link #pending}.
+     * @return false if there is nothing left to read
+     */
+    private boolean readBlock() throws IOException {
+        while (current == null || position == 0) {
+            if (current != null) {
+                // the start of a non-empty file completes its first line
+                final boolean empty = current.length() == 0;
+                current.close();
+                current = null;
+                if (!empty) {
+                    pending.add(decode(carry, 0, carry.length));
+                    carry = new byte[0];
+                    return true;
+                }
+            }
+            if (++fileIndex >= files.length) return false;
+
+            final File file = files[fileIndex];
+            if (!file.exists()) continue;
+            current = new RandomAccessFile(file, "r");
+            position = current.length();
+        }
+
+        final int length = (int) Math.min(BLOCK_SIZE, position);
+        position -= length;
+        final byte[] block = new byte[length + carry.length];
+        current.seek(position);
+        current.readFully(block, 0, length);
+        System.arraycopy(carry, 0, block, length, carry.length);
+
+        int end = block.length;
+        // a trailing newline terminates the last line and doesn't start a new one
+        if (carry.length == 0 && end > 0 && block[end - 1] == '\n' && position + length == current.length()) {
+            end--;
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            if (block[i] == '\n') {
+                pending.add(decode(block, i + 1, end));
+                end = i;
+            }
+        }
+        carry = new byte[end];
+        System.arraycopy(block, 0, carry, 0, end);
+        return true;
+    }
+
+    private static String decode(byte[] bytes, int start, int end) throws UnsupportedEncodingException {
+        if (end > start && bytes[end - 1] == '\r') end--;
+        return new String(bytes, start, end - start, "UTF-8");
+    }
+}
@@ -0,0 +1,90 @@
+package com.zegoggles.smssync.utils;
+
+import android.os.SystemClock;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Exponentially weighted moving averages of the item and byte rates of a running backup or
+ * restore, and the resulting ETA. New samples are only taken once a second, calls in between
+ * return the previous estimate, so this can be called for every item.
+ * <p>
+ * Bytes are the traffic of the app as counted by {@link TrafficCounter}, which is not available
+ * on all devices.
+ */
+public class ThroughputMeter {
+    /** minimum time between two samples, in ms */
+    static final long SAMPLE_INTERVAL = 1000;
+    /** older samples lose weight with this time constant, in ms */
+    private static final double TIME_CONSTANT = 10 * 1000;
+
+    private final boolean upload;
+    private long lastSample = -1;
+    private int lastItems;
+    private long lastBytes;
+    private double itemRate = -1, byteRate = -1;
+    private @Nullable Throughput current;
+
+    /**
+     * @param upload whether to measure sent (upload) or received bytes
+     */
+    public ThroughputMeter(boolean upload) {
+        this.upload = upload;
+    }
+
+    public static class Throughput {
+        public final float itemsPerSecond;
+        /** -1 if unknown */
+        public final long bytesPerSecond;
+        /** estimated remaining time in seconds, -1 if unknown */
+        public final long eta;
+
+        Throughput(float itemsPerSecond, long bytesPerSecond, long eta) {
+            this.itemsPerSecond = itemsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.eta = eta;
+        }
+
+        @Override
+        public String toString() {
+            return "Throughput{" +
+                    "itemsPerSecond=" + itemsPerSecond +
+                    ", bytesPerSecond=" + bytesPerSecond +
+                    ", eta=" + eta +
+                    '}';
+        }
+    }
+
+    /**
+     * @param done  items handled so far
+     * @param total total number of items
+     * @return the current estimate, null until two samples have been taken
+     */
+    public @Nullable Throughput update(int done, int total) {
+        final long now = SystemClock.elapsedRealtime();
+        if (lastSample >= 0 && now - lastSample < SAMPLE_INTERVAL) return current;
+
+        final long bytes = getBytes();
+        if (lastSample >= 0) {
+            final long elapsed = now - lastSample;
+            final double weight = 1 - Math.exp(-elapsed / TIME_CONSTANT);
+            itemRate = average(itemRate, (done - lastItems) * 1000d / elapsed, weight);
+            if (bytes >= 0 && lastBytes >= 0) {
+                byteRate = average(byteRate, (bytes - lastBytes) * 1000d / elapsed, weight);
+            }
+            final long eta = itemRate > 0 ? Math.round((total - done) / itemRate) : -1;
+            current = new Throughput((float) itemRate, Math.round(byteRate), eta);
+        }
+        lastSample = now;
+        lastItems = done;
+        lastBytes = bytes;
+        return current;
+    }
+
+    private static double average(double average, double sample, double weight) {
+        return average < 0 ? sample : average + weight * (sample - average);
+    }
+
+    private long getBytes() {
+        return upload ? TrafficCounter.getSent() : TrafficCounter.getReceived();
+    }
+}
@@ -0,0 +1,37 @@
+package com.zegoggles.smssync.utils;
+
+import android.annotation.TargetApi;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Network bytes sent and received by the app since boot, as counted by the kernel. Includes
+ * protocol and TLS overhead. Not available before Froyo and on some devices.
+ */
+public final class TrafficCounter {
+    public static final boolean SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO;
+
+    private TrafficCounter() {}
+
+    /**
+     * @return bytes sent, or -1 if unknown
+     */
+    public static long getSent() {
+        return SUPPORTED ? getUidBytes(true) : -1;
+    }
+
+    /**
+     * @return bytes received, or -1 if unknown
+     */
+    public static long getReceived() {
+        return SUPPORTED ? getUidBytes(false) : -1;
+    }
+
+    @TargetApi(Build.VERSION_CODES.FROYO)
+    private static long getUidBytes(boolean sent) {
+        final long bytes = sent ? TrafficStats.getUidTxBytes(Process.myUid()) :
+                                  TrafficStats.getUidRxBytes(Process.myUid());
+        return bytes == TrafficStats.UNSUPPORTED ? -1 : bytes;
+    }
+}
@@ -0,0 +1,14 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.K9;
+
+/**
+ * Used by Robolectric instead of {@link App}, skips crash reporting and the provider
+ * observers.
+ */
+public class TestApp extends App {
+    @Override
+    public void onCreate() {
+        K9.app = this;
+    }
+}
@@ -0,0 +1,1424 @@
+package com.zegoggles.smssync.harness;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-process IMAP server for load tests, speaks enough IMAP4rev1 for the k9 client: LOGIN,
+ * LIST, STATUS, CREATE, SELECT/EXAMINE, APPEND, SEARCH, FETCH, STORE, EXPUNGE and CLOSE, with
+ * UID variants. The link to the client can be slowed down with a round trip latency and a
+ * bandwidth limit, the optional extensions UIDPLUS, MULTIAPPEND, LITERAL+ and COMPRESS=DEFLATE
+ * are only advertised and accepted when configured.
+ * <p/>
+ * Searches for Message-IDs are looked up exactly instead of by substring, other searches scan
+ * the headers of all messages in the folder.
+ */
+public class FakeImapServer {
+    public static final String UIDPLUS = "UIDPLUS";
+    public static final String MULTIAPPEND = "MULTIAPPEND";
+    public static final String LITERAL_PLUS = "LITERAL+";
+    public static final String COMPRESS = "COMPRESS=DEFLATE";
+
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)(\\+?)\\}$");
+    private static final Pattern SENT_DATE = Pattern.compile("(\\d{1,2})\\s+([A-Za-z]{3})\\s+(\\d{4})");
+    private static final String[] MONTHS = {
+        "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"
+    };
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final long latency;
+    private final Throttle upstream, downstream;
+    private final Set<String> capabilities;
+    private final boolean discardBodies;
+    private final String user, password;
+
+    private final Map<String, Mailbox> mailboxes = new LinkedHashMap<String, Mailbox>();
+    private final Map<String, Integer> commandCounts = new TreeMap<String, Integer>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private ServerSocket serverSocket;
+    private long nextUidValidity = 1000;
+
+    private FakeImapServer(Builder builder) {
+        latency = builder.latency;
+        upstream = new Throttle(builder.bandwidth);
+        downstream = new Throttle(builder.bandwidth);
+        capabilities = builder.capabilities;
+        discardBodies = builder.discardBodies;
+        user = builder.user;
+        password = builder.password;
+    }
+
+    public static class Builder {
+        private long latency;
+        private long bandwidth;
+        private final Set<String> capabilities = new LinkedHashSet<String>();
+        private boolean discardBodies;
+        private String user = "user", password = "secret";
+
+        /**
+         * @return a builder configured from the system properties <code>imap.latency</code>
+         * (ms), <code>imap.bandwidth</code> (bytes/s) and <code>imap.capabilities</code>
+         * (comma separated, all optional extensions by default)
+         */
+        public static Builder fromSystemProperties() {
+            return new Builder()
+                    .latency(Long.getLong("imap.latency", 0))
+                    .bandwidth(Long.getLong("imap.bandwidth", 0))
+                    .capabilities(System.getProperty("imap.capabilities",
+                            UIDPLUS + "," + MULTIAPPEND + "," + LITERAL_PLUS + "," + COMPRESS).split(","));
+        }
+
+        /**
+         * @param millis round trip time, the server waits that long before answering each
+         *               command and each literal which needs a continuation
+         */
+        public Builder latency(long millis) {
+            this.latency = millis;
+            return this;
+        }
+
+        /**
+         * @param bytesPerSecond limit for each direction, 0 for none
+         */
+        public Builder bandwidth(long bytesPerSecond) {
+            this.bandwidth = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param capabilities extensions to offer, see {@link FakeImapServer#UIDPLUS} etc.
+         */
+        public Builder capabilities(String... capabilities) {
+            for (String capability : capabilities) {
+                if (capability.trim().length() > 0) this.capabilities.add(capability.trim().toUpperCase(Locale.ENGLISH));
+            }
+            return this;
+        }
+
+        /**
+         * Only keep the headers of appended messages, to keep the heap of long runs small.
+         * Bodies of such messages can't be fetched.
+         */
+        public Builder discardBodies(boolean discard) {
+            this.discardBodies = discard;
+            return this;
+        }
+
+        public Builder login(String user, String password) {
+            this.user = user;
+            this.password = password;
+            return this;
+        }
+
+        public FakeImapServer build() {
+            return new FakeImapServer(this);
+        }
+    }
+
+    /**
+     * Starts listening on a free local port.
+     */
+    public FakeImapServer start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        sockets.add(socket);
+                        final Thread session = new Thread(new Session(socket), "imap-session");
+                        session.setDaemon(true);
+                        session.start();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) e.printStackTrace();
+                    }
+                }
+            }
+        }, "imap-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+
+    /**
+     * Stores a message without going through the protocol, the folder is created if needed.
+     */
+    public void seed(String folder, byte[] message, String... flags) {
+        synchronized (mailboxes) {
+            Mailbox mailbox = mailboxes.get(folder);
+            if (mailbox == null) mailbox = create(folder);
+            mailbox.add(message, new HashSet<String>(Arrays.asList(flags)), new Date(), false);
+        }
+    }
+
+    public int getMessageCount(String folder) {
+        synchronized (mailboxes) {
+            final Mailbox mailbox = mailboxes.get(folder);
+            return mailbox == null ? 0 : mailbox.messages.size();
+        }
+    }
+
+    /**
+     * @return the bytes of all messages held by the server
+     */
+    public long getStoredBytes() {
+        long bytes = 0;
+        synchronized (mailboxes) {
+            for (Mailbox mailbox : mailboxes.values()) {
+                for (StoredMessage message : mailbox.messages) bytes += message.data.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes received from clients, as transferred, i.e. compressed when COMPRESS is active
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return bytes sent to clients, as transferred
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @param command the command name, with a UID prefix if used, e.g. "UID FETCH"
+     */
+    public int getCommandCount(String command) {
+        synchronized (commandCounts) {
+            final Integer count = commandCounts.get(command);
+            return count == null ? 0 : count;
+        }
+    }
+
+    public Map<String, Integer> getCommandCounts() {
+        synchronized (commandCounts) {
+            return new TreeMap<String, Integer>(commandCounts);
+        }
+    }
+
+    public void resetCounters() {
+        synchronized (commandCounts) {
+            commandCounts.clear();
+        }
+        bytesReceived.set(0);
+        bytesSent.set(0);
+    }
+
+    private Mailbox create(String name) {
+        final Mailbox mailbox = new Mailbox(name, nextUidValidity++);
+        mailboxes.put(name, mailbox);
+        return mailbox;
+    }
+
+    private void count(String command) {
+        synchronized (commandCounts) {
+            final Integer count = commandCounts.get(command);
+            commandCounts.put(command, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static class Mailbox {
+        final String name;
+        final long uidValidity;
+        final List<StoredMessage> messages = new ArrayList<StoredMessage>();
+        /** keyed by lower case Message-ID */
+        final Map<String, List<StoredMessage>> byMessageId = new HashMap<String, List<StoredMessage>>();
+        long nextUid = 1;
+
+        Mailbox(String name, long uidValidity) {
+            this.name = name;
+            this.uidValidity = uidValidity;
+        }
+
+        StoredMessage add(byte[] data, Set<String> flags, Date internalDate, boolean discardBody) {
+            final StoredMessage message = new StoredMessage(nextUid++, data, flags, internalDate, discardBody);
+            messages.add(message);
+            final String messageId = message.getMessageIdKey();
+            if (messageId != null) {
+                List<StoredMessage> list = byMessageId.get(messageId);
+                if (list == null) {
+                    list = new ArrayList<StoredMessage>(1);
+                    byMessageId.put(messageId, list);
+                }
+                list.add(message);
+            }
+            return message;
+        }
+
+        void remove(StoredMessage message) {
+            messages.remove(message);
+            final List<StoredMessage> list = byMessageId.get(message.getMessageIdKey());
+            if (list != null) list.remove(message);
+        }
+
+        long getUidNext() {
+            return nextUid;
+        }
+
+        int getUnseen() {
+            int unseen = 0;
+            for (StoredMessage message : messages) {
+                if (!message.flags.contains("\\Seen")) unseen++;
+            }
+            return unseen;
+        }
+    }
+
+    private static class StoredMessage {
+        final long uid;
+        /** the complete message, or only the header if the body was discarded */
+        final byte[] data;
+        final int headerLength;
+        final int size;
+        final Set<String> flags;
+        final Date internalDate;
+
+        StoredMessage(long uid, byte[] message, Set<String> flags, Date internalDate, boolean discardBody) {
+            this.uid = uid;
+            this.flags = flags;
+            this.internalDate = internalDate;
+            this.size = message.length;
+            this.headerLength = findHeaderEnd(message);
+            this.data = discardBody ? Arrays.copyOf(message, headerLength) : message;
+        }
+
+        boolean hasBody() {
+            return data.length == size;
+        }
+
+        /**
+         * @return the Message-ID in lower case, for looking it up
+         */
+        String getMessageIdKey() {
+            final List<String> values = parseHeaders().get("message-id");
+            return values == null || values.isEmpty() ? null : values.get(0).trim().toLowerCase(Locale.ENGLISH);
+        }
+
+        /** parsed on demand, the headers of large folders would take up too much memory */
+        Map<String, List<String>> parseHeaders() {
+            final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+            String name = null;
+            StringBuilder value = null;
+            for (String line : latin1(data, 0, headerLength).split("\r?\n")) {
+                if (line.length() == 0) continue;
+                if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && value != null) {
+                    value.append(' ').append(line.trim());
+                    continue;
+                }
+                if (name != null) addHeader(headers, name, value.toString());
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                    value = new StringBuilder(line.substring(colon + 1).trim());
+                } else {
+                    name = null;
+                    value = null;
+                }
+            }
+            if (name != null) addHeader(headers, name, value.toString());
+            return headers;
+        }
+
+        private static void addHeader(Map<String, List<String>> headers, String name, String value) {
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+
+        /**
+         * @return the header lines of the given fields, or of all other fields if
+         * <code>not</code> is set, followed by an empty line
+         */
+        byte[] getHeaderFields(Set<String> fields, boolean not) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int start = 0;
+            while (start < headerLength) {
+                int end = start;
+                // a field ends before a line which doesn't start with whitespace
+                do {
+                    while (end < headerLength && data[end] != '\n') end++;
+                    end++;
+                } while (end < headerLength && (data[end] == ' ' || data[end] == '\t'));
+                end = Math.min(end, headerLength);
+
+                final String field = latin1(data, start, end - start);
+                final int colon = field.indexOf(':');
+                if (colon > 0) {
+                    final String name = field.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                    if (fields.contains(name) != not) out.write(data, start, end - start);
+                }
+                start = end;
+            }
+            out.write(CRLF, 0, CRLF.length);
+            return out.toByteArray();
+        }
+
+        private static int findHeaderEnd(byte[] data) {
+            for (int i = 0; i < data.length - 1; i++) {
+                if (data[i] == '\n' && data[i + 1] == '\n') return i + 2;
+                if (data[i] == '\n' && data[i + 1] == '\r' && i + 2 < data.length && data[i + 2] == '\n') return i + 3;
+            }
+            return data.length;
+        }
+    }
+
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final InputStream wireIn;
+        private final OutputStream wireOut;
+        private InputStream in;
+        private OutputStream out;
+        private boolean authenticated, compressed;
+        private Mailbox selected;
+        private boolean readOnly;
+        private final SimpleDateFormat internalDateFormat =
+                new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            wireIn = new WireInputStream(socket.getInputStream(), upstream, bytesReceived);
+            wireOut = new WireOutputStream(socket.getOutputStream(), downstream, bytesSent);
+            in = new BufferedInputStream(wireIn);
+            out = wireOut;
+            internalDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        public void run() {
+            try {
+                writeLine("* OK FakeImapServer ready");
+                out.flush();
+                List<Object> command;
+                while ((command = readCommand()) != null) {
+                    if (!handle(command)) break;
+                    out.flush();
+                }
+            } catch (SocketException ignored) {
+                // closed by the client or stop()
+            } catch (EOFException ignored) {
+                // closed by the client
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                sockets.remove(socket);
+            }
+        }
+
+        /**
+         * @return false if the connection should be closed
+         */
+        private boolean handle(List<Object> command) throws IOException {
+            if (command.size() < 2) {
+                writeLine((command.isEmpty() ? "*" : string(command.get(0))) + " BAD missing command");
+                return true;
+            }
+            final String tag = string(command.get(0));
+            String name = string(command.get(1)).toUpperCase(Locale.ENGLISH);
+            boolean uid = false;
+            int argStart = 2;
+            if ("UID".equals(name) && command.size() > 2) {
+                uid = true;
+                name = string(command.get(2)).toUpperCase(Locale.ENGLISH);
+                argStart = 3;
+            }
+            final List<Object> args = command.subList(argStart, command.size());
+            count(uid ? "UID " + name : name);
+            sleep(latency);
+
+            try {
+                if ("CAPABILITY".equals(name)) {
+                    final StringBuilder sb = new StringBuilder("* CAPABILITY IMAP4rev1");
+                    for (String capability : capabilities) sb.append(' ').append(capability);
+                    writeLine(sb.toString());
+                    ok(tag, "CAPABILITY completed");
+                } else if ("NOOP".equals(name)) {
+                    ok(tag, "NOOP completed");
+                } else if ("LOGOUT".equals(name)) {
+                    writeLine("* BYE logging out");
+                    ok(tag, "LOGOUT completed");
+                    out.flush();
+                    return false;
+                } else if ("LOGIN".equals(name)) {
+                    if (args.size() == 2 && user.equals(string(args.get(0))) && password.equals(string(args.get(1)))) {
+                        authenticated = true;
+                        ok(tag, "LOGIN completed");
+                    } else {
+                        writeLine(tag + " NO [AUTHENTICATIONFAILED] invalid credentials");
+                    }
+                } else if (!authenticated) {
+                    writeLine(tag + " BAD not authenticated");
+                } else if ("COMPRESS".equals(name)) {
+                    compress(tag, args);
+                } else if ("LIST".equals(name) || "LSUB".equals(name)) {
+                    list(tag, name, args);
+                } else if ("STATUS".equals(name)) {
+                    status(tag, args);
+                } else if ("CREATE".equals(name)) {
+                    create(tag, args);
+                } else if ("SELECT".equals(name) || "EXAMINE".equals(name)) {
+                    select(tag, name, args);
+                } else if ("APPEND".equals(name)) {
+                    append(tag, args);
+                } else if (selected == null) {
+                    writeLine(tag + " BAD no mailbox selected");
+                } else if ("SEARCH".equals(name)) {
+                    search(tag, uid, args);
+                } else if ("FETCH".equals(name)) {
+                    fetch(tag, uid, args);
+                } else if ("STORE".equals(name)) {
+                    store(tag, uid, args);
+                } else if ("EXPUNGE".equals(name)) {
+                    expunge(tag, uid, args);
+                } else if ("CLOSE".equals(name)) {
+                    if (!readOnly) expungeDeleted(null, false);
+                    selected = null;
+                    ok(tag, "CLOSE completed");
+                } else {
+                    writeLine(tag + " BAD unsupported command " + name);
+                }
+            } catch (IllegalArgumentException e) {
+                writeLine(tag + " BAD " + e.getMessage());
+            }
+            return true;
+        }
+
+        private void compress(String tag, List<Object> args) throws IOException {
+            if (!capabilities.contains(COMPRESS) || args.size() != 1 || !"DEFLATE".equalsIgnoreCase(string(args.get(0)))) {
+                writeLine(tag + " BAD compression not supported");
+            } else if (compressed) {
+                writeLine(tag + " NO [COMPRESSIONACTIVE] already compressing");
+            } else {
+                ok(tag, "DEFLATE active");
+                out.flush();
+                // raw deflate (RFC 4978), flushed after every response
+                in = new BufferedInputStream(new InflaterInputStream(wireIn, new Inflater(true)));
+                out = new DeflaterOutputStream(wireOut, new Deflater(Deflater.BEST_SPEED, true), true);
+                compressed = true;
+            }
+        }
+
+        private void list(String tag, String command, List<Object> args) throws IOException {
+            if (args.size() != 2) throw new IllegalArgumentException("expected reference and pattern");
+            final String pattern = string(args.get(1));
+            if (pattern.length() == 0) {
+                writeLine("* " + command + " (\\Noselect) \"/\" \"\"");
+            } else {
+                final Pattern regex = Pattern.compile(pattern.replace("*", ".*").replace("%", "[^/]*"));
+                synchronized (mailboxes) {
+                    for (String name : mailboxes.keySet()) {
+                        if (regex.matcher(name).matches()) writeLine("* " + command + " () \"/\" " + quote(name));
+                    }
+                }
+            }
+            ok(tag, command + " completed");
+        }
+
+        private void status(String tag, List<Object> args) throws IOException {
+            if (args.size() != 2) throw new IllegalArgumentException("expected mailbox and items");
+            final StringBuilder sb = new StringBuilder();
+            synchronized (mailboxes) {
+                final Mailbox mailbox = mailboxes.get(string(args.get(0)));
+                if (mailbox == null) {
+                    writeLine(tag + " NO [NONEXISTENT] no such mailbox");
+                    return;
+                }
+                for (Object item : asList(args.get(1))) {
+                    final String name = string(item).toUpperCase(Locale.ENGLISH);
+                    final long value;
+                    if ("MESSAGES".equals(name)) value = mailbox.messages.size();
+                    else if ("UIDNEXT".equals(name)) value = mailbox.getUidNext();
+                    else if ("UIDVALIDITY".equals(name)) value = mailbox.uidValidity;
+                    else if ("UNSEEN".equals(name)) value = mailbox.getUnseen();
+                    else if ("RECENT".equals(name)) value = 0;
+                    else throw new IllegalArgumentException("unknown status item " + name);
+                    if (sb.length() > 0) sb.append(' ');
+                    sb.append(name).append(' ').append(value);
+                }
+                writeLine("* STATUS " + quote(mailbox.name) + " (" + sb + ")");
+            }
+            ok(tag, "STATUS completed");
+        }
+
+        private void create(String tag, List<Object> args) throws IOException {
+            if (args.size() != 1) throw new IllegalArgumentException("expected mailbox");
+            final String name = string(args.get(0));
+            synchronized (mailboxes) {
+                if (mailboxes.containsKey(name)) {
+                    writeLine(tag + " NO [ALREADYEXISTS] mailbox exists");
+                    return;
+                }
+                FakeImapServer.this.create(name);
+            }
+            ok(tag, "CREATE completed");
+        }
+
+        private void select(String tag, String command, List<Object> args) throws IOException {
+            if (args.size() != 1) throw new IllegalArgumentException("expected mailbox");
+            synchronized (mailboxes) {
+                final Mailbox mailbox = mailboxes.get(string(args.get(0)));
+                if (mailbox == null) {
+                    selected = null;
+                    writeLine(tag + " NO [NONEXISTENT] no such mailbox");
+                    return;
+                }
+                selected = mailbox;
+                readOnly = "EXAMINE".equals(command);
+                writeLine("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+                writeLine("* " + mailbox.messages.size() + " EXISTS");
+                writeLine("* 0 RECENT");
+                writeLine("* OK [UIDVALIDITY " + mailbox.uidValidity + "] UIDs valid");
+                writeLine("* OK [UIDNEXT " + mailbox.getUidNext() + "] predicted next UID");
+            }
+            ok(tag, (readOnly ? "[READ-ONLY] " : "[READ-WRITE] ") + command + " completed");
+        }
+
+        /**
+         * APPEND mailbox [(flags)] ["date"] literal, repeated with MULTIAPPEND (RFC 3502).
+         */
+        private void append(String tag, List<Object> args) throws IOException {
+            if (args.size() < 2) throw new IllegalArgumentException("expected mailbox and message");
+            final List<byte[]> messages = new ArrayList<byte[]>();
+            final List<Set<String>> flags = new ArrayList<Set<String>>();
+            Set<String> currentFlags = new HashSet<String>();
+            for (Object arg : args.subList(1, args.size())) {
+                if (arg instanceof byte[]) {
+                    messages.add((byte[]) arg);
+                    flags.add(currentFlags);
+                    currentFlags = new HashSet<String>();
+                } else if (arg instanceof List) {
+                    for (Object flag : (List<?>) arg) currentFlags.add(string(flag));
+                }
+                // the internal date is ignored, appended messages get the current time
+            }
+            if (messages.isEmpty()) throw new IllegalArgumentException("missing message literal");
+            if (messages.size() > 1 && !capabilities.contains(MULTIAPPEND)) {
+                throw new IllegalArgumentException("MULTIAPPEND not supported");
+            }
+
+            final long first, last, uidValidity;
+            synchronized (mailboxes) {
+                final Mailbox mailbox = mailboxes.get(string(args.get(0)));
+                if (mailbox == null) {
+                    writeLine(tag + " NO [TRYCREATE] no such mailbox");
+                    return;
+                }
+                first = mailbox.getUidNext();
+                for (int i = 0; i < messages.size(); i++) {
+                    mailbox.add(messages.get(i), flags.get(i), new Date(), discardBodies);
+                }
+                last = mailbox.getUidNext() - 1;
+                uidValidity = mailbox.uidValidity;
+                if (mailbox == selected) writeLine("* " + mailbox.messages.size() + " EXISTS");
+            }
+            if (capabilities.contains(UIDPLUS)) {
+                ok(tag, "[APPENDUID " + uidValidity + " " + (first == last ? first : first + ":" + last) + "] APPEND completed");
+            } else {
+                ok(tag, "APPEND completed");
+            }
+        }
+
+        private void search(String tag, boolean uid, List<Object> args) throws IOException {
+            List<Object> keys = args;
+            if (keys.size() >= 2 && "CHARSET".equalsIgnoreCase(string(keys.get(0)))) keys = keys.subList(2, keys.size());
+            final SearchKey key = SearchKey.parse(keys);
+            final StringBuilder sb = new StringBuilder("* SEARCH");
+            synchronized (mailboxes) {
+                final List<StoredMessage> messages = selected.messages;
+                final long maxUid = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).uid;
+                final Set<StoredMessage> candidates = key.candidates(selected);
+                for (int i = 0; i < messages.size(); i++) {
+                    final StoredMessage message = messages.get(i);
+                    if (candidates != null && !candidates.contains(message)) continue;
+                    if (key.matches(new Context(message, i + 1, messages.size(), maxUid))) {
+                        sb.append(' ').append(uid ? message.uid : i + 1);
+                    }
+                }
+            }
+            writeLine(sb.toString());
+            ok(tag, "SEARCH completed");
+        }
+
+        private void fetch(String tag, boolean uid, List<Object> args) throws IOException {
+            if (args.size() != 2) throw new IllegalArgumentException("expected sequence set and items");
+            final SequenceSet set = new SequenceSet(string(args.get(0)));
+            final List<String> items = fetchItems(args.get(1));
+            if (uid && !items.contains("UID")) items.add(0, "UID");
+            // k9 looks up the message by UID when it reads the body literal, UID goes first
+            if (items.remove("UID")) items.add(0, "UID");
+
+            for (Object[] entry : select(set, uid)) {
+                final StoredMessage message = (StoredMessage) entry[0];
+                final int sequence = (Integer) entry[1];
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                write(response, "* " + sequence + " FETCH (");
+                boolean seen = false;
+                for (int i = 0; i < items.size(); i++) {
+                    if (i > 0) write(response, " ");
+                    seen |= fetchItem(response, message, items.get(i));
+                }
+                write(response, ")");
+                if (seen && !readOnly) {
+                    synchronized (mailboxes) {
+                        message.flags.add("\\Seen");
+                    }
+                }
+                out.write(response.toByteArray());
+                out.write(CRLF);
+            }
+            ok(tag, "FETCH completed");
+        }
+
+        /**
+         * @return true if the item marks the message as seen
+         */
+        private boolean fetchItem(ByteArrayOutputStream response, StoredMessage message, String item) throws IOException {
+            final String upper = item.toUpperCase(Locale.ENGLISH);
+            if ("UID".equals(upper)) {
+                write(response, "UID " + message.uid);
+            } else if ("FLAGS".equals(upper)) {
+                write(response, "FLAGS " + flagList(message.flags));
+            } else if ("INTERNALDATE".equals(upper)) {
+                write(response, "INTERNALDATE \"" + internalDateFormat.format(message.internalDate) + "\"");
+            } else if ("RFC822.SIZE".equals(upper)) {
+                write(response, "RFC822.SIZE " + message.size);
+            } else if ("RFC822".equals(upper)) {
+                literal(response, "RFC822", section(message, ""));
+                return true;
+            } else if ("RFC822.HEADER".equals(upper)) {
+                literal(response, "RFC822.HEADER", section(message, "HEADER"));
+            } else if ("RFC822.TEXT".equals(upper)) {
+                literal(response, "RFC822.TEXT", section(message, "TEXT"));
+                return true;
+            } else if (upper.startsWith("BODY[") || upper.startsWith("BODY.PEEK[")) {
+                final int open = item.indexOf('['), close = item.lastIndexOf(']');
+                final String section = item.substring(open + 1, close);
+                byte[] data = section(message, section);
+                String name = "BODY[" + section + "]";
+                final String partial = item.substring(close + 1);
+                if (partial.startsWith("<") && partial.endsWith(">")) {
+                    final String[] range = partial.substring(1, partial.length() - 1).split("\\.");
+                    final int start = Math.min(Integer.parseInt(range[0]), data.length);
+                    final int end = range.length > 1 ? Math.min(data.length, start + Integer.parseInt(range[1])) : data.length;
+                    data = Arrays.copyOfRange(data, start, end);
+                    name += "<" + start + ">";
+                }
+                literal(response, name, data);
+                return !upper.startsWith("BODY.PEEK");
+            } else {
+                throw new IllegalArgumentException("unsupported fetch item " + item);
+            }
+            return false;
+        }
+
+        private byte[] section(StoredMessage message, String section) {
+            final String upper = section.toUpperCase(Locale.ENGLISH);
+            if (upper.equals("HEADER")) {
+                return Arrays.copyOf(message.data, message.headerLength);
+            } else if (upper.startsWith("HEADER.FIELDS")) {
+                final boolean not = upper.startsWith("HEADER.FIELDS.NOT");
+                final Set<String> fields = new HashSet<String>();
+                final String names = section.substring(section.indexOf('(') + 1, section.lastIndexOf(')'));
+                for (String field : names.trim().split("\\s+")) fields.add(field.toLowerCase(Locale.ENGLISH));
+                return message.getHeaderFields(fields, not);
+            }
+            if (!message.hasBody()) throw new IllegalArgumentException("body of uid " + message.uid + " was discarded");
+            if (upper.length() == 0) {
+                return message.data;
+            } else if (upper.equals("TEXT")) {
+                return Arrays.copyOfRange(message.data, message.headerLength, message.data.length);
+            } else {
+                throw new IllegalArgumentException("unsupported section " + section);
+            }
+        }
+
+        private void store(String tag, boolean uid, List<Object> args) throws IOException {
+            if (args.size() != 3) throw new IllegalArgumentException("expected sequence set, item and flags");
+            if (readOnly) {
+                writeLine(tag + " NO mailbox is read-only");
+                return;
+            }
+            final SequenceSet set = new SequenceSet(string(args.get(0)));
+            final String item = string(args.get(1)).toUpperCase(Locale.ENGLISH);
+            final boolean silent = item.endsWith(".SILENT");
+            final Set<String> flags = new HashSet<String>();
+            final Object flagArg = args.get(2);
+            if (flagArg instanceof List) {
+                for (Object flag : (List<?>) flagArg) flags.add(string(flag));
+            } else {
+                flags.add(string(flagArg));
+            }
+
+            for (Object[] entry : select(set, uid)) {
+                final StoredMessage message = (StoredMessage) entry[0];
+                final String current;
+                synchronized (mailboxes) {
+                    if (item.startsWith("+FLAGS")) {
+                        message.flags.addAll(flags);
+                    } else if (item.startsWith("-FLAGS")) {
+                        message.flags.removeAll(flags);
+                    } else if (item.startsWith("FLAGS")) {
+                        message.flags.clear();
+                        message.flags.addAll(flags);
+                    } else {
+                        throw new IllegalArgumentException("unsupported store item " + item);
+                    }
+                    current = flagList(message.flags);
+                }
+                if (!silent) {
+                    writeLine("* " + entry[1] + " FETCH (" + (uid ? "UID " + message.uid + " " : "") + "FLAGS " + current + ")");
+                }
+            }
+            ok(tag, "STORE completed");
+        }
+
+        private void expunge(String tag, boolean uid, List<Object> args) throws IOException {
+            if (uid && !capabilities.contains(UIDPLUS)) throw new IllegalArgumentException("UID EXPUNGE needs UIDPLUS");
+            if (readOnly) {
+                writeLine(tag + " NO mailbox is read-only");
+                return;
+            }
+            expungeDeleted(uid ? new SequenceSet(string(args.get(0))) : null, true);
+            ok(tag, "EXPUNGE completed");
+        }
+
+        /**
+         * @param uids only expunge these, all if null
+         */
+        private void expungeDeleted(SequenceSet uids, boolean report) throws IOException {
+            final List<Integer> expunged = new ArrayList<Integer>();
+            synchronized (mailboxes) {
+                final List<StoredMessage> messages = selected.messages;
+                final long maxUid = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).uid;
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    final StoredMessage message = messages.get(i);
+                    if (message.flags.contains("\\Deleted") && (uids == null || uids.contains(message.uid, maxUid))) {
+                        selected.remove(message);
+                        expunged.add(i + 1);
+                    }
+                }
+            }
+            // sequence numbers shift after each expunge, descending order keeps them valid
+            if (report) {
+                for (int sequence : expunged) writeLine("* " + sequence + " EXPUNGE");
+            }
+        }
+
+        /**
+         * @return pairs of message and sequence number
+         */
+        private List<Object[]> select(SequenceSet set, boolean uid) {
+            final List<Object[]> selection = new ArrayList<Object[]>();
+            synchronized (mailboxes) {
+                final List<StoredMessage> messages = selected.messages;
+                final long max = messages.isEmpty() ? 0 : uid ? messages.get(messages.size() - 1).uid : messages.size();
+                for (int i = 0; i < messages.size(); i++) {
+                    final StoredMessage message = messages.get(i);
+                    if (set.contains(uid ? message.uid : i + 1, max)) selection.add(new Object[] { message, i + 1 });
+                }
+            }
+            return selection;
+        }
+
+        private List<String> fetchItems(Object arg) {
+            final List<String> items = new ArrayList<String>();
+            if (arg instanceof List) {
+                for (Object item : (List<?>) arg) items.add(string(item));
+            } else {
+                final String macro = string(arg).toUpperCase(Locale.ENGLISH);
+                if ("ALL".equals(macro) || "FAST".equals(macro) || "FULL".equals(macro)) {
+                    items.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                } else {
+                    items.add(string(arg));
+                }
+            }
+            return items;
+        }
+
+        private void ok(String tag, String text) throws IOException {
+            writeLine(tag + " OK " + text);
+        }
+
+        private void writeLine(String line) throws IOException {
+            out.write(line.getBytes("UTF-8"));
+            out.write(CRLF);
+        }
+
+        private void literal(ByteArrayOutputStream response, String name, byte[] data) throws IOException {
+            write(response, name + " {" + data.length + "}\r\n");
+            response.write(data);
+        }
+
+        /**
+         * Reads a command, with its literals.
+         *
+         * @return the tokens of the command, strings, lists and byte[] for literals; null at
+         *         the end of the stream
+         */
+        private List<Object> readCommand() throws IOException {
+            final List<Object> tokens = new ArrayList<Object>();
+            while (true) {
+                final String line = readLine();
+                if (line == null) return tokens.isEmpty() ? null : tokens;
+
+                final Matcher literal = LITERAL.matcher(line);
+                if (!literal.find()) {
+                    tokenize(line, tokens);
+                    return tokens;
+                }
+                tokenize(line.substring(0, literal.start()), tokens);
+                final int length = Integer.parseInt(literal.group(1));
+                if (literal.group(2).length() == 0 || !capabilities.contains(LITERAL_PLUS)) {
+                    // a synchronizing literal costs an extra round trip
+                    sleep(latency);
+                    writeLine("+ Ready for literal data");
+                    out.flush();
+                }
+                final byte[] data = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    final int n = in.read(data, read, length - read);
+                    if (n < 0) throw new EOFException();
+                    read += n;
+                }
+                tokens.add(data);
+            }
+        }
+
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') break;
+                if (c != '\r') line.write(c);
+            }
+            if (c == -1 && line.size() == 0) return null;
+            return line.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Splits a command line into atoms, quoted strings and parenthesized lists. Brackets are
+     * kept within atoms, e.g. <code>BODY.PEEK[HEADER.FIELDS (MESSAGE-ID)]</code>.
+     */
+    static void tokenize(String line, List<Object> tokens) {
+        final List<List<Object>> stack = new ArrayList<List<Object>>();
+        List<Object> current = tokens;
+        int i = 0;
+        while (i < line.length()) {
+            final char c = line.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '(') {
+                final List<Object> list = new ArrayList<Object>();
+                current.add(list);
+                stack.add(current);
+                current = list;
+                i++;
+            } else if (c == ')') {
+                if (stack.isEmpty()) throw new IllegalArgumentException("unbalanced parentheses");
+                current = stack.remove(stack.size() - 1);
+                i++;
+            } else if (c == '"') {
+                final StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < line.length() && line.charAt(i) != '"') {
+                    if (line.charAt(i) == '\\' && i + 1 < line.length()) i++;
+                    sb.append(line.charAt(i++));
+                }
+                i++;
+                current.add(sb.toString());
+            } else {
+                final int start = i;
+                int depth = 0;
+                while (i < line.length()) {
+                    final char a = line.charAt(i);
+                    if (a == '[') depth++;
+                    else if (a == ']') depth--;
+                    else if (depth == 0 && (a == ' ' || a == '(' || a == ')')) break;
+                    i++;
+                }
+                current.add(line.substring(start, i));
+            }
+        }
+    }
+
+    /** a message and its position, for evaluating search keys */
+    private static class Context {
+        final StoredMessage message;
+        final int sequence, count;
+        final long maxUid;
+        private Map<String, List<String>> headers;
+
+        Context(StoredMessage message, int sequence, int count, long maxUid) {
+            this.message = message;
+            this.sequence = sequence;
+            this.count = count;
+            this.maxUid = maxUid;
+        }
+
+        Map<String, List<String>> getHeaders() {
+            if (headers == null) headers = message.parseHeaders();
+            return headers;
+        }
+    }
+
+    private abstract static class SearchKey {
+        abstract boolean matches(Context context);
+
+        /**
+         * @return the only messages which can match, null if all need to be checked
+         */
+        Set<StoredMessage> candidates(Mailbox mailbox) {
+            return null;
+        }
+
+        static SearchKey parse(List<Object> tokens) {
+            final int[] pos = { 0 };
+            final List<SearchKey> keys = new ArrayList<SearchKey>();
+            while (pos[0] < tokens.size()) keys.add(parseKey(tokens, pos));
+            return keys.size() == 1 ? keys.get(0) : new And(keys);
+        }
+
+        private static SearchKey parseKey(List<Object> tokens, int[] pos) {
+            final Object token = tokens.get(pos[0]++);
+            if (token instanceof List) {
+                @SuppressWarnings("unchecked")
+                final SearchKey key = parse((List<Object>) token);
+                return key;
+            }
+            final String name = string(token).toUpperCase(Locale.ENGLISH);
+            if ("ALL".equals(name)) return new Flag(null, true);
+            if ("SEEN".equals(name) || "UNSEEN".equals(name)) return new Flag("\\Seen", "SEEN".equals(name));
+            if ("DELETED".equals(name) || "UNDELETED".equals(name)) return new Flag("\\Deleted", "DELETED".equals(name));
+            if ("FLAGGED".equals(name) || "UNFLAGGED".equals(name)) return new Flag("\\Flagged", "FLAGGED".equals(name));
+            if ("ANSWERED".equals(name) || "UNANSWERED".equals(name)) return new Flag("\\Answered", "ANSWERED".equals(name));
+            if ("DRAFT".equals(name) || "UNDRAFT".equals(name)) return new Flag("\\Draft", "DRAFT".equals(name));
+            if ("KEYWORD".equals(name)) return new Flag(string(tokens.get(pos[0]++)), true);
+            if ("UNKEYWORD".equals(name)) return new Flag(string(tokens.get(pos[0]++)), false);
+            if ("NOT".equals(name)) return new Not(parseKey(tokens, pos));
+            if ("OR".equals(name)) return new Or(parseKey(tokens, pos), parseKey(tokens, pos));
+            if ("UID".equals(name)) return new Sequence(new SequenceSet(string(tokens.get(pos[0]++))), true);
+            if ("HEADER".equals(name)) {
+                return new Header(string(tokens.get(pos[0]++)), string(tokens.get(pos[0]++)));
+            }
+            if ("FROM".equals(name) || "TO".equals(name) || "CC".equals(name) || "BCC".equals(name) ||
+                    "SUBJECT".equals(name)) {
+                return new Header(name, string(tokens.get(pos[0]++)));
+            }
+            if ("SENTSINCE".equals(name) || "SENTBEFORE".equals(name) || "SENTON".equals(name) ||
+                    "SINCE".equals(name) || "BEFORE".equals(name) || "ON".equals(name)) {
+                return new DateKey(name, parseSearchDate(string(tokens.get(pos[0]++))));
+            }
+            if ("LARGER".equals(name)) return new Size(Integer.parseInt(string(tokens.get(pos[0]++))), true);
+            if ("SMALLER".equals(name)) return new Size(Integer.parseInt(string(tokens.get(pos[0]++))), false);
+            if (name.matches("[0-9*:,]+")) return new Sequence(new SequenceSet(name), false);
+            throw new IllegalArgumentException("unsupported search key " + name);
+        }
+    }
+
+    private static class And extends SearchKey {
+        final List<SearchKey> keys;
+
+        And(List<SearchKey> keys) {
+            this.keys = keys;
+        }
+
+        boolean matches(Context context) {
+            for (SearchKey key : keys) {
+                if (!key.matches(context)) return false;
+            }
+            return true;
+        }
+
+        Set<StoredMessage> candidates(Mailbox mailbox) {
+            for (SearchKey key : keys) {
+                final Set<StoredMessage> candidates = key.candidates(mailbox);
+                if (candidates != null) return candidates;
+            }
+            return null;
+        }
+    }
+
+    private static class Or extends SearchKey {
+        final SearchKey left, right;
+
+        Or(SearchKey left, SearchKey right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        boolean matches(Context context) {
+            return left.matches(context) || right.matches(context);
+        }
+
+        Set<StoredMessage> candidates(Mailbox mailbox) {
+            final Set<StoredMessage> l = left.candidates(mailbox);
+            if (l == null) return null;
+            final Set<StoredMessage> r = right.candidates(mailbox);
+            if (r == null) return null;
+            final Set<StoredMessage> union = new HashSet<StoredMessage>(l);
+            union.addAll(r);
+            return union;
+        }
+    }
+
+    private static class Not extends SearchKey {
+        final SearchKey key;
+
+        Not(SearchKey key) {
+            this.key = key;
+        }
+
+        boolean matches(Context context) {
+            return !key.matches(context);
+        }
+    }
+
+    private static class Flag extends SearchKey {
+        /** null matches all messages */
+        final String flag;
+        final boolean set;
+
+        Flag(String flag, boolean set) {
+            this.flag = flag;
+            this.set = set;
+        }
+
+        boolean matches(Context context) {
+            return flag == null || containsIgnoreCase(context.message.flags, flag) == set;
+        }
+
+        private static boolean containsIgnoreCase(Set<String> flags, String flag) {
+            for (String f : flags) {
+                if (f.equalsIgnoreCase(flag)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Sequence extends SearchKey {
+        final SequenceSet set;
+        final boolean uid;
+
+        Sequence(SequenceSet set, boolean uid) {
+            this.set = set;
+            this.uid = uid;
+        }
+
+        boolean matches(Context context) {
+            return uid ? set.contains(context.message.uid, context.maxUid) : set.contains(context.sequence, context.count);
+        }
+    }
+
+    private static class Header extends SearchKey {
+        final String name, value;
+
+        Header(String name, String value) {
+            this.name = name.toLowerCase(Locale.ENGLISH);
+            this.value = value.toLowerCase(Locale.ENGLISH);
+        }
+
+        boolean matches(Context context) {
+            final List<String> values = context.getHeaders().get(name);
+            if (values == null) return false;
+            for (String v : values) {
+                if (v.toLowerCase(Locale.ENGLISH).contains(value)) return true;
+            }
+            return false;
+        }
+
+        Set<StoredMessage> candidates(Mailbox mailbox) {
+            if (!"message-id".equals(name) || value.length() == 0) return null;
+            final List<StoredMessage> found = mailbox.byMessageId.get(value);
+            return found == null ? Collections.<StoredMessage>emptySet() : new HashSet<StoredMessage>(found);
+        }
+    }
+
+    private static class DateKey extends SearchKey {
+        final String name;
+        final int day;
+
+        DateKey(String name, int day) {
+            this.name = name;
+            this.day = day;
+        }
+
+        boolean matches(Context context) {
+            final int messageDay;
+            if (name.startsWith("SENT")) {
+                // the day as written in the Date header, i.e. in the sender's time zone
+                final List<String> dates = context.getHeaders().get("date");
+                if (dates == null) return false;
+                final Matcher m = SENT_DATE.matcher(dates.get(0));
+                if (!m.find()) return false;
+                messageDay = toDay(Integer.parseInt(m.group(3)), month(m.group(2)), Integer.parseInt(m.group(1)));
+            } else {
+                final java.util.Calendar utc = java.util.Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+                utc.setTime(context.message.internalDate);
+                messageDay = toDay(utc.get(java.util.Calendar.YEAR), utc.get(java.util.Calendar.MONTH) + 1,
+                        utc.get(java.util.Calendar.DAY_OF_MONTH));
+            }
+            if (name.endsWith("SINCE")) return messageDay >= day;
+            if (name.endsWith("BEFORE")) return messageDay < day;
+            return messageDay == day;
+        }
+    }
+
+    private static class Size extends SearchKey {
+        final int size;
+        final boolean larger;
+
+        Size(int size, boolean larger) {
+            this.size = size;
+            this.larger = larger;
+        }
+
+        boolean matches(Context context) {
+            return larger ? context.message.size > size : context.message.size < size;
+        }
+    }
+
+    /** an IMAP sequence set like 1:3,7,9:* */
+    static class SequenceSet {
+        private final long[][] ranges;
+
+        SequenceSet(String set) {
+            final String[] parts = set.split(",");
+            ranges = new long[parts.length][];
+            for (int i = 0; i < parts.length; i++) {
+                final String[] bounds = parts[i].split(":");
+                final long from = parse(bounds[0]);
+                final long to = bounds.length > 1 ? parse(bounds[1]) : from;
+                ranges[i] = new long[] { from, to };
+            }
+        }
+
+        /**
+         * @param max the value of *
+         */
+        boolean contains(long n, long max) {
+            for (long[] range : ranges) {
+                final long from = range[0] < 0 ? max : range[0], to = range[1] < 0 ? max : range[1];
+                if (n >= Math.min(from, to) && n <= Math.max(from, to)) return true;
+            }
+            return false;
+        }
+
+        private static long parse(String s) {
+            if ("*".equals(s)) return -1;
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid sequence set " + s);
+            }
+        }
+    }
+
+    /**
+     * Limits the throughput of a direction of the link, shared by all connections.
+     */
+    private static class Throttle {
+        private final long bytesPerSecond;
+        private long next = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(int bytes) {
+            if (bytesPerSecond <= 0 || bytes <= 0) return;
+            final long wait;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                next = Math.max(next, now) + bytes * 1000000000L / bytesPerSecond;
+                wait = next - now;
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static class WireInputStream extends FilterInputStream {
+        private final Throttle throttle;
+        private final AtomicLong counter;
+
+        WireInputStream(InputStream in, Throttle throttle, AtomicLong counter) {
+            super(in);
+            this.throttle = throttle;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c >= 0) transferred(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) transferred(n);
+            return n;
+        }
+
+        private void transferred(int n) {
+            counter.addAndGet(n);
+            throttle.acquire(n);
+        }
+    }
+
+    private static class WireOutputStream extends FilterOutputStream {
+        private final Throttle throttle;
+        private final AtomicLong counter;
+
+        WireOutputStream(OutputStream out, Throttle throttle, AtomicLong counter) {
+            super(out);
+            this.throttle = throttle;
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle.acquire(1);
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throttle.acquire(len);
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String string(Object token) {
+        if (token instanceof String) return (String) token;
+        if (token instanceof byte[]) return latin1((byte[]) token, 0, ((byte[]) token).length);
+        throw new IllegalArgumentException("expected a string, got a list");
+    }
+
+    private static List<?> asList(Object token) {
+        if (token instanceof List) return (List<?>) token;
+        throw new IllegalArgumentException("expected a list");
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String flagList(Set<String> flags) {
+        final StringBuilder sb = new StringBuilder("(");
+        for (String flag : flags) {
+            if (sb.length() > 1) sb.append(' ');
+            sb.append(flag);
+        }
+        return sb.append(')').toString();
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) throws IOException {
+        out.write(s.getBytes("UTF-8"));
+    }
+
+    private static String latin1(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param date a search date like 1-Feb-2014
+     */
+    private static int parseSearchDate(String date) {
+        final String[] parts = date.split("-");
+        if (parts.length != 3) throw new IllegalArgumentException("invalid date " + date);
+        return toDay(Integer.parseInt(parts[2]), month(parts[1]), Integer.parseInt(parts[0]));
+    }
+
+    private static int month(String name) {
+        final int month = Arrays.asList(MONTHS).indexOf(name.toLowerCase(Locale.ENGLISH));
+        if (month < 0) throw new IllegalArgumentException("invalid month " + name);
+        return month + 1;
+    }
+
+    private static int toDay(int year, int month, int day) {
+        return year * 10000 + month * 100 + day;
+    }
+}
@@ -0,0 +1,346 @@
+package com.zegoggles.smssync.harness;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory content provider with one table per uri path, stands in for the sms, mms, call
+ * log and contacts providers. Queries support the selections and sort orders the app uses, see
+ * {@link Selection}, equality conditions on indexed columns are looked up without scanning.
+ * <p/>
+ * All values are kept as strings, like they come out of the cursors the app reads.
+ */
+public class FakeProvider extends ContentProvider {
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger inserts = new AtomicInteger();
+    private final AtomicInteger deletes = new AtomicInteger();
+
+    /**
+     * @param path the path of the table's uri, e.g. "" for content://sms or "calls" for
+     *             content://call_log/calls
+     */
+    public Table addTable(String path, String... columns) {
+        return addScopedTable(path, null, columns);
+    }
+
+    /**
+     * Adds a table whose path contains a wildcard segment (*), for uris like
+     * content://mms/5/part. Queries then only see the rows with the segment's value in
+     * <code>scopeColumn</code>.
+     */
+    public Table addScopedTable(String path, String scopeColumn, String... columns) {
+        final Table table = new Table(path, scopeColumn, columns);
+        if (scopeColumn != null) table.index(scopeColumn);
+        tables.put(path, table);
+        return table;
+    }
+
+    public Table getTable(String path) {
+        return tables.get(path);
+    }
+
+    public int getQueryCount() {
+        return queries.get();
+    }
+
+    public int getInsertCount() {
+        return inserts.get();
+    }
+
+    public int getDeleteCount() {
+        return deletes.get();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                     String sortOrder) {
+        queries.incrementAndGet();
+        final String[] scope = new String[1];
+        final Table table = resolve(uri, scope);
+        if (table == null) return null;
+
+        final Selection where = Selection.parse(selection, selectionArgs);
+        final List<String[]> rows = new ArrayList<String[]>();
+        final Table.RowView view = table.new RowView();
+        for (String[] row : table.candidates(where, scope[0])) {
+            view.row = row;
+            if (where.matches(view)) rows.add(row);
+        }
+        final Selection.Order order = Selection.parseOrder(sortOrder);
+        if (!order.columns.isEmpty()) Collections.sort(rows, table.comparator(order));
+
+        final String[] columns = projection != null ? projection : table.columns;
+        final int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = table.indexOf(columns[i]);
+        }
+        final int count = order.limit >= 0 ? Math.min(order.limit, rows.size()) : rows.size();
+        final MatrixCursor cursor = new MatrixCursor(columns, count);
+        for (int r = 0; r < count; r++) {
+            final Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = indexes[i] >= 0 ? rows.get(r)[indexes[i]] : null;
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        inserts.incrementAndGet();
+        final Table table = tables.get(getPath(uri));
+        if (table == null) throw new IllegalArgumentException("unknown uri " + uri);
+
+        final String[] row = new String[table.columns.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = values.getAsString(table.columns[i]);
+        }
+        return ContentUris.withAppendedId(uri, table.insert(row));
+    }
+
+    /**
+     * Deletes from tables, the deletes the app uses to update conversation threads are only
+     * counted.
+     */
+    @Override
+    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+        deletes.incrementAndGet();
+        final Table table = tables.get(getPath(uri));
+        return table == null ? 0 : table.delete(Selection.parse(selection, selectionArgs));
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("update " + uri);
+    }
+
+    private Table resolve(Uri uri, String[] scope) {
+        final String path = getPath(uri);
+        final Table table = tables.get(path);
+        if (table != null) return table;
+
+        final String[] segments = path.split("/");
+        for (Table candidate : tables.values()) {
+            if (candidate.scopeColumn == null) continue;
+            final String[] pattern = candidate.path.split("/");
+            if (pattern.length != segments.length) continue;
+
+            String value = null;
+            boolean matches = true;
+            for (int i = 0; i < pattern.length && matches; i++) {
+                if ("*".equals(pattern[i])) {
+                    value = segments[i];
+                } else {
+                    matches = pattern[i].equals(segments[i]);
+                }
+            }
+            if (matches) {
+                scope[0] = value;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static String getPath(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final StringBuilder path = new StringBuilder();
+        for (String segment : segments) {
+            if (path.length() > 0) path.append('/');
+            path.append(segment);
+        }
+        return path.toString();
+    }
+
+    public static class Table {
+        final String path;
+        final String scopeColumn;
+        final String[] columns;
+        private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        private final List<String[]> rows = new ArrayList<String[]>();
+        private final Map<String, Map<String, List<String[]>>> indexes =
+                new HashMap<String, Map<String, List<String[]>>>();
+        private final int idColumn;
+        private long nextId = 1;
+
+        Table(String path, String scopeColumn, String... columns) {
+            this.path = path;
+            this.scopeColumn = scopeColumn;
+            this.columns = columns;
+            for (int i = 0; i < columns.length; i++) {
+                columnIndexes.put(columns[i], i);
+            }
+            idColumn = indexOf("_id");
+        }
+
+        /**
+         * Looks up rows by this column when a selection requires a value for it, like an
+         * index in SQLite.
+         */
+        public synchronized Table index(String column) {
+            if (!indexes.containsKey(column)) {
+                final Map<String, List<String[]>> index = new HashMap<String, List<String[]>>();
+                indexes.put(column, index);
+                for (String[] row : rows) addToIndex(index, row[indexOf(column)], row);
+            }
+            return this;
+        }
+
+        /**
+         * Adds a row, an _id gets assigned if not given.
+         *
+         * @param values values of all columns, in the order given when the table was added
+         * @return the row's _id, or -1 if the table has none
+         */
+        public synchronized long add(Object... values) {
+            if (values.length != columns.length) {
+                throw new IllegalArgumentException("expected " + columns.length + " values in " + path);
+            }
+            final String[] row = new String[columns.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = values[i] == null ? null : String.valueOf(values[i]);
+            }
+            return insert(row);
+        }
+
+        public synchronized int size() {
+            return rows.size();
+        }
+
+        public synchronized List<Map<String, String>> getRows() {
+            final List<Map<String, String>> copy = new ArrayList<Map<String, String>>(rows.size());
+            for (String[] row : rows) {
+                final Map<String, String> map = new HashMap<String, String>(columns.length);
+                for (int i = 0; i < columns.length; i++) map.put(columns[i], row[i]);
+                copy.add(map);
+            }
+            return copy;
+        }
+
+        synchronized long insert(String[] row) {
+            long id = -1;
+            if (idColumn >= 0) {
+                if (row[idColumn] == null) {
+                    id = nextId++;
+                    row[idColumn] = String.valueOf(id);
+                } else {
+                    id = Long.parseLong(row[idColumn]);
+                    nextId = Math.max(nextId, id + 1);
+                }
+            }
+            rows.add(row);
+            for (Map.Entry<String, Map<String, List<String[]>>> entry : indexes.entrySet()) {
+                addToIndex(entry.getValue(), row[indexOf(entry.getKey())], row);
+            }
+            return id;
+        }
+
+        synchronized int delete(Selection where) {
+            final RowView view = new RowView();
+            final List<String[]> kept = new ArrayList<String[]>(rows.size());
+            for (String[] row : rows) {
+                view.row = row;
+                if (!where.matches(view)) kept.add(row);
+            }
+            final int deleted = rows.size() - kept.size();
+            if (deleted > 0) {
+                rows.clear();
+                rows.addAll(kept);
+                for (String column : new ArrayList<String>(indexes.keySet())) {
+                    indexes.remove(column);
+                    index(column);
+                }
+            }
+            return deleted;
+        }
+
+        int indexOf(String column) {
+            final Integer index = columnIndexes.get(column);
+            return index == null ? -1 : index;
+        }
+
+        List<String[]> candidates(Selection where, String scope) {
+            if (scope != null) return lookup(scopeColumn, scope);
+            for (String column : indexes.keySet()) {
+                final String value = where.getRequiredValue(column);
+                if (value != null) return lookup(column, value);
+            }
+            return rows;
+        }
+
+        private List<String[]> lookup(String column, String value) {
+            final List<String[]> found = indexes.get(column).get(value);
+            return found == null ? Collections.<String[]>emptyList() : found;
+        }
+
+        private static void addToIndex(Map<String, List<String[]>> index, String value, String[] row) {
+            List<String[]> list = index.get(value);
+            if (list == null) {
+                list = new ArrayList<String[]>(1);
+                index.put(value, list);
+            }
+            list.add(row);
+        }
+
+        Comparator<String[]> comparator(final Selection.Order order) {
+            final int[] sortColumns = new int[order.columns.size()];
+            for (int i = 0; i < sortColumns.length; i++) {
+                sortColumns[i] = indexOf(order.columns.get(i));
+            }
+            return new Comparator<String[]>() {
+                @Override
+                public int compare(String[] lhs, String[] rhs) {
+                    for (int i = 0; i < sortColumns.length; i++) {
+                        if (sortColumns[i] < 0) continue;
+                        final String l = lhs[sortColumns[i]], r = rhs[sortColumns[i]];
+                        // NULLs come first, like in SQLite
+                        int cmp = l == null ? (r == null ? 0 : -1) : r == null ? 1 : Selection.compare(l, r);
+                        if (order.descending.get(i)) cmp = -cmp;
+                        if (cmp != 0) return cmp;
+                    }
+                    return 0;
+                }
+            };
+        }
+
+        class RowView implements Selection.Row {
+            String[] row;
+
+            @Override
+            public String get(String column) {
+                final int index = indexOf(column);
+                return index < 0 ? null : row[index];
+            }
+
+            @Override
+            public boolean hasColumn(String column) {
+                return columnIndexes.containsKey(column);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.zegoggles.smssync.harness;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for content://mms-sms, only allocates thread ids for
+ * <code>Telephony.Threads.getOrCreateThreadId</code>.
+ */
+public class FakeThreadsProvider extends ContentProvider {
+    public static final String AUTHORITY = "mms-sms";
+
+    private final Map<String, Long> threadIds = new HashMap<String, Long>();
+    private final AtomicInteger queries = new AtomicInteger();
+
+    public int getQueryCount() {
+        return queries.get();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                     String sortOrder) {
+        queries.incrementAndGet();
+        if (!"threadID".equals(uri.getLastPathSegment())) return null;
+
+        final String recipients = TextUtils.join(",", uri.getQueryParameters("recipient"));
+        Long id = threadIds.get(recipients);
+        if (id == null) {
+            id = (long) threadIds.size() + 1;
+            threadIds.put(recipients, id);
+        }
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "_id" }, 1);
+        cursor.addRow(new Object[] { id });
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("insert " + uri);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("delete " + uri);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("update " + uri);
+    }
+}
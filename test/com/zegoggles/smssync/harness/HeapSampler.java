@@ -0,0 +1,74 @@
+package com.zegoggles.smssync.harness;
+
+/**
+ * Samples the used heap on a background thread, unlike the app's own heap meter it also
+ * catches the spikes in between progress updates.
+ */
+public class HeapSampler {
+    private static final long INTERVAL = 10;
+
+    private final long baseline;
+    private volatile long peak;
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    private HeapSampler() {
+        baseline = usedAfterGc();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    sample();
+                    try {
+                        Thread.sleep(INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "heap-sampler");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Collects garbage to take the baseline, then starts sampling.
+     */
+    public static HeapSampler start() {
+        final HeapSampler sampler = new HeapSampler();
+        sampler.thread.start();
+        return sampler;
+    }
+
+    /**
+     * @return the peak heap usage above the baseline, in bytes
+     */
+    public long stop() throws InterruptedException {
+        running = false;
+        thread.join();
+        sample();
+        return Math.max(0, peak - baseline);
+    }
+
+    private void sample() {
+        final long used = used();
+        if (used > peak) peak = used;
+    }
+
+    private static long used() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return used();
+    }
+}
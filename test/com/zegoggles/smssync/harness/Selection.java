@@ -0,0 +1,357 @@
+package com.zegoggles.smssync.harness;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates the SQL selections the app passes to content providers, against rows held in
+ * memory. Supports comparisons (=, ==, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=), IN, AND, OR, NOT
+ * and parentheses, with <code>?</code> arguments, numbers, quoted strings and column names as
+ * operands. Values which both look like numbers are compared as numbers, like SQLite does for
+ * columns with numeric affinity.
+ */
+public class Selection {
+    /** column values of one row */
+    public interface Row {
+        /** @return the value of the column, null if it is NULL or not a column */
+        String get(String column);
+
+        boolean hasColumn(String column);
+    }
+
+    private final Expr expr;
+
+    private Selection(Expr expr) {
+        this.expr = expr;
+    }
+
+    /**
+     * @param selection the selection, null or empty to match all rows
+     * @param args      values of the <code>?</code> placeholders
+     */
+    public static Selection parse(String selection, String[] args) {
+        if (selection == null || selection.trim().length() == 0) return new Selection(null);
+        final Parser parser = new Parser(tokenize(selection), args);
+        final Expr expr = parser.parseOr();
+        if (parser.pos < parser.tokens.size()) {
+            throw new IllegalArgumentException("unexpected " + parser.tokens.get(parser.pos) + " in " + selection);
+        }
+        return new Selection(expr);
+    }
+
+    public boolean matches(Row row) {
+        return expr == null || expr.matches(row);
+    }
+
+    /**
+     * @return the value a column has to be equal to for any row to match, so an index on that
+     * column can be used, or null
+     */
+    public String getRequiredValue(String column) {
+        return expr == null ? null : expr.requiredValue(column);
+    }
+
+    private interface Expr {
+        boolean matches(Row row);
+
+        String requiredValue(String column);
+    }
+
+    private static class And implements Expr {
+        final Expr left, right;
+
+        And(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean matches(Row row) {
+            return left.matches(row) && right.matches(row);
+        }
+
+        public String requiredValue(String column) {
+            final String value = left.requiredValue(column);
+            return value != null ? value : right.requiredValue(column);
+        }
+    }
+
+    private static class Or implements Expr {
+        final Expr left, right;
+
+        Or(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean matches(Row row) {
+            return left.matches(row) || right.matches(row);
+        }
+
+        public String requiredValue(String column) {
+            return null;
+        }
+    }
+
+    private static class Not implements Expr {
+        final Expr expr;
+
+        Not(Expr expr) {
+            this.expr = expr;
+        }
+
+        public boolean matches(Row row) {
+            return !expr.matches(row);
+        }
+
+        public String requiredValue(String column) {
+            return null;
+        }
+    }
+
+    private static class Comparison implements Expr {
+        final Operand left, right;
+        final String op;
+
+        Comparison(Operand left, String op, Operand right) {
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+
+        public boolean matches(Row row) {
+            final String l = left.get(row), r = right.get(row);
+            // comparisons with NULL are never true
+            if (l == null || r == null) return false;
+            final int cmp = compare(l, r);
+            if ("=".equals(op) || "==".equals(op)) return cmp == 0;
+            if ("<>".equals(op) || "!=".equals(op)) return cmp != 0;
+            if ("<".equals(op)) return cmp < 0;
+            if ("<=".equals(op)) return cmp <= 0;
+            if (">".equals(op)) return cmp > 0;
+            return cmp >= 0;
+        }
+
+        public String requiredValue(String column) {
+            if (!"=".equals(op) && !"==".equals(op)) return null;
+            if (left.column != null && left.column.equals(column)) return right.column == null ? right.value : null;
+            if (right.column != null && right.column.equals(column)) return left.column == null ? left.value : null;
+            return null;
+        }
+    }
+
+    private static class In implements Expr {
+        final Operand operand;
+        final List<Operand> values;
+
+        In(Operand operand, List<Operand> values) {
+            this.operand = operand;
+            this.values = values;
+        }
+
+        public boolean matches(Row row) {
+            final String value = operand.get(row);
+            if (value == null) return false;
+            for (Operand candidate : values) {
+                final String v = candidate.get(row);
+                if (v != null && compare(value, v) == 0) return true;
+            }
+            return false;
+        }
+
+        public String requiredValue(String column) {
+            return null;
+        }
+    }
+
+    /** a column, or a constant if column is null */
+    private static class Operand {
+        final String column;
+        final String value;
+
+        Operand(String column, String value) {
+            this.column = column;
+            this.value = value;
+        }
+
+        String get(Row row) {
+            if (column == null) return value;
+            // unknown identifiers are treated like constants
+            return row.hasColumn(column) ? row.get(column) : column;
+        }
+    }
+
+    static int compare(String l, String r) {
+        final Double ld = toNumber(l), rd = toNumber(r);
+        if (ld != null && rd != null) return ld.compareTo(rd);
+        return l.compareTo(r);
+    }
+
+    private static Double toNumber(String s) {
+        if (s.length() == 0) return null;
+        final char c = s.charAt(0);
+        if (!Character.isDigit(c) && c != '-' && c != '.') return null;
+        try {
+            return Double.valueOf(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Parser {
+        final List<String> tokens;
+        final String[] args;
+        int pos, arg;
+
+        Parser(List<String> tokens, String[] args) {
+            this.tokens = tokens;
+            this.args = args;
+        }
+
+        Expr parseOr() {
+            Expr expr = parseAnd();
+            while (accept("OR")) expr = new Or(expr, parseAnd());
+            return expr;
+        }
+
+        Expr parseAnd() {
+            Expr expr = parseNot();
+            while (accept("AND")) expr = new And(expr, parseNot());
+            return expr;
+        }
+
+        Expr parseNot() {
+            if (accept("NOT")) return new Not(parseNot());
+            if (accept("(")) {
+                final Expr expr = parseOr();
+                expect(")");
+                return expr;
+            }
+            final Operand left = parseOperand();
+            if (accept("NOT")) {
+                expect("IN");
+                return new Not(new In(left, parseList()));
+            } else if (accept("IN")) {
+                return new In(left, parseList());
+            }
+            final String op = next();
+            if (!op.matches("==?|!=|<>|<=?|>=?")) throw new IllegalArgumentException("unsupported operator " + op);
+            return new Comparison(left, op, parseOperand());
+        }
+
+        List<Operand> parseList() {
+            final List<Operand> values = new ArrayList<Operand>();
+            expect("(");
+            if (accept(")")) return values;
+            do {
+                values.add(parseOperand());
+            } while (accept(","));
+            expect(")");
+            return values;
+        }
+
+        Operand parseOperand() {
+            final String token = next();
+            if ("?".equals(token)) {
+                if (args == null || arg >= args.length) throw new IllegalArgumentException("missing selection argument");
+                return new Operand(null, args[arg++]);
+            } else if (token.startsWith("'")) {
+                return new Operand(null, token.substring(1, token.length() - 1).replace("''", "'"));
+            } else if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '-') {
+                return new Operand(null, token);
+            } else if ("NULL".equalsIgnoreCase(token)) {
+                return new Operand(null, null);
+            } else {
+                return new Operand(token, null);
+            }
+        }
+
+        boolean accept(String token) {
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) throw new IllegalArgumentException("expected " + token + " at " + pos + " in " + tokens);
+        }
+
+        String next() {
+            if (pos >= tokens.size()) throw new IllegalArgumentException("unexpected end of " + tokens);
+            return tokens.get(pos++);
+        }
+    }
+
+    static List<String> tokenize(String s) {
+        final List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        while (i < s.length()) {
+            final char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                int end = i + 1;
+                while (end < s.length()) {
+                    if (s.charAt(end) == '\'') {
+                        // '' is an escaped quote
+                        if (end + 1 < s.length() && s.charAt(end + 1) == '\'') {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                tokens.add(s.substring(i, Math.min(end + 1, s.length())));
+                i = end + 1;
+            } else if ("(),?".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if ("=<>!".indexOf(c) >= 0) {
+                int end = i + 1;
+                while (end < s.length() && "=<>".indexOf(s.charAt(end)) >= 0) end++;
+                tokens.add(s.substring(i, end));
+                i = end;
+            } else {
+                int end = i + 1;
+                while (end < s.length() && (Character.isLetterOrDigit(s.charAt(end)) ||
+                        "_.-".indexOf(s.charAt(end)) >= 0)) {
+                    end++;
+                }
+                tokens.add(s.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the columns and directions of an order clause, with an optional LIMIT
+     */
+    public static Order parseOrder(String sortOrder) {
+        final Order order = new Order();
+        if (sortOrder == null) return order;
+        String clause = sortOrder.trim();
+        final int limit = clause.toUpperCase(Locale.ENGLISH).indexOf("LIMIT");
+        if (limit >= 0) {
+            order.limit = Integer.parseInt(clause.substring(limit + "LIMIT".length()).trim());
+            clause = clause.substring(0, limit).trim();
+        }
+        for (String term : clause.split(",")) {
+            final String[] parts = term.trim().split("\\s+");
+            if (parts[0].length() == 0) continue;
+            order.columns.add(parts[0]);
+            order.descending.add(parts.length > 1 && "DESC".equalsIgnoreCase(parts[1]));
+        }
+        return order;
+    }
+
+    public static class Order {
+        public final List<String> columns = new ArrayList<String>();
+        public final List<Boolean> descending = new ArrayList<Boolean>();
+        /** -1 if unlimited */
+        public int limit = -1;
+    }
+}
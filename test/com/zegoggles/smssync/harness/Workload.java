@@ -0,0 +1,215 @@
+package com.zegoggles.smssync.harness;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.robolectric.Robolectric.shadowOf;
+
+/**
+ * Synthetic device data: sms, mms with attachments and call log entries exchanged with a pool
+ * of contacts, half of them in the address book. The same seed always produces the same data.
+ */
+public class Workload {
+    public static final String USER_EMAIL = "user@example.com";
+    public static final String OWN_NUMBER = "+4915199999999";
+
+    private static final int CONTACTS = 200;
+    private static final long START = 1388534400000L; // 2014-01-01
+    private static final int MMS_PDU_RETRIEVE_CONF = 132;
+    private static final int MMS_PDU_SEND_REQ = 128;
+    private static final String[] WORDS = {
+        "ok", "see", "you", "later", "tomorrow", "at", "the", "station", "thanks", "running", "late",
+        "dinner", "tonight?", "call", "me", "when", "you're", "back", "Grüße", "aus", "Berlin", "😀"
+    };
+
+    public final int sms, mms, calls;
+    public final FakeProvider smsProvider = newSmsProvider();
+    public final FakeProvider mmsProvider = newMmsProvider();
+    public final FakeProvider callLogProvider = newCallLogProvider();
+    public final FakeProvider contactsProvider = newContactsProvider();
+    public final FakeThreadsProvider threadsProvider = new FakeThreadsProvider();
+
+    private final Random random;
+    private final byte[] attachment;
+
+    /**
+     * @param attachmentSize size of the image attached to each mms
+     */
+    public Workload(int sms, int mms, int calls, int attachmentSize, long seed) {
+        this.sms = sms;
+        this.mms = mms;
+        this.calls = calls;
+        this.random = new Random(seed);
+        this.attachment = new byte[attachmentSize];
+        random.nextBytes(attachment);
+
+        addContacts();
+        for (int i = 0; i < sms; i++) addSms(i);
+        for (int i = 0; i < mms; i++) addMms(i);
+        for (int i = 0; i < calls; i++) addCall(i);
+    }
+
+    /**
+     * @return n items, 70% sms, 10% mms with a 32k attachment and 20% calls
+     */
+    public static Workload mixed(int n) {
+        final int mms = n / 10, calls = n / 5;
+        return new Workload(n - mms - calls, mms, calls, 32 * 1024, 42);
+    }
+
+    public int size() {
+        return sms + mms + calls;
+    }
+
+    /**
+     * Makes the providers and mms attachments available through the given resolver.
+     */
+    public void register(ContentResolver resolver) {
+        ShadowContentResolver.registerProvider(Consts.SMS_PROVIDER.getAuthority(), smsProvider);
+        ShadowContentResolver.registerProvider(Consts.MMS_PROVIDER.getAuthority(), mmsProvider);
+        ShadowContentResolver.registerProvider(Consts.CALLLOG_PROVIDER.getAuthority(), callLogProvider);
+        ShadowContentResolver.registerProvider("com.android.contacts", contactsProvider);
+        ShadowContentResolver.registerProvider(FakeThreadsProvider.AUTHORITY, threadsProvider);
+
+        final ShadowContentResolver shadow = shadowOf(resolver);
+        final FakeProvider.Table parts = mmsProvider.getTable("*/part");
+        for (Map<String, String> part : parts.getRows()) {
+            if (part.get("_data") == null) continue;
+            shadow.registerInputStream(Uri.withAppendedPath(Consts.MMS_PROVIDER, "part/" + part.get("_id")),
+                    new RewindingInputStream(attachment));
+        }
+    }
+
+    public static FakeProvider newSmsProvider() {
+        final FakeProvider provider = new FakeProvider();
+        provider.addTable("", SmsConsts.ID, SmsConsts.THREAD_ID, SmsConsts.ADDRESS, SmsConsts.PERSON,
+                SmsConsts.DATE, SmsConsts.PROTOCOL, SmsConsts.READ, SmsConsts.STATUS, SmsConsts.TYPE,
+                "reply_path_present", "subject", SmsConsts.BODY, SmsConsts.SERVICE_CENTER, "locked",
+                "error_code", "seen").index(SmsConsts.DATE);
+        return provider;
+    }
+
+    public static FakeProvider newMmsProvider() {
+        final FakeProvider provider = new FakeProvider();
+        provider.addTable("", MmsConsts.ID, MmsConsts.THREAD_ID, MmsConsts.DATE, "msg_box", MmsConsts.READ,
+                MmsConsts.MESSAGE_ID, MmsConsts.SUBJECT, "ct_t", MmsConsts.TYPE, "m_size", "tr_id", "seen");
+        provider.addScopedTable("*/addr", "msg_id", "_id", "msg_id", "address", "type", "charset");
+        provider.addScopedTable("*/part", "mid", "_id", "mid", "seq", "ct", "name", "chset", "cd", "fn",
+                "cid", "cl", "ctt_s", "ctt_t", "_data", "text");
+        return provider;
+    }
+
+    public static FakeProvider newCallLogProvider() {
+        final FakeProvider provider = new FakeProvider();
+        provider.addTable("calls", "_id", "number", "date", "duration", "type", "new", "name", "numbertype")
+                .index("number");
+        return provider;
+    }
+
+    public static FakeProvider newContactsProvider() {
+        final FakeProvider provider = new FakeProvider();
+        provider.addScopedTable("phone_lookup/*", "number", "_id", "number", "display_name");
+        provider.addTable("data/emails", "_id", "contact_id", "data1", "is_primary").index("contact_id");
+        return provider;
+    }
+
+    /**
+     * @return the phone number of the given contact of the pool
+     */
+    public static String getNumber(int contact) {
+        return String.format(Locale.ENGLISH, "+49151%08d", contact);
+    }
+
+    private void addContacts() {
+        final FakeProvider.Table lookup = contactsProvider.getTable("phone_lookup/*");
+        final FakeProvider.Table emails = contactsProvider.getTable("data/emails");
+        for (int i = 0; i < CONTACTS; i += 2) {
+            final long id = i + 1;
+            lookup.add(id, getNumber(i), "Contact " + i);
+            if (i % 4 == 0) emails.add(null, id, "contact" + i + "@gmail.com", 1);
+        }
+    }
+
+    private void addSms(int i) {
+        final int contact = random.nextInt(CONTACTS);
+        final int type = random.nextInt(3) == 0 ? SmsConsts.MESSAGE_TYPE_SENT : SmsConsts.MESSAGE_TYPE_INBOX;
+        smsProvider.getTable("").add(null, contact + 1, getNumber(contact), null,
+                date(i, sms), 0, 1, -1, type,
+                0, null, text(1 + random.nextInt(40)), type == SmsConsts.MESSAGE_TYPE_INBOX ? "+491770610000" : null,
+                0, 0, 1);
+    }
+
+    private void addMms(int i) {
+        final int contact = random.nextInt(CONTACTS);
+        final boolean inbound = random.nextBoolean();
+        final long id = mmsProvider.getTable("").add(null, contact + 1, date(i, mms) / 1000,
+                inbound ? MmsConsts.MESSAGE_BOX_INBOX : MmsConsts.MESSAGE_BOX_SENT, 1,
+                "mms" + i, null, "application/vnd.wap.multipart.related",
+                inbound ? MMS_PDU_RETRIEVE_CONF : MMS_PDU_SEND_REQ, attachment.length, "T" + i, 1);
+
+        final FakeProvider.Table addr = mmsProvider.getTable("*/addr");
+        if (inbound) {
+            addr.add(null, id, getNumber(contact), MmsConsts.FROM, 106);
+            addr.add(null, id, OWN_NUMBER, MmsConsts.TO, 106);
+        } else {
+            addr.add(null, id, MmsConsts.INSERT_ADDRESS_TOKEN, MmsConsts.FROM, 106);
+            addr.add(null, id, getNumber(contact), MmsConsts.TO, 106);
+        }
+
+        final FakeProvider.Table part = mmsProvider.getTable("*/part");
+        part.add(null, id, -1, "application/smil", null, null, null, null, "<smil>", "smil.xml", null, null,
+                null, "<smil><body><par><img src=\"image001.jpg\"/><text src=\"text_0.txt\"/></par></body></smil>");
+        part.add(null, id, 0, "image/jpeg", null, null, null, null, "<image001>", "image001.jpg", null, null,
+                "/data/data/com.android.providers.telephony/app_parts/PART_" + i, null);
+        part.add(null, id, 0, "text/plain", null, 106, null, null, "<text_0>", "text_0.txt", null, null,
+                null, text(1 + random.nextInt(20)));
+    }
+
+    private void addCall(int i) {
+        final int contact = random.nextInt(CONTACTS);
+        final int type = 1 + random.nextInt(3); // incoming, outgoing, missed
+        callLogProvider.getTable("calls").add(null, getNumber(contact), date(i, calls),
+                type == 3 ? 0 : random.nextInt(3600), type, 0, null, 0);
+    }
+
+    /**
+     * @return the date of the i-th of count items, spread over about a year
+     */
+    private long date(int i, int count) {
+        final long step = 365L * 24 * 60 * 60 * 1000 / Math.max(count, 1);
+        return START + i * step + random.nextInt((int) Math.min(step, Integer.MAX_VALUE));
+    }
+
+    private String text(int words) {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Starts over when closed, the attachment gets read once to calculate the size of the
+     * message and again to send it.
+     */
+    private static class RewindingInputStream extends ByteArrayInputStream {
+        RewindingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public void close() {
+            reset();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.harness.Workload;
+import com.zegoggles.smssync.preferences.AddressStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.robolectric.Robolectric;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and allocations of turning provider rows into messages, run by
+ * {@link ConversionHarness}. The contacts of the workload fit into the {@link PersonLookup}
+ * cache, like they usually do during a backup, {@link #lookupPersonUncached()} measures the
+ * misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConversionBenchmarks {
+    /** messages converted per call of {@link MessageConverter#cursorToMessages} */
+    private static final int BATCH = 50;
+    private static final int UNCACHED_NUMBERS = 5000;
+
+    private MessageConverter converter;
+    private MessageGenerator generator;
+    private HeaderGenerator headerGenerator;
+    private PersonLookup personLookup;
+
+    private Cursor smsCursor, mmsCursor, callLogCursor;
+    private List<Map<String, String>> sms, mms, callLog;
+    private PersonRecord[] smsContacts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Context context = Robolectric.application;
+        final ContentResolver resolver = context.getContentResolver();
+        final Workload workload = new Workload(1000, 100, 200, 32 * 1024, 42);
+        workload.register(resolver);
+
+        converter = new MessageConverter(context, Workload.USER_EMAIL);
+        personLookup = new PersonLookup(resolver, AddressStyle.NAME);
+        headerGenerator = new HeaderGenerator("reference", "1.0");
+        generator = new MessageGenerator(context, new Address(Workload.USER_EMAIL), headerGenerator,
+                personLookup, false, null, null);
+
+        smsCursor = resolver.query(Consts.SMS_PROVIDER, null, null, null, null);
+        mmsCursor = resolver.query(Consts.MMS_PROVIDER, null, null, null, null);
+        callLogCursor = resolver.query(Consts.CALLLOG_PROVIDER, null, null, null, null);
+
+        sms = workload.smsProvider.getTable("").getRows();
+        mms = workload.mmsProvider.getTable("").getRows();
+        callLog = workload.callLogProvider.getTable("calls").getRows();
+        smsContacts = new PersonRecord[sms.size()];
+        for (int i = 0; i < smsContacts.length; i++) {
+            smsContacts[i] = personLookup.lookupPerson(sms.get(i).get(SmsConsts.ADDRESS));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        smsCursor.close();
+        mmsCursor.close();
+        callLogCursor.close();
+    }
+
+    @Benchmark
+    public ConversionResult cursorToMessagesSms() throws MessagingException {
+        return cursorToMessages(smsCursor, DataType.SMS);
+    }
+
+    @Benchmark
+    public ConversionResult cursorToMessagesMms() throws MessagingException {
+        return cursorToMessages(mmsCursor, DataType.MMS);
+    }
+
+    @Benchmark
+    public ConversionResult cursorToMessagesCallLog() throws MessagingException {
+        return cursorToMessages(callLogCursor, DataType.CALLLOG);
+    }
+
+    @Benchmark
+    public Message messageFromMapSms() throws MessagingException {
+        return generator.messageFromMapSms(sms.get(next++ % sms.size()));
+    }
+
+    @Benchmark
+    public Message messageFromMapMms() throws MessagingException {
+        return generator.messageFromMapMms(mms.get(next++ % mms.size()));
+    }
+
+    @Benchmark
+    public Message messageFromMapCallLog() throws MessagingException {
+        return generator.messageFromMapCallLog(callLog.get(next++ % callLog.size()));
+    }
+
+    @Benchmark
+    public Message setHeaders() throws MessagingException {
+        final int i = next++ % sms.size();
+        final Map<String, String> row = sms.get(i);
+        final Message message = new MimeMessage();
+        headerGenerator.setHeaders(message, row, DataType.SMS, row.get(SmsConsts.ADDRESS), smsContacts[i],
+                new Date(Long.parseLong(row.get(SmsConsts.DATE))), Integer.parseInt(row.get(SmsConsts.TYPE)));
+        return message;
+    }
+
+    @Benchmark
+    public PersonRecord lookupPersonCached() {
+        return personLookup.lookupPerson(sms.get(next++ % sms.size()).get(SmsConsts.ADDRESS));
+    }
+
+    /** cycles through more numbers than the cache holds, every lookup queries the contacts */
+    @Benchmark
+    public PersonRecord lookupPersonUncached() {
+        return personLookup.lookupPerson(Workload.getNumber(next++ % UNCACHED_NUMBERS));
+    }
+
+    private ConversionResult cursorToMessages(Cursor cursor, DataType dataType) throws MessagingException {
+        final int count = cursor.getCount();
+        cursor.moveToPosition((next++ * BATCH) % count);
+        return converter.cursorToMessages(cursor, BATCH, dataType);
+    }
+}
@@ -0,0 +1,39 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collection;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Runs {@link ConversionBenchmarks} with the GC profiler, which adds the allocation rate to the
+ * ops/s. JMH runs in this JVM so the benchmarks see the Robolectric environment.
+ * <p/>
+ * <code>mvn test -Pbenchmark -Dbenchmark.iterations=10</code>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class ConversionHarness {
+    @Test public void benchmarkConversion() throws Exception {
+        final Options options = new OptionsBuilder()
+                .include(ConversionBenchmarks.class.getSimpleName())
+                .forks(0)
+                .threads(1)
+                .warmupIterations(Integer.getInteger("benchmark.warmups", 3))
+                .measurementIterations(Integer.getInteger("benchmark.iterations", 5))
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        final Collection<RunResult> results = new Runner(options).run();
+        assertThat(results).isNotEmpty();
+    }
+}
@@ -0,0 +1,91 @@
+package com.zegoggles.smssync.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TriggerCoalescerTest {
+    private static final long SECOND = 1000;
+    private static final long QUIET_PERIOD = 30 * SECOND;
+    private static final long MAX_LATENCY = 5 * 60 * SECOND;
+
+    @Test public void shouldBeDueAfterTheQuietPeriodForASingleEvent() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer();
+        assertThat(coalescer.isPending()).isFalse();
+
+        assertThat(coalescer.onEvent(1000, QUIET_PERIOD, MAX_LATENCY)).isEqualTo(1000 + QUIET_PERIOD);
+        assertThat(coalescer.isPending()).isTrue();
+        assertThat(coalescer.getFirst()).isEqualTo(1000);
+    }
+
+    @Test public void shouldCoalesceABurstIntoOneBackupAfterTheLastEvent() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer();
+        long now = 0, due = -1;
+        for (int i = 0; i < 20; i++) {
+            now += 2 * SECOND;
+            due = coalescer.onEvent(now, QUIET_PERIOD, MAX_LATENCY);
+        }
+        assertThat(due).isEqualTo(now + QUIET_PERIOD);
+        assertThat(coalescer.getDue()).isEqualTo(due);
+        assertThat(coalescer.reset()).isEqualTo(20);
+    }
+
+    @Test public void shouldNotPostponeTheBackupBeyondTheMaximumLatency() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer();
+        final long first = 10 * SECOND;
+        long now = first;
+        for (int i = 0; i < 1000; i++) {
+            final long due = coalescer.onEvent(now, QUIET_PERIOD, MAX_LATENCY);
+            assertThat(due).isLessThanOrEqualTo(first + MAX_LATENCY);
+            now += 10 * SECOND;
+        }
+        assertThat(coalescer.getDue()).isEqualTo(first + MAX_LATENCY);
+        assertThat(coalescer.getEvents()).isEqualTo(1000);
+    }
+
+    @Test public void shouldKeepEveryDueTimeOfARandomBurstWithinTheBounds() {
+        final Random random = new Random(42);
+        for (int burst = 0; burst < 100; burst++) {
+            final TriggerCoalescer coalescer = new TriggerCoalescer();
+            final int n = 1 + random.nextInt(500);
+            final long first = random.nextInt(1000000);
+            long now = first, due = -1;
+            for (int i = 0; i < n; i++) {
+                due = coalescer.onEvent(now, QUIET_PERIOD, MAX_LATENCY);
+                assertThat(due).isGreaterThanOrEqualTo(now);
+                assertThat(due).isLessThanOrEqualTo(now + QUIET_PERIOD);
+                assertThat(due).isLessThanOrEqualTo(first + MAX_LATENCY);
+                // the next event arrives before the backup started
+                now = Math.min(due, now + random.nextInt((int) QUIET_PERIOD));
+            }
+            assertThat(coalescer.getDue()).isEqualTo(due);
+            assertThat(coalescer.reset()).isEqualTo(n);
+            assertThat(coalescer.isPending()).isFalse();
+        }
+    }
+
+    @Test public void shouldCapTheQuietPeriodAtTheMaximumLatency() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer();
+        assertThat(coalescer.onEvent(0, MAX_LATENCY * 2, MAX_LATENCY)).isEqualTo(MAX_LATENCY);
+    }
+
+    @Test public void shouldStartANewBurstAfterReset() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer();
+        coalescer.onEvent(0, QUIET_PERIOD, MAX_LATENCY);
+        coalescer.onEvent(SECOND, QUIET_PERIOD, MAX_LATENCY);
+        assertThat(coalescer.reset()).isEqualTo(2);
+        assertThat(coalescer.getDue()).isEqualTo(-1);
+
+        assertThat(coalescer.onEvent(MAX_LATENCY * 3, QUIET_PERIOD, MAX_LATENCY))
+                .isEqualTo(MAX_LATENCY * 3 + QUIET_PERIOD);
+        assertThat(coalescer.getFirst()).isEqualTo(MAX_LATENCY * 3);
+    }
+
+    @Test public void shouldContinueAPersistedBurst() {
+        final TriggerCoalescer coalescer = new TriggerCoalescer(0, QUIET_PERIOD, 1);
+        assertThat(coalescer.onEvent(MAX_LATENCY - SECOND, QUIET_PERIOD, MAX_LATENCY)).isEqualTo(MAX_LATENCY);
+        assertThat(coalescer.getEvents()).isEqualTo(2);
+    }
+}